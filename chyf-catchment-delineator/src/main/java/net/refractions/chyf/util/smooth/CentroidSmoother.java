@@ -17,13 +17,9 @@
 package net.refractions.chyf.util.smooth;
 
 
-import org.locationtech.jts.algorithm.Angle;
-import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.CoordinateSequence;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.PrecisionModel;
-import org.locationtech.jts.geom.Triangle;
 
 /**
  * Smooths a LineString by replacing the interior vertices by the centroid of the triangle subtended
@@ -46,7 +42,6 @@ public class CentroidSmoother {
     private double         maxSmoothAngle  = Double.MAX_VALUE;
     private boolean[]      isVertexRespected;
     private boolean        isSmoothRingEnd = true;
-    private boolean        isRing;
 
     public CentroidSmoother(Geometry geom, PrecisionModel pm) {
         this.line = (LineString) geom;
@@ -86,65 +81,12 @@ public class CentroidSmoother {
     }
 
     public Geometry getGeometry() {
-        CoordinateSequence seq = line.getCoordinateSequence();
-        int nPts = seq.size();
-        isRing = seq.getCoordinate(0).equals2D(seq.getCoordinate(nPts - 1));
-        // make a new sequence to hold the output
-        CoordinateSequence seqSmooth = line.getFactory().getCoordinateSequenceFactory().create(
-            nPts,
-            seq.getDimension());
-        Coordinate p0 = new Coordinate();
-        Coordinate p1 = new Coordinate();
-        Coordinate p2 = new Coordinate();
-
-        boolean smoothEndpoint = isRing && isSmoothRingEnd;
-
-        // if not doing ring smoothing, don't change endpoints - they stay identical with the input
-        int startIndex = 0;
-        if (!smoothEndpoint) {
-            seq.getCoordinate(0, p1);
-            CoordinateSequenceUtil.setCoordinate2D(seqSmooth, 0, p1);
-            seq.getCoordinate(nPts - 1, p1);
-            CoordinateSequenceUtil.setCoordinate2D(seqSmooth, nPts - 1, p1);
-            startIndex = 1;
-        }
-
-        for (int i = startIndex; i < nPts - 1; i++) {
-
-            int prevIndex = i - 1;
-            if (prevIndex < 0)
-                prevIndex = nPts - 1;
-
-            seq.getCoordinate(prevIndex, p0);
-            seq.getCoordinate(i, p1);
-            seq.getCoordinate(i + 1, p2);
-
-            Coordinate smoothedPt = p1;
-            // only smooth non-respected vertices
-            if (!isVertexRespected(i)) {
-                smoothedPt = getSmoothedPoint(p0, p1, p2);
-                pm.makePrecise(smoothedPt);
-            }
-            seqSmooth.setOrdinate(i, CoordinateSequence.X, smoothedPt.x);
-            seqSmooth.setOrdinate(i, CoordinateSequence.Y, smoothedPt.y);
-        }
-
-        // if endpoint was smoothed, ensure both line end ordinates are identical
-        if (smoothEndpoint) {
-            seqSmooth.getCoordinate(0, p1);
-            CoordinateSequenceUtil.setCoordinate2D(seqSmooth, nPts - 1, p1);
-        }
-
-        return line.getFactory().createLineString(seqSmooth);
-    }
-
-    private Coordinate getSmoothedPoint(Coordinate p0, Coordinate p1, Coordinate p2) {
-        double segAngle = Angle.angleBetween(p0, p1, p2);
-        if (segAngle > maxSmoothAngle) {
-            // don't smooth
-            return p1;
-        }
-        Coordinate centroid = Triangle.centroid(p0, p1, p2);
-        return centroid;
+        double[] xy = CoordinateSequenceUtil.pack2D(line.getCoordinateSequence());
+        PackedCentroidSmoother smoother = new PackedCentroidSmoother(pm);
+        smoother.setMaximumSmoothAngle(maxSmoothAngle);
+        smoother.setRespectedVertices(isVertexRespected);
+        smoother.setSmoothRingEnd(isSmoothRingEnd);
+        smoother.smooth(xy);
+        return CoordinateSequenceUtil.toLineString(xy, line.getFactory());
     }
 }
\ No newline at end of file
@@ -14,10 +14,13 @@
  * limitations under the License.
  *******************************************************************************/
 
+
 package net.refractions.chyf.util.smooth;
 
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
 
 /**
  * Utility methods for {@link CoordinateSequence}s.
@@ -31,4 +34,55 @@ public class CoordinateSequenceUtil {
         seq.setOrdinate(i, CoordinateSequence.Y, p.y);
     }
 
-}
\ No newline at end of file
+    /**
+     * Copies the X and Y ordinates of a sequence into a packed buffer of the form
+     * <code>[x0, y0, x1, y1, ...]</code>.
+     * 
+     * @param seq the sequence to pack
+     * @return a new packed XY buffer
+     */
+    public static double[] pack2D(CoordinateSequence seq) {
+        int nPts = seq.size();
+        double[] xy = new double[2 * nPts];
+        for (int i = 0; i < nPts; i++) {
+            xy[2 * i] = seq.getOrdinate(i, CoordinateSequence.X);
+            xy[2 * i + 1] = seq.getOrdinate(i, CoordinateSequence.Y);
+        }
+        return xy;
+    }
+
+    /**
+     * Creates a LineString from a packed XY buffer, using the sequence factory of
+     * the given geometry factory.
+     * 
+     * @param xy   the packed buffer
+     * @param fact the factory to create the line with
+     * @return a new LineString
+     */
+    public static LineString toLineString(double[] xy, GeometryFactory fact) {
+        int nPts = xy.length / 2;
+        CoordinateSequence seq = fact.getCoordinateSequenceFactory().create(nPts, 2);
+        for (int i = 0; i < nPts; i++) {
+            seq.setOrdinate(i, CoordinateSequence.X, xy[2 * i]);
+            seq.setOrdinate(i, CoordinateSequence.Y, xy[2 * i + 1]);
+        }
+        return fact.createLineString(seq);
+    }
+
+    /**
+     * Computes the length of the line defined by a packed XY buffer.
+     * 
+     * @param xy the packed buffer
+     * @return the length of the line
+     */
+    public static double length2D(double[] xy) {
+        double len = 0.0;
+        for (int i = 2; i < xy.length; i += 2) {
+            double dx = xy[i] - xy[i - 2];
+            double dy = xy[i + 1] - xy[i - 1];
+            len += Math.sqrt(dx * dx + dy * dy);
+        }
+        return len;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright 2020 Government of Canada
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *******************************************************************************/
+
+
+package net.refractions.chyf.util.smooth;
+
+import org.locationtech.jts.geom.PrecisionModel;
+
+/**
+ * Centroid smoothing over packed XY coordinate buffers (<code>[x0, y0, x1, y1, ...]</code>).
+ * Produces the same result as {@link CentroidSmoother}, but smooths the buffer in place without
+ * allocating intermediate {@link org.locationtech.jts.geom.Coordinate}s or geometries. A single
+ * instance can be reused for any number of buffers, but is not thread-safe.
+ * <p>
+ * Line endpoints are pinned (left unchanged) unless the line is a ring and ring end smoothing
+ * is enabled.
+ */
+public class PackedCentroidSmoother {
+
+    private PrecisionModel pm;
+    // default is smooth every angle
+    private double         maxSmoothAngle  = Double.MAX_VALUE;
+    private boolean[]      isVertexRespected;
+    private boolean        isSmoothRingEnd = true;
+
+    public PackedCentroidSmoother(PrecisionModel pm) {
+        this.pm = pm;
+    }
+
+    /**
+     * Sets the maximum corner angle which will be smoothed (in radians).
+     * 
+     * @param maxSmoothAngle
+     */
+    public void setMaximumSmoothAngle(double maxSmoothAngle) {
+        this.maxSmoothAngle = maxSmoothAngle;
+    }
+
+    /**
+     * Sets whether the endpoint location on a ring is smoothed or not.
+     * 
+     * @param isSmoothRingEnd true if ring endpoints are to be smoothed
+     */
+    public void setSmoothRingEnd(boolean isSmoothRingEnd) {
+        this.isSmoothRingEnd = isSmoothRingEnd;
+    }
+
+    public void setRespectedVertices(boolean[] isVertexRespected) {
+        this.isVertexRespected = isVertexRespected;
+    }
+
+    private boolean isVertexRespected(int i) {
+        if (isVertexRespected == null)
+            return false;
+        return isVertexRespected[i];
+    }
+
+    /**
+     * Smooths the packed buffer in place.
+     * 
+     * @param xy a packed XY buffer containing at least 2 points
+     */
+    public void smooth(double[] xy) {
+        int nPts = xy.length / 2;
+        int last = nPts - 1;
+        boolean isRing = xy[0] == xy[2 * last] && xy[1] == xy[2 * last + 1];
+        boolean smoothEndpoint = isRing && isSmoothRingEnd;
+
+        // if not doing ring smoothing, endpoints stay identical with the input
+        int startIndex = smoothEndpoint ? 0 : 1;
+
+        // the unsmoothed value of the previous vertex
+        double prevX = xy[2 * (startIndex == 0 ? last : startIndex - 1)];
+        double prevY = xy[2 * (startIndex == 0 ? last : startIndex - 1) + 1];
+
+        for (int i = startIndex; i < last; i++) {
+            double x = xy[2 * i];
+            double y = xy[2 * i + 1];
+            // only smooth non-respected vertices
+            if (!isVertexRespected(i)) {
+                double nextX = xy[2 * i + 2];
+                double nextY = xy[2 * i + 3];
+                if (angleBetween(prevX, prevY, x, y, nextX, nextY) <= maxSmoothAngle) {
+                    xy[2 * i] = pm.makePrecise((prevX + x + nextX) / 3.0);
+                    xy[2 * i + 1] = pm.makePrecise((prevY + y + nextY) / 3.0);
+                }
+            }
+            prevX = x;
+            prevY = y;
+        }
+
+        // if endpoint was smoothed, ensure both line end ordinates are identical
+        if (smoothEndpoint) {
+            xy[2 * last] = xy[0];
+            xy[2 * last + 1] = xy[1];
+        }
+    }
+
+    /**
+     * Computes the unoriented angle at a tail vertex between two tip vertices. Equivalent to
+     * {@link org.locationtech.jts.algorithm.Angle#angleBetween}.
+     * 
+     * @return the angle (in radians) at (x1, y1)
+     */
+    public static double angleBetween(double x0, double y0, double x1, double y1, double x2,
+            double y2) {
+        double a1 = Math.atan2(y0 - y1, x0 - x1);
+        double a2 = Math.atan2(y2 - y1, x2 - x1);
+        double delAngle = a1 < a2 ? a2 - a1 : a1 - a2;
+        if (delAngle > Math.PI) {
+            delAngle = (2 * Math.PI) - delAngle;
+        }
+        return delAngle;
+    }
+}
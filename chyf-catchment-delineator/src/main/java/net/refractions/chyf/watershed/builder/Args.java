@@ -36,6 +36,8 @@ public class Args {
 		options.addOption("p", true, "custom properties file");
 		options.addOption("c", true, "number of cores to use for multi-core processing (default 1)");
 		options.addOption("r", false, "recover/continue previous output (output file must exist)");
+		options.addOption("b", false, "store intermediate watershed boundary edges in compact binary block files (in <OUTFILE>.edges) instead of the output geopackage");
+		options.addOption("d", false, "with -b, also write the intermediate watershed boundary edges to the output geopackage for debugging");
 	}
 
 	private Path inFile = null;
@@ -44,6 +46,8 @@ public class Args {
 	private Path propertiesFile = null;
 	private int cores = 1;
 	private boolean recover = false;
+	private boolean binaryEdges = false;
+	private boolean debugEdges = false;
 	
 
 	/**
@@ -76,6 +80,12 @@ public class Args {
 			if(cmd.hasOption("r")) {
 				args.recover = true;
 			}
+			if(cmd.hasOption("b")) {
+				args.binaryEdges = true;
+			}
+			if(cmd.hasOption("d")) {
+				args.debugEdges = true;
+			}
 
 
 			if (cmd.getArgList().size() == 3) {
@@ -131,6 +141,14 @@ public class Args {
 		return recover;
 	}
 
+	public boolean getBinaryEdges() {
+		return binaryEdges;
+	}
+
+	public boolean getDebugEdges() {
+		return debugEdges;
+	}
+
 	private static void printUsage(String main) {
 		new HelpFormatter().printHelp(main + " [OPTIONS] <INFILE> <TIFFDIR> <OUTFILE>", options);
 	}
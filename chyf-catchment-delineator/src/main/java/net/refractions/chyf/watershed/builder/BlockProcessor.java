@@ -24,7 +24,10 @@ import java.util.List;
 
 import org.geotools.geometry.jts.JTS;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 import org.opengis.referencing.operation.TransformException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -104,17 +107,10 @@ public class BlockProcessor {
             Collection<WatershedBoundaryEdge> watershedBoundaryColl = builder.getBoundaryEdges();
 
             stats.reportStatus(logger, "Removing watershed boundaries outside of block boundaries");
-            Geometry blockGeom = JTS.toGeometry(block.getBounds());
-            
-            for (Iterator<WatershedBoundaryEdge> iter = watershedBoundaryColl.iterator(); iter.hasNext();) {
-                WatershedBoundaryEdge wsEdge = (WatershedBoundaryEdge) iter.next();
-                if(blockGeom.distance(wsEdge.getGeometry()) > 0) {
-                    iter.remove();
-                }
-            }
+            removeEdgesOutside(block.getBounds(), watershedBoundaryColl);
 
             stats.reportStatus(logger, "Saving Results");
-            dm.writeWatershedBoundaries(watershedBoundaryColl);
+            dm.writeWatershedBoundaries(block, watershedBoundaryColl);
 
             stats.reportStatus(logger, "Stage3: QA");
             block.setState(BlockState.QA);
@@ -137,4 +133,27 @@ public class BlockProcessor {
         }
     }
 
+    /**
+     * Removes the edges which do not touch the block. Edges are classified by
+     * envelope first: edges within the block envelope are kept and edges disjoint
+     * from it are removed without any further computation. Only edges crossing
+     * the block boundary are tested exactly, against the prepared block geometry.
+     * 
+     * @param blockEnv the block bounds
+     * @param edges    the edges to filter
+     */
+    static void removeEdgesOutside(Envelope blockEnv, Collection<WatershedBoundaryEdge> edges) {
+        PreparedGeometry blockGeom = PreparedGeometryFactory.prepare(JTS.toGeometry(blockEnv));
+        for (Iterator<WatershedBoundaryEdge> iter = edges.iterator(); iter.hasNext();) {
+            Geometry edgeGeom = iter.next().getGeometry();
+            Envelope edgeEnv = edgeGeom.getEnvelopeInternal();
+            if (blockEnv.contains(edgeEnv)) {
+                continue;
+            }
+            if (!blockEnv.intersects(edgeEnv) || !blockGeom.intersects(edgeGeom)) {
+                iter.remove();
+            }
+        }
+    }
+
 }
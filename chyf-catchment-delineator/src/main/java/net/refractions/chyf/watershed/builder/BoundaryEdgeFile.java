@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright 2020 Government of Canada
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *******************************************************************************/
+package net.refractions.chyf.watershed.builder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.PrecisionModel;
+
+import net.refractions.chyf.watershed.model.WatershedBoundaryEdge;
+
+/**
+ * Reads and writes the watershed boundary edges of a block in a compact
+ * columnar binary form. This is used as the intermediate store between the
+ * {@link BlockProcessor}s and the {@link WatershedBoundaryMerger}, instead of
+ * encoding the edges as geopackage features.
+ * <p>
+ * The file layout is:
+ * <ul>
+ * <li>header: magic number, version, precision model scale, edge count
+ * <li>left drainage id of each edge (int)
+ * <li>right drainage id of each edge (int)
+ * <li>number of points of each edge (int)
+ * <li>the coordinates of all edges, as fixed precision ordinates (ordinate
+ * &times; scale), each delta-encoded from the previous point as a zig-zag
+ * varint
+ * </ul>
+ * Most edge coordinates are rounded to the fixed precision model, but endpoints
+ * at hydro nodes are not (see
+ * {@link net.refractions.chyf.watershed.smooth.WatershedEdgeCoverageSmoother}). The low
+ * bit of each x delta flags a point that is not on the precision grid; the x
+ * delta is then 0 and the point follows as two raw doubles. This keeps the
+ * encoding lossless for every point.
+ */
+public class BoundaryEdgeFile {
+
+	private static final int MAGIC = 0x57424531; // "WBE1"
+	private static final int VERSION = 2;
+	private static final String FILE_PREFIX = "block-";
+	private static final String FILE_SUFFIX = ".wbe";
+
+	/**
+	 * @return the path of the edge file for a block within an edge directory
+	 */
+	public static Path getBlockFile(Path dir, DataBlock block) {
+		return dir.resolve(FILE_PREFIX + block.getId() + FILE_SUFFIX);
+	}
+
+	/**
+	 * Writes the edges of a block. The file is written under a temporary name and
+	 * then moved into place, so a block file is never partially written.
+	 * 
+	 * @param file  the file to write
+	 * @param edges the edges to write
+	 * @param pm    the (fixed) precision model of the edge coordinates
+	 */
+	public static void write(Path file, Collection<WatershedBoundaryEdge> edges, PrecisionModel pm) throws IOException {
+		if (pm.isFloating()) {
+			throw new IllegalArgumentException("Binary boundary edge files require a fixed precision model.");
+		}
+		double scale = pm.getScale();
+		Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeDouble(scale);
+			out.writeInt(edges.size());
+			for (WatershedBoundaryEdge edge : edges) {
+				out.writeInt(edge.getRegionID(WatershedBoundaryEdge.LEFT));
+			}
+			for (WatershedBoundaryEdge edge : edges) {
+				out.writeInt(edge.getRegionID(WatershedBoundaryEdge.RIGHT));
+			}
+			for (WatershedBoundaryEdge edge : edges) {
+				out.writeInt(edge.getGeometry().getNumPoints());
+			}
+			long prevX = 0;
+			long prevY = 0;
+			for (WatershedBoundaryEdge edge : edges) {
+				CoordinateSequence seq = edge.getGeometry().getCoordinateSequence();
+				for (int i = 0; i < seq.size(); i++) {
+					double ox = seq.getX(i);
+					double oy = seq.getY(i);
+					long x = Math.round(ox * scale);
+					long y = Math.round(oy * scale);
+					if (x / scale != ox || y / scale != oy) {
+						// off the precision grid; store exactly
+						writeVarLong(out, 1);
+						out.writeDouble(ox);
+						out.writeDouble(oy);
+						continue;
+					}
+					writeVarLong(out, (x - prevX) << 1);
+					writeVarLong(out, y - prevY);
+					prevX = x;
+					prevY = y;
+				}
+			}
+		}
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads the edges of a block file, passing each one to a consumer. The file is
+	 * memory-mapped and the edges are decoded one at a time.
+	 * 
+	 * @param file     the file to read
+	 * @param gf       the factory to create edge geometries with
+	 * @param consumer receives each edge
+	 */
+	public static void read(Path file, GeometryFactory gf, Consumer<WatershedBoundaryEdge> consumer) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				throw new IOException("Not a boundary edge file: " + file);
+			}
+			double scale = buf.getDouble();
+			int count = buf.getInt();
+			int leftStart = buf.position();
+			int rightStart = leftStart + 4 * count;
+			int numPtsStart = rightStart + 4 * count;
+			// coordinates follow the three int columns
+			buf.position(numPtsStart + 4 * count);
+
+			long x = 0;
+			long y = 0;
+			for (int e = 0; e < count; e++) {
+				int numPts = buf.getInt(numPtsStart + 4 * e);
+				Coordinate[] pts = new Coordinate[numPts];
+				for (int i = 0; i < numPts; i++) {
+					long dx = readVarLong(buf);
+					if ((dx & 1) != 0) {
+						pts[i] = new Coordinate(buf.getDouble(), buf.getDouble());
+						continue;
+					}
+					x += dx >> 1;
+					y += readVarLong(buf);
+					pts[i] = new Coordinate(x / scale, y / scale);
+				}
+				LineString line = gf.createLineString(pts);
+				int left = buf.getInt(leftStart + 4 * e);
+				int right = buf.getInt(rightStart + 4 * e);
+				consumer.accept(new WatershedBoundaryEdge(line, new boolean[] { false, false },
+						new int[] { left, right }, false, false));
+			}
+		}
+	}
+
+	/**
+	 * Reads the edges of all block files in a directory.
+	 */
+	public static void readAll(Path dir, GeometryFactory gf, Consumer<WatershedBoundaryEdge> consumer) throws IOException {
+		if (!Files.isDirectory(dir)) {
+			return;
+		}
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+				String name = file.getFileName().toString();
+				if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) {
+					read(file, gf, consumer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes an edge directory and the block files in it.
+	 */
+	public static void deleteAll(Path dir) throws IOException {
+		if (!Files.isDirectory(dir)) {
+			return;
+		}
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		// zig-zag encode so small negative deltas are small too
+		long v = (value << 1) ^ (value >> 63);
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	private static long readVarLong(ByteBuffer buf) {
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf.get();
+			v |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
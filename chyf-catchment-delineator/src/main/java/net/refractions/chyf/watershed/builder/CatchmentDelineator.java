@@ -61,6 +61,9 @@ public class CatchmentDelineator {
     	recover = args.getRecover();
 		
     	dm = new DataManager(inputTiffDir, inputPath, outputPath, recover);
+    	if(args.getBinaryEdges()) {
+    		dm.useBinaryBoundaryEdges(args.getDebugEdges());
+    	}
     }
     
     public void build() {
@@ -78,6 +81,7 @@ public class CatchmentDelineator {
     	processBlocks();
     	buildBoundaries();
     	// QA?
+    	dm.close();
     }
     
     public void processBlocks() {
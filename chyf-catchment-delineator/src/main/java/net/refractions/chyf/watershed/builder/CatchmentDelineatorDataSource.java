@@ -16,10 +16,26 @@
 package net.refractions.chyf.watershed.builder;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.sql.DataSource;
 
 import org.geotools.data.DefaultTransaction;
 import org.geotools.data.Transaction;
@@ -27,6 +43,7 @@ import org.geotools.data.simple.SimpleFeatureReader;
 import org.geotools.data.simple.SimpleFeatureWriter;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.precision.GeometryPrecisionReducer;
 import org.opengis.feature.simple.SimpleFeature;
@@ -34,11 +51,23 @@ import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.filter.Filter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
 
 import net.refractions.chyf.datasource.ChyfGeoPackageDataSource;
 import net.refractions.chyf.util.ProcessStatistics;
 import net.refractions.chyf.watershed.WatershedSettings;
 
+/**
+ * The geopackage data source used by the catchment delineator. All writes go
+ * through the single (synchronized) writer connection inherited from
+ * {@link ChyfGeoPackageDataSource}. Reads made while blocks are being processed
+ * use {@link #readObjects(String, ReferencedEnvelope, Filter, Function)}, which
+ * draws on a pool of readers so that concurrent block extraction is not
+ * serialized. Each pooled reader holds a single read-only SQLite connection
+ * that stays open until the data source is closed. The geopackage is put in
+ * WAL journal mode, so each read sees a consistent snapshot and does not block
+ * (or get blocked by) the writer.
+ */
 public class CatchmentDelineatorDataSource extends ChyfGeoPackageDataSource {
 	private static final Logger logger = LoggerFactory.getLogger(DataManager.class);
 	
@@ -46,12 +75,97 @@ public class CatchmentDelineatorDataSource extends ChyfGeoPackageDataSource {
 	public static final String WATERSHED_BOUNDARY_LAYER = "CatchmentConstructionEdges";
 	public static final String BLOCK_LAYER = "ProcessingBlocks";
 	
+	// idle read-only readers; one is created for each concurrent reader
+	private Queue<PooledReader> idleReaders = new ConcurrentLinkedQueue<PooledReader>();
+	private List<PooledReader> allReaders = new ArrayList<PooledReader>();
 
 	public CatchmentDelineatorDataSource(Path geopackageFile) throws IOException {
 		super(geopackageFile);
 		
 		addInternalIdAttribute();
-		
+		enableWriteAheadLog();
+	}
+	
+	private void enableWriteAheadLog() throws IOException {
+		try (Connection c = geopkg.getDataSource().getConnection();
+				Statement stmt = c.createStatement()) {
+			stmt.execute("PRAGMA journal_mode=WAL");
+		} catch (SQLException sqle) {
+			throw new IOException(sqle);
+		}
+	}
+	
+	/**
+	 * Reads the features of a layer using a pooled read-only connection, so may be
+	 * called concurrently from multiple threads without blocking each other or
+	 * the writer.
+	 * 
+	 * @param layerName the layer to read
+	 * @param bounds    the bounds to read within, or null to read everything
+	 * @param filter    an additional filter, or null
+	 * @param func      converts each feature into the result object, or returns
+	 *                  null to skip the feature
+	 * @return the converted features
+	 */
+	public <T> List<T> readObjects(String layerName, ReferencedEnvelope bounds, Filter filter,
+			Function<SimpleFeature, T> func) throws IOException {
+		PooledReader pooled = acquireReader();
+		try {
+			GeoPackage reader = pooled.geopkg;
+			List<T> data = new ArrayList<T>();
+			FeatureEntry fe = reader.feature(layerName);
+			if (fe == null) {
+				return data;
+			}
+			Filter netFilter = filter;
+			if (bounds != null) {
+				netFilter = filterFromEnvelope(bounds, fe);
+				if (filter != null) {
+					netFilter = ff.and(netFilter, filter);
+				}
+			}
+			try (SimpleFeatureReader featureReader = reader.reader(fe, netFilter, null)) {
+				while (featureReader.hasNext()) {
+					T datum = func.apply(featureReader.next());
+					if (datum != null) {
+						data.add(datum);
+					}
+				}
+			}
+			return data;
+		} finally {
+			idleReaders.add(pooled);
+		}
+	}
+	
+	private PooledReader acquireReader() throws IOException {
+		PooledReader reader = idleReaders.poll();
+		if (reader == null) {
+			SQLiteConfig config = new SQLiteConfig();
+			config.setReadOnly(true);
+			try {
+				Connection cx = config.createConnection("jdbc:sqlite:" + geopackageFile.toAbsolutePath().toString());
+				reader = new PooledReader(cx);
+			} catch (SQLException sqle) {
+				throw new IOException(sqle);
+			}
+			synchronized (allReaders) {
+				allReaders.add(reader);
+			}
+		}
+		return reader;
+	}
+	
+	@Override
+	public synchronized void close() {
+		synchronized (allReaders) {
+			for (PooledReader reader : allReaders) {
+				reader.close();
+			}
+			allReaders.clear();
+			idleReaders.clear();
+		}
+		super.close();
 	}
 	
 	public synchronized boolean createLayer(SimpleFeatureType ft, ReferencedEnvelope workingExtent) {
@@ -218,4 +332,93 @@ public class CatchmentDelineatorDataSource extends ChyfGeoPackageDataSource {
 		}
 	}
 
+	/**
+	 * A read-only geopackage over a single physical connection. The GeoPackage
+	 * asks its data source for a connection, and closes it, around every
+	 * operation; here those requests all hand out the same connection, which is
+	 * only really closed along with the reader. A reader is only ever used by one
+	 * thread at a time.
+	 */
+	private static class PooledReader implements DataSource {
+		private final Connection cx;
+		private final Connection handle;
+		private final GeoPackage geopkg;
+
+		PooledReader(Connection cx) {
+			this.cx = cx;
+			this.handle = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new InvocationHandler() {
+
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							if (method.getName().equals("close")) {
+								// keep the connection open for the next read
+								return null;
+							}
+							try {
+								return method.invoke(cx, args);
+							} catch (InvocationTargetException e) {
+								throw e.getCause();
+							}
+						}
+					});
+			this.geopkg = new GeoPackage(this);
+		}
+
+		void close() {
+			geopkg.close();
+			try {
+				cx.close();
+			} catch (SQLException sqle) {
+				logger.warn("Unable to close read connection", sqle);
+			}
+		}
+
+		@Override
+		public Connection getConnection() {
+			return handle;
+		}
+
+		@Override
+		public Connection getConnection(String username, String password) {
+			return handle;
+		}
+
+		@Override
+		public PrintWriter getLogWriter() {
+			return null;
+		}
+
+		@Override
+		public void setLogWriter(PrintWriter out) {
+		}
+
+		@Override
+		public void setLoginTimeout(int seconds) {
+		}
+
+		@Override
+		public int getLoginTimeout() {
+			return 0;
+		}
+
+		@Override
+		public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		@Override
+		public <T> T unwrap(Class<T> iface) throws SQLException {
+			if (iface.isInstance(this)) {
+				return iface.cast(this);
+			}
+			throw new SQLException("Not a wrapper for " + iface);
+		}
+
+		@Override
+		public boolean isWrapperFor(Class<?> iface) {
+			return iface.isInstance(this);
+		}
+	}
+
 }
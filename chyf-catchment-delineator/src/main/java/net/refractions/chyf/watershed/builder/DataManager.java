@@ -71,8 +71,16 @@ public class DataManager {
 
 	private ReferencedEnvelope workingExtent;
 
+	private Path outputGeopackagePath;
+	private boolean recover;
+	// directory of binary block edge files, or null if edges are stored in the geopackage
+	private Path boundaryEdgeDir = null;
+	private boolean debugBoundaryEdges = false;
+
 	public DataManager(Path geoTiffDirPath, Path inputGeopackagePath, Path outputGeopackagePath, 
 			boolean recover) throws IOException {
+		this.outputGeopackagePath = outputGeopackagePath;
+		this.recover = recover;
 		logger.info("Processing input file: " + inputGeopackagePath);
 		logger.info("Using DEM from dir: " + geoTiffDirPath);
 		logger.info("Output to file " + outputGeopackagePath);
@@ -103,6 +111,23 @@ public class DataManager {
 		gridReader = new GeoTiffDirReader(geoTiffDirPath.toString(), crs);
 	}
 
+	/**
+	 * Stores the intermediate watershed boundary edges in binary block files (see
+	 * {@link BoundaryEdgeFile}) in a directory next to the output geopackage,
+	 * instead of in the geopackage itself.
+	 * 
+	 * @param debug if true, the edges are also written to the geopackage
+	 */
+	public void useBinaryBoundaryEdges(boolean debug) throws IOException {
+		boundaryEdgeDir = outputGeopackagePath.resolveSibling(outputGeopackagePath.getFileName() + ".edges");
+		debugBoundaryEdges = debug;
+		if(!recover) {
+			BoundaryEdgeFile.deleteAll(boundaryEdgeDir);
+		}
+		Files.createDirectories(boundaryEdgeDir);
+		logger.info("Storing watershed boundary edges in " + boundaryEdgeDir);
+	}
+
 	private SimpleFeatureType getHydroEdgeFT() {
 		// Build a featureType for the HydroEdge features
 		SimpleFeatureTypeBuilder sftBuilder = new SimpleFeatureTypeBuilder();
@@ -173,7 +198,14 @@ public class DataManager {
 		return coords;
 	}
 	
-	public synchronized List<HydroEdge> getHydroEdges(DataBlock block) {
+	/**
+	 * Reads the hydro edges for a block. Uses a pooled read-only connection, so
+	 * multiple blocks may be extracted concurrently.
+	 * 
+	 * @param block the block to read edges for, or null to read all edges
+	 * @return the hydro edges within the buffered bounds of the block
+	 */
+	public List<HydroEdge> getHydroEdges(DataBlock block) {
 		ProcessStatistics stats = new ProcessStatistics();
 		stats.reportStatus(logger, "loading hydro edges for " + block);
 		try {
@@ -184,26 +216,29 @@ public class DataManager {
 				bufferedEnv = new ReferencedEnvelope(env, crs);
 				targetEnvPoly = gf.toGeometry(env);
 			}
-			List<HydroEdge> edges = new ArrayList<HydroEdge>();
-
-			SimpleFeatureReader edgeReader = dataSource.query(CatchmentDelineatorDataSource.HYDRO_EDGE_LAYER, bufferedEnv, null);
-			while (edgeReader.hasNext()) {
-				SimpleFeature edge = edgeReader.next();
-				LineString edgeGeom = (LineString) edge.getDefaultGeometry();
-				Integer drainageId = (Integer)edge.getAttribute("drainageId");
-				WaterSide waterSide = WaterSide.convert((String)edge.getAttribute("waterSide"));
-				// ignore edges with water on both sides
-				if(waterSide == WaterSide.BOTH) continue; 
-				if(edgeGeom.getCoordinate() instanceof CoordinateXY) {
-					CoordinateSequence newSeq = PackedCoordinateSequenceFactory.DOUBLE_FACTORY.create(edgeGeom.getNumPoints(), 3);
-					CoordinateSequences.copy(edgeGeom.getCoordinateSequence(), 0, newSeq, 0, edgeGeom.getNumPoints());
-					edgeGeom = gf.createLineString(newSeq);
-				}
-				if(targetEnvPoly == null || targetEnvPoly.intersects(edgeGeom)) {
-					edges.add(new HydroEdge(edgeGeom, drainageId, waterSide));
+			Geometry targetPoly = targetEnvPoly;
+			List<HydroEdge> edges = dataSource.readObjects(CatchmentDelineatorDataSource.HYDRO_EDGE_LAYER, bufferedEnv, null, 
+					new Function<SimpleFeature, HydroEdge>() {
+
+				@Override
+				public HydroEdge apply(SimpleFeature edge) {
+					LineString edgeGeom = (LineString) edge.getDefaultGeometry();
+					Integer drainageId = (Integer)edge.getAttribute("drainageId");
+					WaterSide waterSide = WaterSide.convert((String)edge.getAttribute("waterSide"));
+					// ignore edges with water on both sides
+					if(waterSide == WaterSide.BOTH) return null; 
+					if(edgeGeom.getCoordinate() instanceof CoordinateXY) {
+						CoordinateSequence newSeq = PackedCoordinateSequenceFactory.DOUBLE_FACTORY.create(edgeGeom.getNumPoints(), 3);
+						CoordinateSequences.copy(edgeGeom.getCoordinateSequence(), 0, newSeq, 0, edgeGeom.getNumPoints());
+						edgeGeom = gf.createLineString(newSeq);
+					}
+					if(targetPoly == null || targetPoly.intersects(edgeGeom)) {
+						return new HydroEdge(edgeGeom, drainageId, waterSide);
+					}
+					return null;
 				}
-			}
-			edgeReader.close();
+				
+			});
 
 			stats.reportStatus(logger, "loaded " + edges.size() + " hydro edges.");
 			return edges;
@@ -212,19 +247,12 @@ public class DataManager {
 		}
 	}
 	
-	public synchronized List<Geometry> getFlowpaths() {
+	public List<Geometry> getFlowpaths() {
 		ProcessStatistics stats = new ProcessStatistics();
 		stats.reportStatus(logger, "loading flowpaths");
 		try {
-			List<Geometry> flowpaths = new ArrayList<Geometry>();
-
-			SimpleFeatureReader fpReader = dataSource.query(Layer.EFLOWPATHS, dataSource.getEFlowpathTypeFilter(EfType.REACH));
-			while (fpReader.hasNext()) {
-				SimpleFeature fp = fpReader.next();
-				Geometry fpGeom = (Geometry) fp.getDefaultGeometry();
-				flowpaths.add(fpGeom);
-			}
-			fpReader.close();
+			List<Geometry> flowpaths = dataSource.readObjects(Layer.EFLOWPATHS.getLayerName(), null, 
+					dataSource.getEFlowpathTypeFilter(EfType.REACH), f -> (Geometry) f.getDefaultGeometry());
 			stats.reportStatus(logger, "loaded " + flowpaths.size() + " flowpaths.");
 			return flowpaths;
 		} catch(IOException ioe) {
@@ -232,20 +260,21 @@ public class DataManager {
 		}
 	}
 	
-	public synchronized List<Catchment> getWaterbodies() {
+	public List<Catchment> getWaterbodies() {
 		ProcessStatistics stats = new ProcessStatistics();
 		stats.reportStatus(logger, "loading waterbodies");
 		try {
-			List<Catchment> waterbodies = new ArrayList<Catchment>();
-			SimpleFeatureReader wbReader = dataSource.query(Layer.ECATCHMENTS, dataSource.getECatchmentTypeFilter(EcType.WATER));
-			while (wbReader.hasNext()) {
-				SimpleFeature wb = wbReader.next();
-				String internalId = (String) wb.getAttribute(ChyfDataSource.findAttribute(wb.getFeatureType(), ChyfAttribute.INTERNAL_ID));
-				Polygon p = ChyfDataSource.getPolygon(wb);
+			List<Catchment> waterbodies = dataSource.readObjects(Layer.ECATCHMENTS.getLayerName(), null, 
+					dataSource.getECatchmentTypeFilter(EcType.WATER), new Function<SimpleFeature, Catchment>() {
+
+				@Override
+				public Catchment apply(SimpleFeature wb) {
+					String internalId = (String) wb.getAttribute(ChyfDataSource.findAttribute(wb.getFeatureType(), ChyfAttribute.INTERNAL_ID));
+					Polygon p = ChyfDataSource.getPolygon(wb);
+					return new Catchment(internalId, EcType.WATER.getChyfValue(), p);
+				}
 				
-				waterbodies.add(new Catchment(internalId, EcType.WATER.getChyfValue(), p));
-			}
-			wbReader.close();
+			});
 			stats.reportStatus(logger, "loaded " + waterbodies.size() + " waterbodies.");
 			return waterbodies;
 		} catch(IOException ioe) {
@@ -253,20 +282,12 @@ public class DataManager {
 		}
 	}
 
-	public synchronized List<Geometry> getShorelines() {
+	public List<Geometry> getShorelines() {
 		ProcessStatistics stats = new ProcessStatistics();
 		stats.reportStatus(logger, "loading shorelines");
 		try {
-			List<Geometry> coastlines = new ArrayList<Geometry>();
-			SimpleFeatureReader clReader = dataSource.query(Layer.SHORELINES);
-			if(clReader != null) {
-				while (clReader.hasNext()) {
-					SimpleFeature cl = clReader.next();
-					Geometry clGeom = (Geometry) cl.getDefaultGeometry();
-					coastlines.add(clGeom);
-				}
-				clReader.close();
-			}
+			List<Geometry> coastlines = dataSource.readObjects(Layer.SHORELINES.getLayerName(), null, null, 
+					f -> (Geometry) f.getDefaultGeometry());
 			stats.reportStatus(logger, "loaded " + coastlines.size() + " shorelines.");
 			return coastlines;
 		} catch(IOException ioe) {
@@ -279,6 +300,14 @@ public class DataManager {
 		stats.reportStatus(logger, "loading all watershed boundaries");
 		try {
 			List<WatershedBoundaryEdge> boundaryEdges = new ArrayList<WatershedBoundaryEdge>();
+			if(boundaryEdgeDir != null) {
+				BoundaryEdgeFile.readAll(boundaryEdgeDir, gf, boundaryEdges::add);
+				if(boundaryEdges.isEmpty()) {
+					throw new RuntimeException("No Watershed Boundaries have been defined; Have you provided valid data, including DEM coverage?");
+				}
+				stats.reportStatus(logger, "loaded " + boundaryEdges.size() + " watershed boundary edges.");
+				return boundaryEdges;
+			}
 			SimpleFeatureReader wbReader = dataSource.query(CatchmentDelineatorDataSource.WATERSHED_BOUNDARY_LAYER, null, null);
 			if(wbReader == null) {
 				throw new RuntimeException("No Watershed Boundaries have been defined; Have you provided valid data, including DEM coverage?");
@@ -334,6 +363,25 @@ public class DataManager {
 		}
 	}
 
+	/**
+	 * Saves the watershed boundary edges generated for a block, either to the
+	 * block's binary edge file or to the geopackage. Binary block files are
+	 * independent, so blocks may write them concurrently.
+	 */
+	public void writeWatershedBoundaries(DataBlock block, Collection<WatershedBoundaryEdge> watershedBoundaries) {
+		if(boundaryEdgeDir != null) {
+			try {
+				BoundaryEdgeFile.write(BoundaryEdgeFile.getBlockFile(boundaryEdgeDir, block), watershedBoundaries, gf.getPrecisionModel());
+			} catch(IOException ioe) {
+				throw new RuntimeException(ioe);
+			}
+			if(!debugBoundaryEdges) {
+				return;
+			}
+		}
+		writeWatershedBoundaries(watershedBoundaries);
+	}
+
 	public synchronized void writeWatershedBoundaries(Collection<WatershedBoundaryEdge> watershedBoundaries) {
 		dataSource.createLayer(getWatershedBoundaryEdgeFT(), workingExtent);
 		dataSource.writeObjects(CatchmentDelineatorDataSource.WATERSHED_BOUNDARY_LAYER, watershedBoundaries, new BiConsumer<WatershedBoundaryEdge,SimpleFeature>() {
@@ -432,4 +480,8 @@ public class DataManager {
 		workingExtent = new ReferencedEnvelope(overallEnv, crs);
 	}
 
+	public void close() {
+		dataSource.close();
+	}
+
 }
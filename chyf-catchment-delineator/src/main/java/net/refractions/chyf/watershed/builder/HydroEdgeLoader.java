@@ -15,40 +15,56 @@
  *******************************************************************************/
 package net.refractions.chyf.watershed.builder;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 
 import org.locationtech.jts.algorithm.Orientation;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.LineSegment;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.Polygon;
-import org.locationtech.jts.util.Assert;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.refractions.chyf.util.PackedKeyIndex;
 import net.refractions.chyf.util.ProcessStatistics;
 import net.refractions.chyf.watershed.model.HydroEdge;
 import net.refractions.chyf.watershed.model.WaterSide;
 
+/**
+ * Loads the flowpaths, waterbody boundaries and coastlines as hydro edges, and
+ * assigns drainage ids to chains of water boundary segments.
+ * <p>
+ * Water boundaries are held as a compact graph: each distinct endpoint
+ * coordinate is hashed to an int node id once, and each distinct segment is
+ * stored as a pair of node ids in primitive arrays. Drainage ids are assigned
+ * using union-find over segments which share a non-node endpoint, so no
+ * per-segment objects or deep traversals are needed.
+ */
 public class HydroEdgeLoader {
 	static final Logger logger = LoggerFactory.getLogger(HydroEdgeLoader.class);
+	private static final WaterSide[] SIDES = WaterSide.values();
+	
 	private DataManager dm;
 	private GeometryFactory gf;
 	private int nextDrainageId = 1;
 	
-	private Map<LineSegment, HydroChainLink> segmentMap = new HashMap<LineSegment, HydroChainLink>();
-	private Set<Coordinate> nodeSet = new HashSet<Coordinate>();
+	// endpoint coordinate -> node id
+	private PackedKeyIndex nodeIndex = new PackedKeyIndex();
+	// nodes which must separate drainages
+	private BitSet isNode = new BitSet();
+	// (smaller node id, larger node id) -> segment id
+	private PackedKeyIndex segIndex = new PackedKeyIndex();
+	// segment endpoints (as first loaded), water side and drainage id, indexed by segment id
+	private int[] segP0 = new int[1024];
+	private int[] segP1 = new int[1024];
+	private byte[] segSide = new byte[1024];
+	private int[] segDrainageId;
 	
 	public HydroEdgeLoader(DataManager dm) {
 		this.dm = dm;
@@ -74,8 +90,8 @@ public class HydroEdgeLoader {
 					overallEnv.expandToInclude(ls.getEnvelopeInternal());
 					HydroEdge edge = new HydroEdge(ls, nextDrainageId++, WaterSide.NEITHER);
 					edges.add(edge);
-					nodeSet.add(ls.getCoordinateN(0));
-					nodeSet.add(ls.getCoordinateN(ls.getNumPoints() - 1));
+					isNode.set(nodeIndex.add(ls.getCoordinateN(0)));
+					isNode.set(nodeIndex.add(ls.getCoordinateN(ls.getNumPoints() - 1)));
 				} else {
 					logger.warn("non-Linestring encountered in flowpaths");
 				}
@@ -132,127 +148,122 @@ public class HydroEdgeLoader {
 		dm.setWorkingExtent(overallEnv);
 
 		assignIds();
-		for(HydroChainLink link : segmentMap.values()) {
-			edges.add(link.edge);
-		}
+		createSegmentEdges(edges);
+		logger.info("Hydro graph: " + nodeIndex.size() + " nodes, " + segIndex.size() + " segments");
 		dm.writeHydroEdges(edges);
 		stats.reportStatus(logger, "Hydro edges loaded and drainageIds assigned.");
 		return edges;
 	}
 	
 	public void addSegments(LineString line, WaterSide side) {
-		Coordinate[] pts = line.getCoordinates();
-		for (int i = 0; i < pts.length - 1; i++) {
-			LineSegment seg = new LineSegment(pts[i], pts[i + 1]);
-			LineSegment normSeg = new LineSegment(pts[i], pts[i + 1]);
-			normSeg.normalize();
-			HydroChainLink link = segmentMap.get(normSeg);
-			if (link != null) {
+		CoordinateSequence seq = line.getCoordinateSequence();
+		int prev = nodeIndex.add(seq.getX(0), seq.getY(0));
+		for (int i = 1; i < seq.size(); i++) {
+			int curr = nodeIndex.add(seq.getX(i), seq.getY(i));
+			int segCount = segIndex.size();
+			int segId = segIndex.add(Math.min(prev, curr), Math.max(prev, curr));
+			if (segId < segCount) {
 				// this is a duplicate segment, that means it is a water on both sides 
-				link.edge.setWaterSide(WaterSide.BOTH);
-				//segmentMap.remove(normSeg);
+				segSide[segId] = (byte) WaterSide.BOTH.ordinal();
 				// the place where the shared edge meets the water on 1-side edges counts as a node
 				// ie. we want a watershed boundary at these locations
-				nodeSet.add(normSeg.p0);
-				nodeSet.add(normSeg.p1);
+				isNode.set(prev);
+				isNode.set(curr);
 			} else {
-				segmentMap.put(normSeg, new HydroChainLink(seg, new HydroEdge(seg.toGeometry(gf), null, side)));
+				if (segId == segP0.length) {
+					segP0 = Arrays.copyOf(segP0, 2 * segId);
+					segP1 = Arrays.copyOf(segP1, 2 * segId);
+					segSide = Arrays.copyOf(segSide, 2 * segId);
+				}
+				segP0[segId] = prev;
+				segP1[segId] = curr;
+				segSide[segId] = (byte) side.ordinal();
 			}
+			prev = curr;
 		}
 	}
 	
 	public void assignIds() {
-		// count edges incident to coordinates
-		Map<Coordinate,Integer> coordCountMap = new HashMap<Coordinate,Integer>();
-		for(HydroChainLink link : segmentMap.values()) {
-			for(Coordinate c : new Coordinate[] {link.seg.p0, link.seg.p1}) {
-				if(!nodeSet.contains(c)) {
-					coordCountMap.merge(c, 1, Integer::sum);
-				}
-			}
+		int nNodes = nodeIndex.size();
+		int nSegs = segIndex.size();
+		
+		// count segments incident to coordinates
+		int[] degree = new int[nNodes];
+		for (int s = 0; s < nSegs; s++) {
+			degree[segP0[s]]++;
+			degree[segP1[s]]++;
 		}
-		// any coordinate with more than 2 incident lines should be a node 
-		for(Entry<Coordinate, Integer> entry: coordCountMap.entrySet()) {
-			if(entry.getValue() > 2) {
-				nodeSet.add(entry.getKey());
+		// any coordinate with more than 2 incident segments should be a node 
+		for (int n = 0; n < nNodes; n++) {
+			if (degree[n] > 2) {
+				isNode.set(n);
 			}
 		}
-		// use a map of coordinates to link up HydroChainLinks
-		Map<Coordinate,HydroChainLink> coordMap = new HashMap<Coordinate,HydroChainLink>();
-		for(HydroChainLink link : segmentMap.values()) {
-			for(Coordinate c : new Coordinate[] {link.seg.p0, link.seg.p1}) {
-				if(!nodeSet.contains(c)) {
-					HydroChainLink joiner = coordMap.get(c);
-					if(joiner == null) {
-						coordMap.put(c, link);
-					} else {
-						link.connect(joiner);
-					}
+		
+		// join segments which meet at a non-node coordinate into chains
+		int[] parent = new int[nSegs];
+		for (int s = 0; s < nSegs; s++) {
+			parent[s] = s;
+		}
+		// reuse the degree array to hold the first segment seen at each coordinate
+		int[] firstSeg = degree;
+		Arrays.fill(firstSeg, -1);
+		for (int s = 0; s < nSegs; s++) {
+			for (int end = 0; end < 2; end++) {
+				int n = end == 0 ? segP0[s] : segP1[s];
+				if (isNode.get(n)) continue;
+				if (firstSeg[n] < 0) {
+					firstSeg[n] = s;
+				} else {
+					union(parent, s, firstSeg[n]);
 				}
 			}
 		}
-		for(HydroChainLink link : segmentMap.values()) {
-			if(link.edge.getDrainageID() == null 
-					&& link.edge.getWaterSide() != WaterSide.BOTH) {
-				HydroChainLink.assignDrainageId(link, nextDrainageId++);
+		
+		// assign one drainage id per chain; segments with water on both sides are 
+		// bounded by nodes, so are never part of a chain and get no drainage id
+		int[] chainId = new int[nSegs];
+		segDrainageId = new int[nSegs];
+		for (int s = 0; s < nSegs; s++) {
+			if (segSide[s] == WaterSide.BOTH.ordinal()) continue;
+			int root = find(parent, s);
+			if (chainId[root] == 0) {
+				chainId[root] = nextDrainageId++;
 			}
+			segDrainageId[s] = chainId[root];
 		}
 	}
-
-}
-	
-class HydroChainLink {
-	LineSegment seg;
-	HydroEdge edge;
-	private HydroChainLink left, right;
-	
-	HydroChainLink(LineSegment seg, HydroEdge edge) {
-		this.seg = seg;
-		this.edge = edge;
-	}
 	
-	static void assignDrainageId(HydroChainLink firstLink, Integer id) {
-		Deque<HydroChainLink> stack = new ArrayDeque<HydroChainLink>();
-		stack.addFirst(firstLink);
-		while(!stack.isEmpty()) {
-			HydroChainLink link = stack.removeFirst();
-			if(id.equals(link.edge.getDrainageID())) continue;
-			Assert.isTrue(link.edge.getDrainageID() == null);
-			link.edge.setDrainageID(id);
-			if(link.left != null) {
-				stack.add(link.left);
-			} 
-			if(link.right != null) {
-				stack.add(link.right);
-			}
+	private void createSegmentEdges(List<HydroEdge> edges) {
+		for (int s = 0; s < segIndex.size(); s++) {
+			LineString seg = gf.createLineString(new Coordinate[] { 
+					new Coordinate(nodeIndex.getX(segP0[s]), nodeIndex.getY(segP0[s])),
+					new Coordinate(nodeIndex.getX(segP1[s]), nodeIndex.getY(segP1[s])) });
+			Integer drainageId = segDrainageId[s] == 0 ? null : segDrainageId[s];
+			edges.add(new HydroEdge(seg, drainageId, SIDES[segSide[s]]));
 		}
 	}
 	
-	void connect(HydroChainLink joiner) {
-		if(seg.p0.equals(joiner.seg.p0)) {
-			Assert.isTrue(left == null);
-			left = joiner;
-			Assert.isTrue(joiner.left == null);
-			joiner.left = this;
-		} else if(seg.p0.equals(joiner.seg.p1)) {
-			Assert.isTrue(left == null);
-			left = joiner;
-			Assert.isTrue(joiner.right == null);
-			joiner.right = this;
-		}  else if(seg.p1.equals(joiner.seg.p0)) {
-			Assert.isTrue(right == null);
-			right = joiner;
-			Assert.isTrue(joiner.left == null);
-			joiner.left = this;
-		} else if(seg.p1.equals(joiner.seg.p1)) {
-			Assert.isTrue(right == null);
-			right = joiner;
-			Assert.isTrue(joiner.right == null);
-			joiner.right = this;
+	private static int find(int[] parent, int s) {
+		while (parent[s] != s) {
+			// path halving
+			parent[s] = parent[parent[s]];
+			s = parent[s];
 		}
+		return s;
 	}
 	
-	public String toString() {
-		return edge.getDrainageID() + ":" + seg.toString();
+	private static void union(int[] parent, int a, int b) {
+		int ra = find(parent, a);
+		int rb = find(parent, b);
+		if (ra != rb) {
+			// keep the smaller id as the root, so chain ids follow load order
+			if (ra < rb) {
+				parent[rb] = ra;
+			} else {
+				parent[ra] = rb;
+			}
+		}
 	}
+
 }
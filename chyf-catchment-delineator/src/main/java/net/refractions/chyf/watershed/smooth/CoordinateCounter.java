@@ -14,54 +14,95 @@
  * limitations under the License.
  *******************************************************************************/
 
-package net.refractions.chyf.watershed.smooth;
 
-import java.util.Map;
-import java.util.TreeMap;
+package net.refractions.chyf.watershed.smooth;
 
 import org.locationtech.jts.geom.Coordinate;
 
 /**
  * Counts the number of times each value occurs in a collection of
- * {@link Coordinate}s.
+ * {@link Coordinate}s. Coordinates are compared in 2D.
+ * <p>
+ * Distinct coordinates are stored in an open-addressing hash table over packed
+ * XY ordinates, which avoids allocating a map entry and counter object per
+ * node.
  * 
  * @author Martin Davis
  */
 class CoordinateCounter {
-	public class Counter {
-		int count;
 
-		public Counter() {
-			count = 0;
-		}
+	private static final int INITIAL_CAPACITY = 64;
 
-		public void increment() {
-			count++;
-		}
+	// packed x,y of each slot
+	private double[] keys;
+	// occurrence count of each slot; 0 means the slot is empty
+	private int[] counts;
+	private int size = 0;
+
+	public CoordinateCounter() {
+		keys = new double[2 * INITIAL_CAPACITY];
+		counts = new int[INITIAL_CAPACITY];
+	}
+
+	public void addPoint(Coordinate p) {
+		addPoint(p.x, p.y);
+	}
 
-		public int getCount() {
-			return count;
+	public void addPoint(double x, double y) {
+		if (2 * (size + 1) > counts.length) {
+			rehash();
 		}
+		int slot = findSlot(keys, counts, x + 0.0, y + 0.0);
+		if (counts[slot] == 0) {
+			keys[2 * slot] = x + 0.0;
+			keys[2 * slot + 1] = y + 0.0;
+			size++;
+		}
+		counts[slot]++;
 	}
 
-	private Map<Coordinate, Counter> ptMap = new TreeMap<Coordinate, Counter>();
+	public int getCount(Coordinate p) {
+		return getCount(p.x, p.y);
+	}
 
-	public CoordinateCounter() {
+	public int getCount(double x, double y) {
+		return counts[findSlot(keys, counts, x + 0.0, y + 0.0)];
 	}
 
-	public void addPoint(Coordinate p) {
-		Counter counter = ptMap.get(p);
-		if (counter == null) {
-			counter = new Counter();
-			ptMap.put(p, counter);
+	/**
+	 * Finds the slot holding the given ordinates, or the empty slot where they
+	 * would be inserted. Adding 0.0 to the ordinates normalizes -0.0, so that
+	 * equality matches {@link Coordinate#equals2D(Coordinate)}.
+	 */
+	private static int findSlot(double[] keys, int[] counts, double x, double y) {
+		int mask = counts.length - 1;
+		int slot = hash(x, y) & mask;
+		while (counts[slot] != 0 && (keys[2 * slot] != x || keys[2 * slot + 1] != y)) {
+			slot = (slot + 1) & mask;
 		}
-		counter.increment();
+		return slot;
 	}
 
-	public int getCount(Coordinate p) {
-		Counter counter = (Counter) ptMap.get(p);
-		if (counter == null)
-			return 0;
-		return counter.getCount();
+	private static int hash(double x, double y) {
+		long bits = Double.doubleToLongBits(x) * 31 + Double.doubleToLongBits(y);
+		int h = (int) (bits ^ (bits >>> 32));
+		return h ^ (h >>> 16);
+	}
+
+	private void rehash() {
+		double[] oldKeys = keys;
+		int[] oldCounts = counts;
+		keys = new double[2 * oldKeys.length];
+		counts = new int[2 * oldCounts.length];
+		for (int i = 0; i < oldCounts.length; i++) {
+			if (oldCounts[i] == 0)
+				continue;
+			double x = oldKeys[2 * i];
+			double y = oldKeys[2 * i + 1];
+			int slot = findSlot(keys, counts, x, y);
+			keys[2 * slot] = x;
+			keys[2 * slot + 1] = y;
+			counts[slot] = oldCounts[i];
+		}
 	}
 }
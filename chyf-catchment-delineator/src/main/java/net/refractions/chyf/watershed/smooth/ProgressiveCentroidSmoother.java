@@ -17,16 +17,18 @@
 package net.refractions.chyf.watershed.smooth;
 
 
-import org.locationtech.jts.algorithm.Angle;
-import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.PrecisionModel;
-import org.locationtech.jts.geom.Triangle;
+
+import net.refractions.chyf.util.smooth.CoordinateSequenceUtil;
+import net.refractions.chyf.util.smooth.PackedCentroidSmoother;
 
 /**
  * Smooths a line using centroid smoothing in an progressive fashion, which allows skipping
  * smoothing some vertices. It may be necessary to skip smoothing some vertices if the smoothed line
  * violates topological conditions.
+ * <p>
+ * Vertices are held in packed XY buffers, so generating and retracting a step does not allocate.
  * 
  * @author Martin Davis
  * @version 1.0
@@ -39,8 +41,8 @@ public class ProgressiveCentroidSmoother {
 
     private LineString         line;
     private PrecisionModel     precModel;
-    private final Coordinate[] basePts;
-    private Coordinate[]       smoothedPts;
+    private final double[]     basePts;
+    private final double[]     smoothedPts;
     private final int          lastIndex;
     private int                currIndex      = 0;
     private int                level          = 1;
@@ -48,13 +50,12 @@ public class ProgressiveCentroidSmoother {
     public ProgressiveCentroidSmoother(LineString line, PrecisionModel precModel) {
         this.line = line;
         this.precModel = precModel;
-        basePts = line.getCoordinates();
+        basePts = CoordinateSequenceUtil.pack2D(line.getCoordinateSequence());
         // smooth interior points of line only
         currIndex = 1;
-        lastIndex = basePts.length - 2;
+        lastIndex = basePts.length / 2 - 2;
         // make smoothed equal to original to start
-        smoothedPts = new Coordinate[basePts.length];
-        System.arraycopy(basePts, 0, smoothedPts, 0, basePts.length);
+        smoothedPts = basePts.clone();
     }
 
     /**
@@ -68,7 +69,7 @@ public class ProgressiveCentroidSmoother {
     }
 
     public LineString getSmoothedLine() {
-        LineString currentLine = line.getFactory().createLineString(smoothedPts);
+        LineString currentLine = CoordinateSequenceUtil.toLineString(smoothedPts, line.getFactory());
         // System.out.println(currentLine);
         return currentLine;
     }
@@ -101,27 +102,31 @@ public class ProgressiveCentroidSmoother {
     }
 
     private void smoothPoint(int i) {
-        smoothedPts[i] = getSmoothedPoint(basePts[i - 1], basePts[i], basePts[i + 1]);
-    }
-
-    private Coordinate getSmoothedPoint(Coordinate p0, Coordinate p1, Coordinate p2) {
         /**
          * Uses simple centroid smoothing
          */
-        double segAngle = Angle.angleBetween(p0, p1, p2);
+        double x0 = basePts[2 * i - 2];
+        double y0 = basePts[2 * i - 1];
+        double x1 = basePts[2 * i];
+        double y1 = basePts[2 * i + 1];
+        double x2 = basePts[2 * i + 2];
+        double y2 = basePts[2 * i + 3];
+        double segAngle = PackedCentroidSmoother.angleBetween(x0, y0, x1, y1, x2, y2);
         if (segAngle > maxSmoothAngle) {
             // don't smooth
-            return p1;
+            smoothedPts[2 * i] = x1;
+            smoothedPts[2 * i + 1] = y1;
+            return;
         }
-        Coordinate centroid = Triangle.centroid(p0, p1, p2);
-        precModel.makePrecise(centroid);
-        return centroid;
+        smoothedPts[2 * i] = precModel.makePrecise((x0 + x1 + x2) / 3.0);
+        smoothedPts[2 * i + 1] = precModel.makePrecise((y0 + y1 + y2) / 3.0);
     }
 
     /**
      * Retracts the previous operation, and readies the generator to proceed down a different path
      */
     public void retract() {
-        smoothedPts[currIndex] = basePts[currIndex];
+        smoothedPts[2 * currIndex] = basePts[2 * currIndex];
+        smoothedPts[2 * currIndex + 1] = basePts[2 * currIndex + 1];
     }
 }
\ No newline at end of file
@@ -16,8 +16,10 @@
 
 package net.refractions.chyf.watershed.smooth;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.CoordinateSequence;
@@ -30,6 +32,7 @@ import org.locationtech.jts.index.SpatialIndex;
 import org.locationtech.jts.index.strtree.STRtree;
 import org.locationtech.jts.util.Assert;
 
+import net.refractions.chyf.util.smooth.CoordinateSequenceUtil;
 import net.refractions.chyf.watershed.WatershedSettings;
 import net.refractions.chyf.watershed.model.HydroEdge;
 import net.refractions.chyf.watershed.model.WatershedBoundaryEdge;
@@ -46,6 +49,12 @@ import net.refractions.chyf.watershed.model.WatershedBoundaryEdge;
  * </ul>
  * It is not 100% essential that the original input also satisfy these rules,
  * but the smoother will generally only satisfy them if that is the case.
+ * <p>
+ * The standard (two pass) smoothing of an edge depends only on the edge's own
+ * geometry, so the candidate smoothed lines for all edges are computed up front
+ * in parallel, as packed coordinate buffers. The topology checks, which depend on
+ * the edges already accepted, are then applied sequentially in input order, so
+ * the result is the same as a fully sequential run.
  * 
  * @author Martin Davis
  * @version 1.0
@@ -143,9 +152,19 @@ public class WatershedEdgeCoverageSmoother {
 	}
 
 	private void smooth(Collection<WatershedBoundaryEdge> wbEdges) {
+		List<WatershedBoundaryEdge> toSmooth = new ArrayList<>();
 		for (WatershedBoundaryEdge wbe : wbEdges) {
 			if (wbe.isSmoothable())
-				smooth(wbe);
+				toSmooth.add(wbe);
+		}
+		double[][][] candidates = new double[toSmooth.size()][][];
+		IntStream.range(0, toSmooth.size()).parallel()
+				.forEach(i -> candidates[i] = computeStandardCandidates(toSmooth.get(i)));
+
+		for (int i = 0; i < toSmooth.size(); i++) {
+			smooth(toSmooth.get(i), candidates[i]);
+			// release the buffers as soon as they are no longer needed
+			candidates[i] = null;
 		}
 	}
 
@@ -193,8 +212,8 @@ public class WatershedEdgeCoverageSmoother {
 		}
 	}
 
-	private void smooth(WatershedBoundaryEdge wbe) {
-		LineString smoothLine = smoothStandard(wbe);
+	private void smooth(WatershedBoundaryEdge wbe, double[][] candidates) {
+		LineString smoothLine = smoothStandard(wbe, candidates);
 		if (smoothLine == null) {
 			// otherwise, try incremental smoothing to smooth at least some of the line
 			smoothLine = smoothIncrementally(wbe);
@@ -205,31 +224,44 @@ public class WatershedEdgeCoverageSmoother {
 	}
 
 	/**
-	 * Performs standard, non-topologically-aware smoothing on an edge. Smoothing is
-	 * performed twice, checking topological consistency after each time. This
+	 * Computes the standard, non-topologically-aware smoothing of an edge. Smoothing
+	 * is performed twice, and both results are returned so that the topological
+	 * consistency of each can be checked. This only reads the edge's own geometry
+	 * and the node degree counter, so may be run concurrently for different edges.
+	 * 
+	 * @param wbe
+	 * @return the packed coordinates of the first and second smoothing passes
+	 */
+	private double[][] computeStandardCandidates(WatershedBoundaryEdge wbe) {
+		boolean isIsolatedRing = isIsolatedRing(wbe.getGeometry());
+		WatershedEdgeSmoother smoother = new WatershedEdgeSmoother(wbe.getGeometry(), wbe.getRespectedVertex(),
+				isIsolatedRing);
+		double[] pass1 = smoother.smoothPacked();
+		double[] pass2 = smoother.smoothPacked();
+		return new double[][] { pass1, pass2 };
+	}
+
+	/**
+	 * Checks the standard smoothing of an edge. Checking both smoothing passes
 	 * should result in detecting any situations where the full smoothing causes the
 	 * boundary to "skip over" the hydro feature it encloses (e.g. when a small lake
 	 * feature is very close to a section of boundary with a high degree of
 	 * curvature).
 	 * 
 	 * @param wbe
+	 * @param candidates the packed results of the smoothing passes
 	 * @return the smoothed edge
 	 * @return null if the smoothing fails the topology constraints
 	 */
-	private LineString smoothStandard(WatershedBoundaryEdge wbe) {
-		boolean isIsolatedRing = isIsolatedRing(wbe.getGeometry());
-		WatershedEdgeSmoother smoother = new WatershedEdgeSmoother(wbe.getGeometry(), wbe.getRespectedVertex(),
-				isIsolatedRing);
-
-		LineString smoothLine = smoother.smooth();
-		if (!isTopologyPreserved(wbe, smoothLine)) {
-			return null;
-		}
-		LineString smooth2Line = smoother.smooth();
-		if (!isTopologyPreserved(wbe, smooth2Line)) {
-			return null;
+	private LineString smoothStandard(WatershedBoundaryEdge wbe, double[][] candidates) {
+		LineString smoothLine = null;
+		for (double[] candidate : candidates) {
+			smoothLine = CoordinateSequenceUtil.toLineString(candidate, wbe.getGeometry().getFactory());
+			if (!isTopologyPreserved(wbe, smoothLine)) {
+				return null;
+			}
 		}
-		return smooth2Line;
+		return smoothLine;
 	}
 
 	/**
@@ -16,16 +16,20 @@
 
 package net.refractions.chyf.watershed.smooth;
 
-import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LineString;
 
-import net.refractions.chyf.util.smooth.CentroidSmoother;
+import net.refractions.chyf.util.smooth.CoordinateSequenceUtil;
+import net.refractions.chyf.util.smooth.PackedCentroidSmoother;
 import net.refractions.chyf.watershed.WatershedSettings;
 
 /**
  * Smoothes a single generated watershed boundary edge, applying some additional heuristics in some
  * cases. Supports repeated smoothing, which allows testing for topological constraint violation at
  * each step of the smoothing process.
+ * <p>
+ * The edge coordinates are held in a packed XY buffer which is smoothed in place, so repeated
+ * smoothing does not allocate intermediate geometries.
  * 
  * @author Martin Davis
  */
@@ -44,18 +48,6 @@ public class WatershedEdgeSmoother {
     // return smoother.getGeometry();
     // }
 
-    private Geometry smoothCentroid(Geometry g, boolean[] isVertexRespected,
-            boolean isRingNodeSmoothed) {
-        CentroidSmoother smoother = new CentroidSmoother(
-            g,
-            g.getPrecisionModel());
-        smoother.setMaximumSmoothAngle(Math.toRadians(WatershedSettings.MAX_SMOOTH_ANGLE));
-        if (isVertexRespected != null)
-            smoother.setRespectedVertices(isVertexRespected);
-        smoother.setSmoothRingEnd(isRingNodeSmoothed);
-        return smoother.getGeometry();
-    }
-
     // /**
     // * Applies Centroid Smoothing twice.
     // *
@@ -82,16 +74,22 @@ public class WatershedEdgeSmoother {
      * SlideAverageSmoother.smooth(den, 13); return slide; }
      */
 
-    private LineString line;
-    private boolean[]  isVertexRespected;
-    private boolean    isIsolatedRing;
+    private GeometryFactory        factory;
+    private double[]               xy;
+    private boolean                isClosed;
+    private PackedCentroidSmoother smoother;
 
     public WatershedEdgeSmoother(LineString line, boolean[] isVertexRespected,
             boolean isIsolatedRing) {
-        this.line = line;
-        this.isVertexRespected = isVertexRespected;
-        this.isIsolatedRing = isIsolatedRing;
+        this.factory = line.getFactory();
+        this.xy = CoordinateSequenceUtil.pack2D(line.getCoordinateSequence());
+        this.isClosed = line.isClosed();
 
+        smoother = new PackedCentroidSmoother(line.getPrecisionModel());
+        smoother.setMaximumSmoothAngle(Math.toRadians(WatershedSettings.MAX_SMOOTH_ANGLE));
+        if (isVertexRespected != null)
+            smoother.setRespectedVertices(isVertexRespected);
+        smoother.setSmoothRingEnd(isIsolatedRing);
     }
 
     /**
@@ -101,44 +99,38 @@ public class WatershedEdgeSmoother {
      * @return a smoother version of the edge line
      */
     public LineString smooth() {
-        line = computeSmoothedLine(line);
-        return line;
+        smoothInPlace();
+        return CoordinateSequenceUtil.toLineString(xy, factory);
     }
 
-    public LineString computeSmoothedLine(LineString g) {
-        Geometry gSmooth = g;
-        if (!isSmoothable(g))
-            return g;
-
-        // simplify first, to remove any nearly collinear vertices
-        // MD - probably not very effective?
-        // Geometry gSimp = DouglasPeuckerSimplifier.simplify(g, WatershedSettings.SIMPLIFY_TOL);
-        // gSmooth = smoothCornerClip(gSimp);
-
-        gSmooth =
-        // g; // no smoothing!
-        smoothCentroid(g, isVertexRespected, isIsolatedRing); // seems to provide best smoothing
-        // smoothCentroidDensifyCentroid(g);
-
-        // smoothCornerClip(gSimp);
-        // smoothMidDensify(g);
-        // smoothMiddDensifySlide(g);
-        // smoothDensifySlide(g);
+    /**
+     * Smoothes the current smoothed line, returning the result as a packed XY buffer. The returned
+     * buffer is a copy and is not affected by further smoothing.
+     * 
+     * @return a smoother version of the edge line, as a packed XY buffer
+     */
+    public double[] smoothPacked() {
+        smoothInPlace();
+        return xy.clone();
+    }
 
-        return (LineString) gSmooth;
+    private void smoothInPlace() {
+        // smoothCentroid seems to provide best smoothing
+        if (isSmoothable())
+            smoother.smooth(xy);
     }
 
-    private static boolean isSmoothable(LineString g) {
-        if (g.getLength() < WatershedSettings.MIN_LEN_TO_SMOOTH)
+    private boolean isSmoothable() {
+        if (CoordinateSequenceUtil.length2D(xy) < WatershedSettings.MIN_LEN_TO_SMOOTH)
             return false;
 
         // don't smooth very simple lines
         // MD - no! This hurts more than it helps
         // if (g.getNumPoints() <= 3) return false;
-        int nPts = g.getNumPoints();
+        int nPts = xy.length / 2;
 
         // a closed line with 4 pts would collapse under centroid smoothing
-        if (g.isClosed() && nPts <= 4)
+        if (isClosed && nPts <= 4)
             return false;
 
         /**
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright 2020 Government of Canada
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *******************************************************************************/
+package net.refractions.chyf.watershed.builder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.PrecisionModel;
+
+import net.refractions.chyf.watershed.model.WatershedBoundaryEdge;
+
+class BoundaryEdgeFileTest {
+
+	@TempDir
+	Path dir;
+
+	private WatershedBoundaryEdge edge(GeometryFactory gf, int left, int right, Coordinate... pts) {
+		return new WatershedBoundaryEdge(gf.createLineString(pts), new boolean[pts.length],
+				new int[] { left, right }, false, false);
+	}
+
+	@Test
+	void testRoundTrip() throws Exception {
+		PrecisionModel pm = new PrecisionModel(1000);
+		GeometryFactory gf = new GeometryFactory(pm);
+		List<WatershedBoundaryEdge> edges = new ArrayList<>();
+		edges.add(edge(gf, 1, 2, new Coordinate(-1500000.125, 300000.5), new Coordinate(-1500001, 300002.25),
+				new Coordinate(-1499999.875, 300004)));
+		// hydro node endpoints are not rounded to the precision model
+		edges.add(edge(gf, 2, 3, new Coordinate(-1499999.875, 300004), new Coordinate(-1499990.5, 300010.001),
+				new Coordinate(-1499980.123456789, 300020.987654321)));
+		edges.add(edge(gf, 3, 1, new Coordinate(0.1 + 0.2, -0.3), new Coordinate(-1499980.123456789, 300020.987654321),
+				new Coordinate(12.345, -67.891)));
+
+		Path file = BoundaryEdgeFile.getBlockFile(dir, new DataBlock(7, null, BlockState.READY, null));
+		BoundaryEdgeFile.write(file, edges, pm);
+
+		List<WatershedBoundaryEdge> read = new ArrayList<>();
+		BoundaryEdgeFile.read(file, gf, read::add);
+
+		assertEquals(edges.size(), read.size());
+		for (int i = 0; i < edges.size(); i++) {
+			WatershedBoundaryEdge expected = edges.get(i);
+			WatershedBoundaryEdge actual = read.get(i);
+			assertEquals(expected.getRegionID(WatershedBoundaryEdge.LEFT), actual.getRegionID(WatershedBoundaryEdge.LEFT));
+			assertEquals(expected.getRegionID(WatershedBoundaryEdge.RIGHT), actual.getRegionID(WatershedBoundaryEdge.RIGHT));
+			LineString e = expected.getGeometry();
+			LineString a = actual.getGeometry();
+			assertEquals(e.getNumPoints(), a.getNumPoints());
+			for (int j = 0; j < e.getNumPoints(); j++) {
+				// exact, including the off-grid points
+				assertEquals(e.getCoordinateN(j).x, a.getCoordinateN(j).x, 0);
+				assertEquals(e.getCoordinateN(j).y, a.getCoordinateN(j).y, 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2020 Government of Canada
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *******************************************************************************/
+package net.refractions.chyf.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.locationtech.jts.geom.Coordinate;
+
+/**
+ * A hash grid of coordinates with associated values, used to find a stored
+ * coordinate within a snapping tolerance of a query coordinate in constant time.
+ * <p>
+ * The grid cells are the size of the tolerance, so a coordinate within the
+ * tolerance of a query coordinate is in the cell of the query coordinate or one
+ * of the eight cells around it. Cells are keyed in a {@link PackedKeyIndex} and
+ * the entries of each cell are kept as a linked list in primitive arrays.
+ * <p>
+ * A tolerance of 0 or less matches coordinates exactly, comparing in 2D as
+ * {@link Coordinate#equals2D(Coordinate)} does.
+ *
+ * @param <T> the type of value stored with each coordinate
+ */
+public class CoordinateGrid<T> {
+
+	private double tolerance;
+
+	private PackedKeyIndex cells = new PackedKeyIndex();
+	// first entry of each cell, indexed by cell id; -1 if none
+	private int[] cellHead = new int[64];
+
+	private List<Coordinate> coordinates = new ArrayList<>();
+	private List<T> values = new ArrayList<>();
+	// next entry in the same cell, indexed by entry; -1 if none
+	private int[] entryNext = new int[64];
+
+	/**
+	 * @param tolerance the snapping tolerance; 0 or less matches coordinates exactly
+	 */
+	public CoordinateGrid(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @return the number of coordinates in the grid
+	 */
+	public int size() {
+		return coordinates.size();
+	}
+
+	/**
+	 * Adds a coordinate to the grid. Coordinates already in the grid are not
+	 * checked; use {@link #find(Coordinate)} first to avoid duplicates.
+	 */
+	public void put(Coordinate c, T value) {
+		int cellCount = cells.size();
+		int cell = cells.add(cellX(c), cellY(c));
+		if (cell == cellCount) {
+			// new cell
+			if (cell == cellHead.length) {
+				cellHead = Arrays.copyOf(cellHead, 2 * cellHead.length);
+			}
+			cellHead[cell] = -1;
+		}
+		int entry = coordinates.size();
+		if (entry == entryNext.length) {
+			entryNext = Arrays.copyOf(entryNext, 2 * entryNext.length);
+		}
+		coordinates.add(c);
+		values.add(value);
+		entryNext[entry] = cellHead[cell];
+		cellHead[cell] = entry;
+	}
+
+	/**
+	 * Adds a coordinate to the grid unless a coordinate within the tolerance of it
+	 * is already present.
+	 * 
+	 * @return true if the coordinate was added
+	 */
+	public boolean add(Coordinate c, T value) {
+		if (findEntry(c) != -1) {
+			return false;
+		}
+		put(c, value);
+		return true;
+	}
+
+	/**
+	 * @return the value of the closest coordinate within the tolerance of the
+	 *         given coordinate, or null if there is none
+	 */
+	public T find(Coordinate c) {
+		int entry = findEntry(c);
+		return entry == -1 ? null : values.get(entry);
+	}
+
+	/**
+	 * @return true if there is a coordinate within the tolerance of the given
+	 *         coordinate
+	 */
+	public boolean contains(Coordinate c) {
+		return findEntry(c) != -1;
+	}
+
+	private int findEntry(Coordinate c) {
+		if (tolerance <= 0) {
+			int cell = cells.indexOf(cellX(c), cellY(c));
+			if (cell == -1) {
+				return -1;
+			}
+			for (int e = cellHead[cell]; e != -1; e = entryNext[e]) {
+				if (coordinates.get(e).equals2D(c)) {
+					return e;
+				}
+			}
+			return -1;
+		}
+		long cx = cellX(c);
+		long cy = cellY(c);
+		int best = -1;
+		double bestDistance = tolerance;
+		for (long x = cx - 1; x <= cx + 1; x++) {
+			for (long y = cy - 1; y <= cy + 1; y++) {
+				int cell = cells.indexOf(x, y);
+				if (cell == -1) {
+					continue;
+				}
+				for (int e = cellHead[cell]; e != -1; e = entryNext[e]) {
+					double d = coordinates.get(e).distance(c);
+					// on ties keep the first coordinate added
+					if (d < bestDistance || (d == bestDistance && (best == -1 || e < best))) {
+						best = e;
+						bestDistance = d;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	private long cellX(Coordinate c) {
+		if (tolerance <= 0) {
+			return Double.doubleToLongBits(c.x + 0.0);
+		}
+		return (long) Math.floor(c.x / tolerance);
+	}
+
+	private long cellY(Coordinate c) {
+		if (tolerance <= 0) {
+			return Double.doubleToLongBits(c.y + 0.0);
+		}
+		return (long) Math.floor(c.y / tolerance);
+	}
+}
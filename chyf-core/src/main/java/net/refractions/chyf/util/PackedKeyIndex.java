@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright 2020 Government of Canada
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *******************************************************************************/
+package net.refractions.chyf.util;
+
+import java.util.Arrays;
+
+import org.locationtech.jts.geom.Coordinate;
+
+/**
+ * Assigns dense int ids (0, 1, 2, ...) to keys made of two primitive parts,
+ * such as the X/Y ordinates of a coordinate or a pair of node ids. Keys are
+ * held in an open-addressing hash table of primitive arrays, so no objects are
+ * allocated per key.
+ * <p>
+ * Coordinate keys are compared in 2D, with -0.0 and 0.0 treated as equal,
+ * matching {@link Coordinate#equals2D(Coordinate)}.
+ */
+public class PackedKeyIndex {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	// the key parts, indexed by id
+	private long[] keys0;
+	private long[] keys1;
+	// hash table slots, holding id + 1 (0 means the slot is empty)
+	private int[] slots;
+	private int size = 0;
+
+	public PackedKeyIndex() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public PackedKeyIndex(int expectedSize) {
+		int capacity = INITIAL_CAPACITY;
+		while (capacity < 2 * expectedSize) {
+			capacity <<= 1;
+		}
+		slots = new int[capacity];
+		keys0 = new long[capacity / 2];
+		keys1 = new long[capacity / 2];
+	}
+
+	/**
+	 * @return the number of distinct keys in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the id of a key, adding it to the index if it is not already present.
+	 * 
+	 * @return the id of the key
+	 */
+	public int add(long k0, long k1) {
+		int slot = findSlot(k0, k1);
+		if (slots[slot] != 0) {
+			return slots[slot] - 1;
+		}
+		int id = size++;
+		if (id == keys0.length) {
+			keys0 = Arrays.copyOf(keys0, 2 * keys0.length);
+			keys1 = Arrays.copyOf(keys1, 2 * keys1.length);
+		}
+		keys0[id] = k0;
+		keys1[id] = k1;
+		slots[slot] = id + 1;
+		if (2 * size > slots.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	/**
+	 * @return the id of the key, or -1 if it is not in the index
+	 */
+	public int indexOf(long k0, long k1) {
+		return slots[findSlot(k0, k1)] - 1;
+	}
+
+	public int add(double x, double y) {
+		return add(bits(x), bits(y));
+	}
+
+	public int indexOf(double x, double y) {
+		return indexOf(bits(x), bits(y));
+	}
+
+	public int add(Coordinate c) {
+		return add(c.x, c.y);
+	}
+
+	public int indexOf(Coordinate c) {
+		return indexOf(c.x, c.y);
+	}
+
+	/**
+	 * @return the X ordinate of a key added as a coordinate
+	 */
+	public double getX(int id) {
+		return Double.longBitsToDouble(keys0[id]);
+	}
+
+	/**
+	 * @return the Y ordinate of a key added as a coordinate
+	 */
+	public double getY(int id) {
+		return Double.longBitsToDouble(keys1[id]);
+	}
+
+	private static long bits(double d) {
+		// adding 0.0 normalizes -0.0 to 0.0
+		return Double.doubleToLongBits(d + 0.0);
+	}
+
+	private int findSlot(long k0, long k1) {
+		int mask = slots.length - 1;
+		int slot = hash(k0, k1) & mask;
+		while (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if (keys0[id] == k0 && keys1[id] == k1) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int hash(long k0, long k1) {
+		long h = k0 * 0x9E3779B97F4A7C15L + k1;
+		h ^= (h >>> 32);
+		h *= 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 29));
+	}
+
+	private void rehash() {
+		slots = new int[2 * slots.length];
+		for (int id = 0; id < size; id++) {
+			slots[findSlot(keys0[id], keys1[id])] = id + 1;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright 2020 Government of Canada
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *******************************************************************************/
+package net.refractions.chyf.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+
+class CoordinateGridTest {
+
+	@Test
+	void testExact() {
+		CoordinateGrid<String> grid = new CoordinateGrid<>(0);
+		assertTrue(grid.add(new Coordinate(1, 2), "a"));
+		assertFalse(grid.add(new Coordinate(1, 2, 5), "b"));
+		assertTrue(grid.add(new Coordinate(0.0, 0.0), "c"));
+		assertEquals("c", grid.find(new Coordinate(-0.0, 0.0)));
+		assertNull(grid.find(new Coordinate(1, 2.000001)));
+		assertEquals(2, grid.size());
+	}
+
+	@Test
+	void testTolerance() {
+		CoordinateGrid<String> grid = new CoordinateGrid<>(0.5);
+		assertTrue(grid.add(new Coordinate(1, 1), "a"));
+		// within tolerance, across a cell boundary
+		assertFalse(grid.add(new Coordinate(0.9, 0.7), "b"));
+		assertEquals("a", grid.find(new Coordinate(1.4, 1.2)));
+		assertNull(grid.find(new Coordinate(1.5, 1.5)));
+		assertTrue(grid.add(new Coordinate(1.6, 1), "c"));
+		// closest wins
+		assertEquals("c", grid.find(new Coordinate(1.35, 1)));
+		assertEquals("a", grid.find(new Coordinate(1.25, 1)));
+		// negative coordinates
+		assertTrue(grid.add(new Coordinate(-0.1, -0.1), "d"));
+		assertEquals("d", grid.find(new Coordinate(0.1, 0.1)));
+	}
+
+	/**
+	 * Synthetic coastline with many outlets, each reported several times with
+	 * small offsets. De-duplicating and matching all of them should be linear.
+	 */
+	@Test
+	void testCoastline() {
+		int outlets = 200000;
+		double tolerance = 0.01;
+
+		List<Coordinate> points = new ArrayList<>();
+		for (int i = 0; i < outlets; i++) {
+			double x = i * 10.0;
+			double y = 1000 * Math.sin(i / 500.0);
+			points.add(new Coordinate(x, y));
+			points.add(new Coordinate(x + tolerance / 4, y));
+			points.add(new Coordinate(x, y - tolerance / 4));
+		}
+
+		assertTimeout(Duration.ofSeconds(10), () -> {
+			CoordinateGrid<Integer> grid = new CoordinateGrid<>(tolerance);
+			List<Coordinate> unique = new ArrayList<>();
+			for (Coordinate c : points) {
+				if (grid.add(c, unique.size())) {
+					unique.add(c);
+				}
+			}
+			assertEquals(outlets, unique.size());
+
+			for (int i = 0; i < points.size(); i++) {
+				assertEquals(Integer.valueOf(i / 3), grid.find(points.get(i)));
+			}
+		});
+	}
+
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright 2020 Government of Canada
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *******************************************************************************/
+package net.refractions.chyf.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+
+class PackedKeyIndexTest {
+
+	@Test
+	void testCoordinateIds() {
+		PackedKeyIndex index = new PackedKeyIndex();
+		assertEquals(0, index.add(new Coordinate(1, 2)));
+		assertEquals(1, index.add(new Coordinate(2, 1)));
+		assertEquals(0, index.add(new Coordinate(1, 2, 5)));
+		assertEquals(2, index.add(new Coordinate(0.0, 0.0)));
+		assertEquals(2, index.indexOf(new Coordinate(-0.0, 0.0)));
+		assertEquals(-1, index.indexOf(new Coordinate(3, 3)));
+		assertEquals(3, index.size());
+		assertEquals(2.0, index.getX(1));
+		assertEquals(1.0, index.getY(1));
+	}
+
+	@Test
+	void testGrowth() {
+		PackedKeyIndex index = new PackedKeyIndex();
+		int n = 100000;
+		for (int i = 0; i < n; i++) {
+			assertEquals(i, index.add(i, -i));
+		}
+		assertEquals(n, index.size());
+		for (int i = 0; i < n; i++) {
+			assertEquals(i, index.indexOf(i, -i));
+			assertEquals(i, index.add(i, -i));
+		}
+		assertEquals(-1, index.indexOf(n, -n));
+	}
+
+}
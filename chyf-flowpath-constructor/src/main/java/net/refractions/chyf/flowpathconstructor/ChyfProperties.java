@@ -49,23 +49,43 @@ public class ChyfProperties implements IChyfProperties{
 		SKEL_SIMPLIFY_FACTOR("simplify_factor"),
 		SKEL_MINSIZE("minimum_skeleton_length"),
 		SKEL_ACUTE_ANGLE("acute_angle"),
+		SKEL_DENSIFY_MAX_FACTOR("densify_max_factor", 1.0),
+		SKEL_MAX_SITES("skeleton_max_sites", 0.0),
+		SKEL_TILE_SITES("skeleton_tile_sites", 0.0),
 		BANK_NODE_DISTANCE_OFFSET("bank_node_distance_offset"),
 		BANK_MIN_VERTEX_DISTANCE("bank_min_vertex_distance"),
 		
 		DIR_SHORT_SEGMENT("dir_short_segement_length"),
 		DIR_ANGLE_DIFF("dir_angle_diff"),
+		DIR_CYCLE_CHECK_RELOAD("dir_cycle_check_reload", 0.0),
+		DIR_SINK_TOLERANCE("dir_sink_tolerance", 0.0),
 		
 		RANK_CHANNEL_WEIGHT("rank_channel_weight");
 		
 		String key;
+		Double defaultValue;
 		
 		Property(String key){
+			this(key, null);
+		}
+		
+		/**
+		 * @param key
+		 * @param defaultValue value used if the property is not provided; 
+		 * properties without defaults are required
+		 */
+		Property(String key, Double defaultValue){
 			this.key = key;
+			this.defaultValue = defaultValue;
 		}
 		
 		public String getKey() {
 			return this.key;
 		}
+		
+		public Double getDefaultValue() {
+			return this.defaultValue;
+		}
 	}
 	
 	private HashMap<Property, Double> properties;
@@ -75,7 +95,9 @@ public class ChyfProperties implements IChyfProperties{
 	}
 	
 	public Double getProperty(Property prop) {
-		return properties.get(prop);
+		Double value = properties.get(prop);
+		if (value == null) return prop.defaultValue;
+		return value;
 	}
 	
 	/**
@@ -95,10 +117,7 @@ public class ChyfProperties implements IChyfProperties{
 			p.load(is);
 		}
 		
-		for (Property prop : Property.values()) {
-			String value = 	p.getProperty(prop.key);
-			props.properties.put(prop,  Double.valueOf(value));
-		}
+		parse(p, props);
 		return props;
 	}
 	
@@ -128,10 +147,18 @@ public class ChyfProperties implements IChyfProperties{
 			p.load(is);
 		}
 		
+		parse(p, props);
+		return props;
+	}
+	
+	private static void parse(Properties p, ChyfProperties props) {
 		for (Property prop : Property.values()) {
 			String value = 	p.getProperty(prop.key);
-			props.properties.put(prop,  Double.valueOf(value));
+			if (value == null && prop.defaultValue != null) {
+				props.properties.put(prop, prop.defaultValue);
+			}else {
+				props.properties.put(prop,  Double.valueOf(value));
+			}
 		}
-		return props;
 	}
 }
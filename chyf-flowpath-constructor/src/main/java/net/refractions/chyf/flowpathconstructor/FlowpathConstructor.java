@@ -46,13 +46,13 @@ public class FlowpathConstructor {
 			ChyfProperties prop = runtime.getPropertiesFile();
 			if (prop == null) prop = ChyfProperties.getProperties(dataSource.getCoordinateReferenceSystem());
 			logger.info("Generating Constructions Points");
-			PointEngine.doWork(dataSource, prop);
+			PointEngine.doWork(dataSource, prop, runtime.getCores());
 			logger.info("Generating Skeletons");
 			SkeletonEngine.doWork(dataSource, prop, runtime.getCores());
 			logger.info("Directionalizing Dataset");
-			DirectionalizeEngine.doWork(dataSource, prop);
+			DirectionalizeEngine.doWork(dataSource, prop, runtime.getCores());
 			logger.info("Computing Rank");
-			RankEngine.doWork(dataSource, prop);
+			RankEngine.doWork(dataSource, prop, runtime.getCores());
 		}
 		long then = System.nanoTime();
 		logger.info("Processing Time: " + ( (then - now) / Math.pow(10, 9) ) + " seconds" );
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 Government of Canada
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.refractions.chyf.flowpathconstructor.datasource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.locationtech.jts.geom.Coordinate;
+
+import net.refractions.chyf.datasource.FlowDirection;
+import net.refractions.chyf.flowpathconstructor.datasource.FlowpathGeoPackageDataSource.NodeType;
+import net.refractions.chyf.flowpathconstructor.skeletonizer.points.ConstructionPoint;
+
+/**
+ * In memory index of construction points by catchment internal id.  The 
+ * points for each catchment are stored as packed xy ordinates with the node type 
+ * and flow direction stored as byte columns, so the whole construction points
+ * layer can be held in memory and read once.
+ * 
+ * @author Emily
+ *
+ */
+public class ConstructionPointIndex {
+
+	private Map<String, Points> index = new HashMap<>();
+	private int size = 0;
+	
+	/**
+	 * Adds a construction point to the index
+	 * 
+	 * @param catchmentId
+	 * @param x
+	 * @param y
+	 * @param type
+	 * @param fd
+	 */
+	public void add(String catchmentId, double x, double y, NodeType type, FlowDirection fd) {
+		Points pnts = index.computeIfAbsent(catchmentId, k->new Points());
+		pnts.add(x, y, (byte)type.getChyfValue(), (byte)fd.getChyfValue());
+		size++;
+	}
+	
+	/**
+	 * 
+	 * @return the total number of points in the index
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Creates the construction points associated with the given catchment id.  
+	 * 
+	 * @param catchmentId
+	 * @return the construction points; empty if there are none
+	 * @throws IOException if a stored node type is invalid
+	 */
+	public List<ConstructionPoint> getConstructionPoints(String catchmentId) throws IOException{
+		Points pnts = index.get(catchmentId);
+		if (pnts == null) return Collections.emptyList();
+		
+		List<ConstructionPoint> points = new ArrayList<>(pnts.size);
+		for (int i = 0; i < pnts.size; i ++) {
+			Coordinate c = new Coordinate(pnts.xy[2*i], pnts.xy[2*i+1]);
+			points.add(new ConstructionPoint(c, NodeType.parseValue(pnts.type[i]), FlowDirection.parseValue(pnts.fd[i]), null));
+		}
+		return points;
+	}
+	
+	private static class Points{
+		double[] xy = new double[8];
+		byte[] type = new byte[4];
+		byte[] fd = new byte[4];
+		int size = 0;
+		
+		void add(double x, double y, byte t, byte d) {
+			if (size == type.length) {
+				xy = Arrays.copyOf(xy, xy.length * 2);
+				type = Arrays.copyOf(type, type.length * 2);
+				fd = Arrays.copyOf(fd, fd.length * 2);
+			}
+			xy[2*size] = x;
+			xy[2*size+1] = y;
+			type[size] = t;
+			fd[size] = d;
+			size++;
+		}
+	}
+}
@@ -18,12 +18,18 @@ package net.refractions.chyf.flowpathconstructor.datasource;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
 
@@ -35,9 +41,12 @@ import org.geotools.data.simple.SimpleFeatureWriter;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.geom.GeoPkgGeomReader;
+import org.geotools.geopkg.geom.GeoPkgGeomWriter;
 import org.geotools.referencing.CRS;
 import org.geotools.util.factory.Hints;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.MultiLineString;
@@ -108,6 +117,9 @@ public class FlowpathGeoPackageDataSource extends ChyfGeoPackageDataSource{
 	}
 
 	
+	//number of features updated between commits for bulk geometry updates
+	public static final int UPDATE_BATCH_SIZE = 10000;
+	
 	private boolean cIsMulti = false;
 	
 	private List<SkelLineString> skeletonWriteCache;
@@ -246,6 +258,31 @@ public class FlowpathGeoPackageDataSource extends ChyfGeoPackageDataSource{
         return points;
 	}
 	
+	/**
+	 * Reads all construction points from the geopackage in a single
+	 * pass, indexed by the associated catchment internal id.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized ConstructionPointIndex getConstructionPointIndex() throws IOException{
+		ConstructionPointIndex index = new ConstructionPointIndex();
+		try(SimpleFeatureReader reader = geopkg.reader(geopkg.feature(CONSTRUCTION_PNTS_LAYER), Filter.INCLUDE, null)){
+			int catchmentIdx = reader.getFeatureType().indexOf(CATCHMENT_INTERNALID_ATTRIBUTE);
+			int typeIdx = reader.getFeatureType().indexOf(NODETYPE_ATTRIBUTE);
+			int fdIdx = reader.getFeatureType().indexOf(ChyfAttribute.FLOWDIRECTION.getFieldName());
+			while(reader.hasNext()) {
+				SimpleFeature sf = reader.next();
+				
+				Coordinate c = ((Point)sf.getDefaultGeometry()).getCoordinate();
+				NodeType type = NodeType.parseValue((Integer)sf.getAttribute(typeIdx));
+				FlowDirection fd = FlowDirection.parseValue((Integer)sf.getAttribute(fdIdx));
+				index.add((String)sf.getAttribute(catchmentIdx), c.x, c.y, type, fd);
+			}
+		}
+		return index;
+	}
+	
 //	public SimpleFeatureReader getCoastlines(ReferencedEnvelope bounds) throws IOException{
 //		return query(bounds, Layer.SHORELINES, null);
 //	}
@@ -259,152 +296,260 @@ public class FlowpathGeoPackageDataSource extends ChyfGeoPackageDataSource{
 	 * @throws IOException
 	 */
 	public void updateWaterbodyGeometries(Collection<Polygon> polygons) throws IOException{
-		
-		try(DefaultTransaction tx = new DefaultTransaction()){
-			try {
-				for (Polygon polygon : polygons) {
-					FeatureId fid = PolygonInfo.getFeatureId(polygon);
-					try(SimpleFeatureWriter writer = geopkg.writer(getEntry(Layer.ECATCHMENTS), false, ff.id(fid), tx)){
-						if (polygon.getExteriorRing().getCoordinateSequence().getDimension() == 3) {
-							writer.getFeatureType().getGeometryDescriptor().getUserData().put(Hints.COORDINATE_DIMENSION, 3);
-						}else {
-							writer.getFeatureType().getGeometryDescriptor().getUserData().put(Hints.COORDINATE_DIMENSION, 2);
-						}
-						if (writer.hasNext()) {
-							SimpleFeature sf = writer.next();
-							if (cIsMulti) {
-								sf.setDefaultGeometry(polygon.getFactory().createMultiPolygon(new Polygon[] {polygon}));
-							}else {
-								sf.setDefaultGeometry(polygon);
-							}
-							writer.write();
-						}else {
-							throw new IOException("No feature with fid " + fid.toString() + "found to update");
-						}
-					}
-				}
-				tx.commit();
-			}catch (IOException ex) {
-				tx.rollback();
-				throw ex;
-			}
+		Map<FeatureId, Polygon> geometries = new LinkedHashMap<>();
+		for (Polygon polygon : polygons) {
+			geometries.put(PolygonInfo.getFeatureId(polygon), polygon);
 		}
+		updateWaterbodyGeometries(geometries, UPDATE_BATCH_SIZE);
 	}
 	
-	
 	/**
-	 * updates the ranks of features in the datasource
+	 * Updates the geometries of waterbodies using a single prepared 
+	 * update statement, committing after every batchSize features.
+	 * If a feature is not found the current batch is rolled back and an
+	 * exception thrown; previous batches remain committed.
 	 * 
-	 * @param polygon
+	 * @param geometries new geometry for each waterbody feature id
+	 * @param batchSize number of features to update per commit; all features
+	 * are updated in a single transaction if less than 1
 	 * @throws IOException
 	 */
-	public void writeRanks(Map<FeatureId, RankType> ranks) throws Exception{
+	public synchronized void updateWaterbodyGeometries(Map<FeatureId, Polygon> geometries, int batchSize) throws IOException{
+		if (geometries.isEmpty()) return;
+		if (batchSize < 1) batchSize = geometries.size();
 		
-		try(DefaultTransaction tx = new DefaultTransaction()){
-			try(SimpleFeatureWriter writer = geopkg.writer(getEntry(Layer.EFLOWPATHS), false, Filter.INCLUDE, tx)){
-				Name rankatt = ChyfDataSource.findAttribute(writer.getFeatureType(), ChyfAttribute.RANK);
-				while(writer.hasNext()) {
-					SimpleFeature sf = writer.next();
-					FeatureId fid = sf.getIdentifier();
-					RankType rank = ranks.get(fid);
-					if (rank == null) {
-						//bank
-						rank = RankType.PRIMARY;
-					}
+		FeatureEntry fe = getEntry(Layer.ECATCHMENTS);
+		try(Connection c = geopkg.getDataSource().getConnection()){
+			String pk = getPrimaryKeyColumn(c, fe.getTableName());
+			String query = "UPDATE " + fe.getTableName() + " SET " + fe.getGeometryColumn() + " = ? WHERE " + pk + " = ?";
+			
+			boolean autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false);
+			try(PreparedStatement ps = c.prepareStatement(query)){
+				List<FeatureId> batch = new ArrayList<>(batchSize);
+				for (Entry<FeatureId, Polygon> e : geometries.entrySet()) {
+					Polygon polygon = e.getValue();
+					Geometry g = polygon;
+					if (cIsMulti) g = polygon.getFactory().createMultiPolygon(new Polygon[] {polygon});
+					g.setSRID(fe.getSrid());
 					
-					sf.setAttribute(rankatt, rank.getChyfValue());
-					writer.write();
+					int dim = polygon.getExteriorRing().getCoordinateSequence().getDimension() == 3 ? 3 : 2;
+					ps.setBytes(1, new GeoPkgGeomWriter(dim).write(g));
+					ps.setLong(2, getRowId(e.getKey()));
+					ps.addBatch();
+					batch.add(e.getKey());
+					
+					if (batch.size() >= batchSize) {
+						executeUpdateBatch(c, ps, batch);
+					}
 				}
-				
+				if (!batch.isEmpty()) executeUpdateBatch(c, ps, batch);
+			}catch (IOException | SQLException ex) {
+				c.rollback();
+				throw ex;
+			}finally {
+				c.setAutoCommit(autoCommit);
 			}
-			tx.commit();
+		}catch (SQLException ex) {
+			throw new IOException(ex);
+		}
+	}
+	
+	/*
+	 * executes and commits the batch, ensuring each feature was updated
+	 */
+	private void executeUpdateBatch(Connection c, PreparedStatement ps, List<FeatureId> batch) throws SQLException, IOException {
+		int[] results = ps.executeBatch();
+		for (int i = 0; i < results.length; i ++) {
+			if (results[i] == 0) {
+				throw new IOException("No feature with fid " + batch.get(i).toString() + " found to update");
+			}
+		}
+		c.commit();
+		batch.clear();
+	}
+	
+	/*
+	 * the primary key column of the given geopackage table
+	 */
+	private String getPrimaryKeyColumn(Connection c, String table) throws SQLException, IOException {
+		try(Statement stmt = c.createStatement(); 
+				ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")){
+			while(rs.next()) {
+				if (rs.getInt("pk") > 0) return rs.getString("name");
+			}
+		}
+		throw new IOException("No primary key column found for table " + table);
+	}
+	
+	/*
+	 * geopackage feature ids are of the form tablename.rowid
+	 */
+	private static long getRowId(FeatureId fid) throws IOException {
+		String id = fid.getID();
+		try {
+			return Long.parseLong(id.substring(id.lastIndexOf('.') + 1));
+		}catch (NumberFormatException ex) {
+			throw new IOException("Feature id " + id + " does not reference a geopackage row", ex);
 		}
 	}
 	
+	
 	/**
-	 * Updates the geometry of the give polygon.  The polygon must
-	 * have a user data set to PolygonInfo class.
+	 * Updates the ranks of features in the datasource.  Features without
+	 * a rank (banks) are set to primary.  All features are first set 
+	 * to primary with a single statement, then the remaining ranks are 
+	 * written with a prepared update keyed on the feature id, committing 
+	 * every UPDATE_BATCH_SIZE features.
 	 * 
-	 * @param polygon
+	 * @param ranks
 	 * @throws IOException
 	 */
-	public void flipFlowEdges(Collection<FeatureId> pathstoflip, Collection<FeatureId> processed) throws Exception{
+	public synchronized void writeRanks(Map<FeatureId, RankType> ranks) throws Exception{
+		FeatureEntry fe = getEntry(Layer.EFLOWPATHS);
+		String rankatt = getAttributeName(Layer.EFLOWPATHS, ChyfAttribute.RANK);
 		
-		try(DefaultTransaction tx = new DefaultTransaction()){
+		try(Connection c = geopkg.getDataSource().getConnection()){
+			String pk = getPrimaryKeyColumn(c, fe.getTableName());
+			boolean autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false);
 			try {
-				//do 3d first
-				try(SimpleFeatureWriter writer = geopkg.writer(getEntry(Layer.EFLOWPATHS), false, Filter.INCLUDE, tx)){
-
-					Name diratt = ChyfDataSource.findAttribute(writer.getFeatureType(), ChyfAttribute.DIRECTION);
-					writer.getFeatureType().getGeometryDescriptor().getUserData().put(Hints.COORDINATE_DIMENSION, 3);
-					
-					while(writer.hasNext()) {
-						SimpleFeature sf = writer.next();
-						FeatureId fid = sf.getIdentifier();
-						
-						if (pathstoflip.contains(fid)) {
-							LineString ls = ChyfDataSource.getLineString(sf);
-							if (ls.getCoordinateSequence().getDimension() != 3) continue;
-							ls = (LineString) ls.reverse();
-							if (cIsMulti) {
-								sf.setDefaultGeometry(ls.getFactory().createMultiLineString(new LineString[] {ls}));
-							}else {
-								sf.setDefaultGeometry(ls);
-							}
-							sf.setAttribute(diratt, DirectionType.KNOWN.getChyfValue());
-							writer.write();
-						}else if (processed.contains(fid)) {
-							sf.setAttribute(diratt, DirectionType.KNOWN.getChyfValue());
-							writer.write();
-						}
+				try(Statement stmt = c.createStatement()){
+					stmt.executeUpdate("UPDATE " + fe.getTableName() + " SET " + rankatt + " = " + RankType.PRIMARY.getChyfValue());
+				}
+				c.commit();
+				
+				String query = "UPDATE " + fe.getTableName() + " SET " + rankatt + " = ? WHERE " + pk + " = ?";
+				try(PreparedStatement ps = c.prepareStatement(query)){
+					List<FeatureId> batch = new ArrayList<>(UPDATE_BATCH_SIZE);
+					for (Entry<FeatureId, RankType> e : ranks.entrySet()) {
+						if (e.getValue() == RankType.PRIMARY) continue;
+						ps.setInt(1, e.getValue().getChyfValue());
+						ps.setLong(2, getRowId(e.getKey()));
+						ps.addBatch();
+						batch.add(e.getKey());
+						if (batch.size() >= UPDATE_BATCH_SIZE) executeUpdateBatch(c, ps, batch);
 					}
-					
+					if (!batch.isEmpty()) executeUpdateBatch(c, ps, batch);
 				}
-				tx.commit();
-			}catch (Exception ex) {
-				tx.rollback();
+			}catch (IOException | SQLException ex) {
+				c.rollback();
 				throw ex;
+			}finally {
+				c.setAutoCommit(autoCommit);
 			}
 		}
-		try(DefaultTransaction tx = new DefaultTransaction()){
+	}
+	
+	/**
+	 * Reverses the geometry of the flowpaths to flip and sets the direction 
+	 * of these and the processed flowpaths to known.  Only the affected rows
+	 * are read and written: the geometry of each flowpath to flip is decoded, 
+	 * reversed and encoded again, and all updates use prepared statements keyed 
+	 * on the feature id, committing every UPDATE_BATCH_SIZE features.
+	 * 
+	 * @param pathstoflip flowpaths to reverse
+	 * @param processed flowpaths with a computed direction
+	 * @throws Exception
+	 */
+	public synchronized void flipFlowEdges(Collection<FeatureId> pathstoflip, Collection<FeatureId> processed) throws Exception{
+		FeatureEntry fe = getEntry(Layer.EFLOWPATHS);
+		String diratt = getAttributeName(Layer.EFLOWPATHS, ChyfAttribute.DIRECTION);
+		Set<FeatureId> toflip = new HashSet<>(pathstoflip);
+		
+		try(Connection c = geopkg.getDataSource().getConnection()){
+			String pk = getPrimaryKeyColumn(c, fe.getTableName());
+			String select = "SELECT " + fe.getGeometryColumn() + " FROM " + fe.getTableName() + " WHERE " + pk + " = ?";
+			String flip = "UPDATE " + fe.getTableName() + " SET " + fe.getGeometryColumn() + " = ?, " + diratt + " = ? WHERE " + pk + " = ?";
+			String known = "UPDATE " + fe.getTableName() + " SET " + diratt + " = ? WHERE " + pk + " = ?";
+			
+			boolean autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false);
 			try {
-				//do everything else
-				try(SimpleFeatureWriter writer = geopkg.writer(getEntry(Layer.EFLOWPATHS), false, Filter.INCLUDE, tx)){
-
-					Name diratt = ChyfDataSource.findAttribute(writer.getFeatureType(), ChyfAttribute.DIRECTION);
-					writer.getFeatureType().getGeometryDescriptor().getUserData().put(Hints.COORDINATE_DIMENSION, 2);
-					
-					while(writer.hasNext()) {
-						SimpleFeature sf = writer.next();
-						FeatureId fid = sf.getIdentifier();
-						
-						if (pathstoflip.contains(fid)) {
-							LineString ls = ChyfDataSource.getLineString(sf);
-							if (ls.getCoordinateSequence().getDimension() == 3) continue;
-							ls = (LineString) ls.reverse();
-							if (cIsMulti) {
-								sf.setDefaultGeometry(ls.getFactory().createMultiLineString(new LineString[] {ls}));
-							}else {
-								sf.setDefaultGeometry(ls);
-							}
-							sf.setAttribute(diratt, DirectionType.KNOWN.getChyfValue());
-							writer.write();
-						}else if (processed.contains(fid)) {
-							sf.setAttribute(diratt, DirectionType.KNOWN.getChyfValue());
-							writer.write();
+				try(PreparedStatement sps = c.prepareStatement(select);
+						PreparedStatement ps = c.prepareStatement(flip)){
+					List<FeatureId> batch = new ArrayList<>(UPDATE_BATCH_SIZE);
+					for (FeatureId fid : toflip) {
+						long rowid = getRowId(fid);
+						sps.setLong(1, rowid);
+						byte[] geom = null;
+						try(ResultSet rs = sps.executeQuery()){
+							if (rs.next()) geom = rs.getBytes(1);
 						}
+						if (geom == null) throw new IOException("No flowpath geometry found for fid " + fid.toString());
+						
+						ps.setBytes(1, reverseLineString(geom, fe.getSrid()));
+						ps.setInt(2, DirectionType.KNOWN.getChyfValue());
+						ps.setLong(3, rowid);
+						ps.addBatch();
+						batch.add(fid);
+						if (batch.size() >= UPDATE_BATCH_SIZE) executeUpdateBatch(c, ps, batch);
 					}
+					if (!batch.isEmpty()) executeUpdateBatch(c, ps, batch);
 				}
 				
-				tx.commit();
-			}catch (IOException ex) {
-				ex.printStackTrace();
-				tx.rollback();
+				try(PreparedStatement ps = c.prepareStatement(known)){
+					List<FeatureId> batch = new ArrayList<>(UPDATE_BATCH_SIZE);
+					for (FeatureId fid : processed) {
+						if (toflip.contains(fid)) continue;
+						ps.setInt(1, DirectionType.KNOWN.getChyfValue());
+						ps.setLong(2, getRowId(fid));
+						ps.addBatch();
+						batch.add(fid);
+						if (batch.size() >= UPDATE_BATCH_SIZE) executeUpdateBatch(c, ps, batch);
+					}
+					if (!batch.isEmpty()) executeUpdateBatch(c, ps, batch);
+				}
+			}catch (IOException | SQLException ex) {
+				c.rollback();
 				throw ex;
+			}finally {
+				c.setAutoCommit(autoCommit);
 			}
 		}
 	}
 	
+	/*
+	 * decodes a geopackage linestring geometry, reverses it and encodes it 
+	 * again keeping the coordinate dimension
+	 */
+	private byte[] reverseLineString(byte[] geom, int srid) throws IOException {
+		Geometry g = new GeoPkgGeomReader(geom).get();
+		LineString ls = null;
+		if (g instanceof LineString) {
+			ls = (LineString)g;
+		}else if (g instanceof MultiLineString && g.getNumGeometries() == 1) {
+			ls = (LineString)g.getGeometryN(0);
+		}else {
+			throw new IOException("Geometry type " + g.getGeometryType() + " not supported for linestring.");
+		}
+		ls = (LineString) ls.reverse();
+		
+		Geometry out = ls;
+		if (cIsMulti) out = ls.getFactory().createMultiLineString(new LineString[] {ls});
+		out.setSRID(srid);
+		int dim = ls.getCoordinateSequence().getDimension() == 3 ? 3 : 2;
+		return new GeoPkgGeomWriter(dim).write(out);
+	}
+	
+	/*
+	 * the column name of the given attribute 
+	 */
+	private String getAttributeName(Layer layer, ChyfAttribute attribute) throws IOException {
+		Name name = ChyfDataSource.findAttribute(getFeatureType(layer), attribute);
+		if (name == null) throw new IOException("Attribute " + attribute.getFieldName() + " not found for layer " + layer.getLayerName());
+		return name.getLocalPart();
+	}
+	
+	/**
+	 * Writes any skeletons remaining in the write cache
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void flushSkeletons() throws IOException {
+		writeSkeletons(Collections.emptyList());
+	}
+	
 	/**
 	 * Pass an empty collection to write any remaining features in the write cache
 	 * 
@@ -18,10 +18,14 @@ package net.refractions.chyf.flowpathconstructor.datasource;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.geotools.data.simple.SimpleFeatureReader;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.filter.identity.FeatureIdImpl;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.prep.PreparedPolygon;
 import org.opengis.feature.simple.SimpleFeature;
@@ -29,6 +33,7 @@ import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory2;
 
 import net.refractions.chyf.datasource.ChyfDataSource;
+import net.refractions.chyf.datasource.EcType;
 import net.refractions.chyf.datasource.Layer;
 
 /**
@@ -41,7 +46,7 @@ public class WaterbodyIterator {
 
 	private static FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
 
-	private List<String> wbToProcess;
+	private Queue<String> wbToProcess;
 	private FlowpathGeoPackageDataSource source;
 	
 	public WaterbodyIterator(FlowpathGeoPackageDataSource source) throws Exception {
@@ -50,52 +55,78 @@ public class WaterbodyIterator {
 	}
 	
 	/*
-	 * Creates a list of waterbodies to process.  Only includes
-	 * waterbodies that are inside the aoi.
+	 * Creates the queue of waterbodies to process in a single pass
+	 * over the waterbodies that fall within the bounds of the aoi.  Only includes
+	 * waterbodies whose interior intersects the aoi interior. Waterbodies 
+	 * properly contained by the aoi are accepted without computing the full 
+	 * relate. Only the feature ids are kept; earlier stages may update
+	 * a waterbody's geometry while processing its neighbours, so features
+	 * are re-read when they are handed out.
 	 *
 	 */
 	private void init() throws Exception{
-		wbToProcess = new ArrayList<>();
+		wbToProcess = new ConcurrentLinkedQueue<>();
 		
 		List<Polygon> aois = source.getAoi();
+		if (aois.isEmpty()) return;
+		
 		List<PreparedPolygon> aoispp = new ArrayList<>();
+		Envelope bounds = new Envelope();
 		for (Polygon p : aois) {
 			aoispp.add(new PreparedPolygon(p));
+			bounds.expandToInclude(p.getEnvelopeInternal());
 		}
-		try(SimpleFeatureReader reader = source.getWaterbodies()){
+		
+		ReferencedEnvelope env = new ReferencedEnvelope(bounds, source.getCoordinateReferenceSystem());
+		try(SimpleFeatureReader reader = source.query(Layer.ECATCHMENTS, env, source.getECatchmentTypeFilter(EcType.WATER))){
 			while(reader.hasNext()) {
 				SimpleFeature fs = reader.next();
 				Polygon p = ChyfDataSource.getPolygon(fs);
-				for (PreparedPolygon aoi:aoispp) {
-					if (aoi.intersects(p) && p.relate(aoi.getGeometry(),"2********")) {
-						wbToProcess.add(fs.getID());
-						break;
-					}
-				}
+				if (inAoi(p, aoispp)) wbToProcess.add(fs.getID());
 			}
 		}
 	}
 	
+	private boolean inAoi(Polygon p, List<PreparedPolygon> aois) {
+		Envelope penv = p.getEnvelopeInternal();
+		for (PreparedPolygon aoi : aois) {
+			Polygon aoiPolygon = (Polygon) aoi.getGeometry();
+			Envelope aenv = aoiPolygon.getEnvelopeInternal();
+			if (!aenv.intersects(penv)) continue;
+			
+			if (aenv.contains(penv) && aoiPolygon.isRectangle()) return true;
+			if (aoi.containsProperly(p)) return true;
+			if (aoi.intersects(p) && p.relate(aoiPolygon,"2********")) return true;
+		}
+		return false;
+	}
+	
 	/**
 	 * 
-	 * @return gets the next waterbody to process
+	 * @return the feature id of the next waterbody to process; null if there
+	 * are no more waterbodies
+	 */
+	public String getNextWaterbodyId() {
+		return wbToProcess.poll();
+	}
+	
+	/**
+	 * 
+	 * @return gets the next waterbody to process, as currently stored in 
+	 * the dataset; null if there are no more waterbodies
 	 * 
 	 * @throws IOException
 	 */
-	public synchronized SimpleFeature getNextWaterbody() throws IOException {
-		if (wbToProcess.isEmpty()) return null;
-		
-		String fid = wbToProcess.get(0);
+	public SimpleFeature getNextWaterbody() throws IOException {
+		String fid = wbToProcess.poll();
+		if (fid == null) return null;
 		
 		Filter featureFilter = ff.id(new FeatureIdImpl(fid));
-		
 		SimpleFeature next = null;
-		
 		try(SimpleFeatureReader rr = source.query(Layer.ECATCHMENTS, featureFilter)){
 			if (rr.hasNext()) next = rr.next();
 		}
 		if (next == null) throw new IllegalStateException("Waterbody with feature id " + fid + " not found.");
-		wbToProcess.remove(fid.toString());
 		return next;
 	}
 
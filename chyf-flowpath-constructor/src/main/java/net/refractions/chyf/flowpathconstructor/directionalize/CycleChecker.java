@@ -16,15 +16,22 @@
 package net.refractions.chyf.flowpathconstructor.directionalize;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.geotools.data.simple.SimpleFeatureReader;
+import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.prep.PreparedPolygon;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.type.Name;
+import org.opengis.filter.identity.FeatureId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,7 +41,7 @@ import net.refractions.chyf.datasource.DirectionType;
 import net.refractions.chyf.datasource.EfType;
 import net.refractions.chyf.datasource.Layer;
 import net.refractions.chyf.flowpathconstructor.datasource.FlowpathGeoPackageDataSource;
-import net.refractions.chyf.flowpathconstructor.directionalize.graph.DEdge;
+import net.refractions.chyf.flowpathconstructor.directionalize.graph.CsrGraph;
 import net.refractions.chyf.flowpathconstructor.directionalize.graph.DGraph;
 import net.refractions.chyf.flowpathconstructor.directionalize.graph.EdgeInfo;
 
@@ -48,7 +55,80 @@ public class CycleChecker {
 	
 	private static final Logger logger = LoggerFactory.getLogger(CycleChecker.class.getCanonicalName());
 
+	//feature ids of the edges in the last cycle found
+	private List<FeatureId> cycle = new ArrayList<>();
+	
 	/**
+	 * @return the feature ids of the edges forming the cycle found 
+	 * by the last check, in flow order; empty if no cycle was found
+	 */
+	public List<FeatureId> getCycle(){
+		return cycle;
+	}
+	
+	/**
+	 * Checks the flow network for cycles without reading it from the
+	 * data source.  Edges are oriented as they are written by 
+	 * {@link FlowpathGeoPackageDataSource#flipFlowEdges(java.util.Collection, java.util.Collection)}:
+	 * edges in the flip set are reversed and edges in the processed or flip set
+	 * have a known direction.
+	 * 
+	 * @param edges the flowpaths as loaded from the data source, including banks 
+	 * @param toflip features that are flipped
+	 * @param processed features that were directionalized
+	 * @return true if a cycle was found
+	 * @throws Exception if an edge with unknown direction remains
+	 */
+	public boolean checkCycles(List<EdgeInfo> edges, Set<FeatureId> toflip, Set<FeatureId> processed) throws Exception{
+		cycle.clear();
+		
+		Map<Coordinate, Integer> nodes = new HashMap<>();
+		int[] from = new int[edges.size()];
+		int[] to = new int[edges.size()];
+		for (int i = 0; i < edges.size(); i ++) {
+			EdgeInfo ei = edges.get(i);
+			if (ei.getDirectionType() == DirectionType.UNKNOWN && 
+					!processed.contains(ei.getFeatureId()) && !toflip.contains(ei.getFeatureId())) {
+				throw new Exception("An unknown direction edge type found. Cannot check cycles when direction is unknown");
+			}
+			int a = nodes.computeIfAbsent(ei.getStart(), c->nodes.size());
+			int b = nodes.computeIfAbsent(ei.getEnd(), c->nodes.size());
+			if (toflip.contains(ei.getFeatureId())) {
+				from[i] = b;
+				to[i] = a;
+			}else {
+				from[i] = a;
+				to[i] = b;
+			}
+		}
+		
+		int nodeCount = nodes.size();
+		int[] offsets = new int[nodeCount + 1];
+		for (int i = 0; i < from.length; i ++) {
+			offsets[from[i] + 1]++;
+			offsets[to[i] + 1]++;
+		}
+		for (int i = 0; i < nodeCount; i ++) offsets[i + 1] += offsets[i];
+		int[] adjacency = new int[2 * from.length];
+		int[] index = Arrays.copyOf(offsets, nodeCount);
+		for (int i = 0; i < from.length; i ++) {
+			adjacency[index[from[i]]++] = i;
+			adjacency[index[to[i]]++] = i;
+		}
+		
+		int[] starts = new int[nodeCount];
+		for (int i = 0; i < nodeCount; i ++) starts[i] = i;
+		
+		List<Integer> cedges = new ArrayList<>();
+		if (findCycle(nodeCount, offsets, adjacency, from, to, starts, cedges) == -1) return false;
+		
+		for (Integer e : cedges) cycle.add(edges.get(e).getFeatureId());
+		logger.error("Cycle found: " + cycle.stream().map(f->f.getID()).collect(Collectors.joining(", ")));
+		return true;
+	}
+	
+	/**
+	 * Reads the flowpaths from the data source and checks them for cycles.
 	 * 
 	 * @param output link to geopackage containing CHyF data
 	 * @return
@@ -125,30 +205,131 @@ public class CycleChecker {
 	}
 	
 	public boolean findCycles(DGraph graph) {
-		graph.getEdges().forEach(e->e.setVisited(false));
-		for(DEdge f : graph.getEdges()) {
-			if(findCycles(f, new HashSet<DEdge>())) {
-				return true;
-			}
+		cycle.clear();
+		CsrGraph csr = new CsrGraph(graph);
+		int[] starts = new int[csr.getNodeCount()];
+		for (int i = 0; i < starts.length; i ++) starts[i] = i;
+		
+		List<Integer> cedges = new ArrayList<>();
+		int e = findCycle(csr, starts, false, cedges);
+		if (e != -1) {
+			for (Integer c : cedges) cycle.add(csr.getEdge(c).getID());
+			logger.error("Cycle found at " + csr.getEdge(e).toString() + ": " 
+					+ cycle.stream().map(f->f == null ? "?" : f.getID()).collect(Collectors.joining(", ")));
+			return true;
 		}
 		return false;
 	}
 	
-	private boolean findCycles(DEdge f, HashSet<DEdge> visited) {
-		if (f.isVisited()) return false;
-		if(visited.contains(f)) {
-			logger.error("Cycle found at " + f.toString());
-			return true;
+	/**
+	 * Searches upstream from the start nodes for a cycle using the current
+	 * direction of the graph edges.
+	 * 
+	 * @param graph the graph to search
+	 * @param starts the node ids to search from; -1 entries are ignored
+	 * @param knownOnly if true only edges with a known direction are followed
+	 * @return the id of an edge that is part of a cycle, or -1 if no cycle was found
+	 */
+	public static int findCycle(CsrGraph graph, int[] starts, boolean knownOnly) {
+		return findCycle(graph, starts, knownOnly, null);
+	}
+	
+	/**
+	 * @see #findCycle(CsrGraph, int[], boolean)
+	 * @param cycle if not null the ids of the edges forming the cycle are added
+	 * to this list, in flow order
+	 */
+	public static int findCycle(CsrGraph graph, int[] starts, boolean knownOnly, List<Integer> cycle) {
+		int[] from = new int[graph.getEdgeCount()];
+		int[] to = new int[graph.getEdgeCount()];
+		for (int e = 0; e < from.length; e ++) {
+			if (knownOnly && !graph.isKnown(e)) {
+				from[e] = -1;
+				to[e] = -1;
+			}else {
+				from[e] = graph.getNodeA(e);
+				to[e] = graph.getNodeB(e);
+			}
 		}
-		visited.add(f);
-		for(DEdge u: f.getNodeA().getEdges()) {
-			if (u.getNodeB() == f.getNodeA())
-			if(findCycles(u, visited)) {
-				return true;
+		return findCycle(graph.getNodeCount(), graph.getOffsets(), graph.getAdjacency(), from, to, starts, cycle);
+	}
+	
+	/**
+	 * Coloured depth first search for a directed cycle.  Follows edges upstream
+	 * (from the edge end node to the edge start node) using an explicit stack, 
+	 * so runs in time and memory linear in the size of the graph regardless
+	 * of the length of the flow paths.
+	 * 
+	 * @param nodeCount number of nodes
+	 * @param offsets incident edges of node i are adjacency[offsets[i]] to adjacency[offsets[i+1]-1]
+	 * @param adjacency incident edge ids
+	 * @param from start node of each edge; -1 if the edge should not be followed
+	 * @param to end node of each edge; -1 if the edge should not be followed
+	 * @param starts the node ids to search from; -1 entries are ignored
+	 * @return the id of an edge that is part of a cycle, or -1 if no cycle was found
+	 */
+	public static int findCycle(int nodeCount, int[] offsets, int[] adjacency, 
+			int[] from, int[] to, int[] starts) {
+		return findCycle(nodeCount, offsets, adjacency, from, to, starts, null);
+	}
+	
+	/**
+	 * @see #findCycle(int, int[], int[], int[], int[], int[])
+	 * @param cycle if not null the ids of the edges forming the cycle are added
+	 * to this list, in flow order
+	 */
+	public static int findCycle(int nodeCount, int[] offsets, int[] adjacency, 
+			int[] from, int[] to, int[] starts, List<Integer> cycle) {
+		//grey nodes are on the current search path, black nodes
+		//are fully explored and known not to lead to a cycle
+		BitSet grey = new BitSet(nodeCount);
+		BitSet black = new BitSet(nodeCount);
+		
+		//dfs stack: node, edge used to reach the node and 
+		//position of the next incident edge to process
+		int[] stack = new int[nodeCount];
+		int[] via = new int[nodeCount];
+		int[] next = new int[nodeCount];
+		
+		for (int s : starts) {
+			if (s == -1 || black.get(s)) continue;
+			
+			int depth = 0;
+			stack[0] = s;
+			via[0] = -1;
+			next[0] = offsets[s];
+			grey.set(s);
+			
+			while (depth >= 0) {
+				int v = stack[depth];
+				if (next[depth] < offsets[v + 1]) {
+					int e = adjacency[next[depth]++];
+					if (to[e] != v) continue;
+					int w = from[e];
+					if (w == -1) continue;
+					if (grey.get(w)) {
+						if (cycle != null) {
+							//walking upstream, so the edges on the stack down 
+							//to w follow e in flow order
+							cycle.add(e);
+							for (int d = depth; stack[d] != w; d --) cycle.add(via[d]);
+						}
+						return e;
+					}
+					if (black.get(w)) continue;
+					
+					depth++;
+					stack[depth] = w;
+					via[depth] = e;
+					next[depth] = offsets[w];
+					grey.set(w);
+				}else {
+					grey.clear(v);
+					black.set(v);
+					depth--;
+				}
 			}
 		}
-		f.setVisited(true);
-		visited.remove(f);
-		return false;
+		return -1;
 	}
 }
@@ -36,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.refractions.chyf.flowpathconstructor.ChyfProperties;
+import net.refractions.chyf.flowpathconstructor.ChyfProperties.Property;
 import net.refractions.chyf.flowpathconstructor.FlowpathArgs;
 import net.refractions.chyf.flowpathconstructor.datasource.FlowpathGeoPackageDataSource;
 import net.refractions.chyf.flowpathconstructor.directionalize.graph.DEdge;
@@ -48,6 +49,7 @@ import net.refractions.chyf.datasource.DirectionType;
 import net.refractions.chyf.datasource.EfType;
 import net.refractions.chyf.datasource.FlowDirection;
 import net.refractions.chyf.datasource.Layer;
+import net.refractions.chyf.util.CoordinateGrid;
 
 /**
  * Main class for computing direction on dataset
@@ -59,14 +61,22 @@ public class DirectionalizeEngine {
 	static final Logger logger = LoggerFactory.getLogger(DirectionalizeEngine.class.getCanonicalName());
 
 	public static void doWork(Path output, ChyfProperties properties) throws Exception {
+		doWork(output, properties, 1);
+	}
+	
+	public static void doWork(Path output, ChyfProperties properties, int cores) throws Exception {
 		try(FlowpathGeoPackageDataSource dataSource = new FlowpathGeoPackageDataSource(output)){
-			doWork(dataSource, properties);			
+			doWork(dataSource, properties, cores);			
 		}
 		
 		
 	}
 	
 	public static void doWork(FlowpathGeoPackageDataSource dataSource, ChyfProperties properties) throws Exception {
+		doWork(dataSource, properties, 1);
+	}
+	
+	public static void doWork(FlowpathGeoPackageDataSource dataSource, ChyfProperties properties, int cores) throws Exception {
 		CoordinateReferenceSystem sourceCRS = null;	
 
 		List<EdgeInfo> edges = new ArrayList<>();
@@ -136,11 +146,12 @@ public class DirectionalizeEngine {
 		
 		//find sink nodes
 		logger.info("locating sink nodes");
-		List<Coordinate> sinks = getSinkPoints(dataSource, graph);
+		double tolerance = properties == null ? 0 : properties.getProperty(Property.DIR_SINK_TOLERANCE);
+		List<Coordinate> sinks = getSinkPoints(dataSource, graph, tolerance);
 
 		//directionalize dataset
 		logger.info("directionalizing network");
-		Directionalizer dd = new Directionalizer(sourceCRS, properties);
+		Directionalizer dd = new Directionalizer(sourceCRS, properties, cores);
 		dd.directionalize(graph, sinks);
 
 		//flip edges
@@ -150,9 +161,28 @@ public class DirectionalizeEngine {
 		
 		logger.info("checking output for cycles");
 		CycleChecker checker = new CycleChecker();
-		if (checker.checkCycles(dataSource)) {
-			throw new Exception("Dataset contains cycles after directionalization.");
+		
+		Set<FeatureId> flipped = new HashSet<>(bankstoflip);
+		flipped.addAll(dd.getFeaturesToFlip());
+		Set<FeatureId> processed = new HashSet<>(dd.getProcessedFeatures());
+		banks.forEach(e->processed.add(e.getFeatureId()));
+		List<EdgeInfo> all = new ArrayList<>(edges);
+		all.addAll(banks);
+		if (checker.checkCycles(all, flipped, processed)) {
+			throw new Exception("Dataset contains cycles after directionalization: " + toIdString(checker.getCycle()));
 		}
+		
+		if (properties != null && properties.getProperty(Property.DIR_CYCLE_CHECK_RELOAD) > 0) {
+			//paranoid mode; check the data as written 
+			logger.info("checking saved output for cycles");
+			if (checker.checkCycles(dataSource)) {
+				throw new Exception("Dataset contains cycles after directionalization: " + toIdString(checker.getCycle()));
+			}
+		}
+	}
+	
+	private static String toIdString(List<FeatureId> ids) {
+		return ids.stream().map(f->f == null ? "?" : f.getID()).collect(Collectors.joining(", "));
 	}
 
 	/*
@@ -161,12 +191,14 @@ public class DirectionalizeEngine {
 	 * - any known direction edges that form a sink
 	 * - and flow edge that intersects the coastline
 	 * 
+	 * Sink points within the tolerance of an earlier sink point are dropped.
 	 */
-	private static List<Coordinate> getSinkPoints(FlowpathGeoPackageDataSource source, DGraph graph) throws Exception {
+	private static List<Coordinate> getSinkPoints(FlowpathGeoPackageDataSource source, DGraph graph, double tolerance) throws Exception {
 		List<Coordinate> sinks = new ArrayList<>();
+		CoordinateGrid<Coordinate> index = new CoordinateGrid<>(tolerance);
 		for (Point p : source.getTerminalNodes()) {
 			if ( ((FlowDirection)p.getUserData()) == FlowDirection.OUTPUT ) {
-				if (!sinks.contains(p.getCoordinate())) sinks.add(p.getCoordinate());
+				if (index.add(p.getCoordinate(), p.getCoordinate())) sinks.add(p.getCoordinate());
 			}
 		}
 		
@@ -199,12 +231,12 @@ public class DirectionalizeEngine {
 					}
 				}
 			}
-			if (issink && !sinks.contains(node.getCoordinate())) sinks.add(node.getCoordinate());
+			if (issink && index.add(node.getCoordinate(), node.getCoordinate())) sinks.add(node.getCoordinate());
 		}
 		
 		Set<Coordinate> cpoints = source.getOutputConstructionPoints();
 		for(DNode node : graph.getNodes()) {
-			if (node.getDegree() == 1 && cpoints.contains(node.getCoordinate()) && !sinks.contains(node.getCoordinate())) {
+			if (node.getDegree() == 1 && cpoints.contains(node.getCoordinate()) && index.add(node.getCoordinate(), node.getCoordinate())) {
 				sinks.add(node.getCoordinate());
 			}			
 		}
@@ -218,7 +250,7 @@ public class DirectionalizeEngine {
 		runtime.prepareOutput();
 		
 		long now = System.nanoTime();
-		DirectionalizeEngine.doWork(runtime.getOutput(), runtime.getPropertiesFile());
+		DirectionalizeEngine.doWork(runtime.getOutput(), runtime.getPropertiesFile(), runtime.getCores());
 		
 		long then = System.nanoTime();
 		
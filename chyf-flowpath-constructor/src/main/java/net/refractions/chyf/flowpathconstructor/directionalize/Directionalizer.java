@@ -1,9 +1,17 @@
 package net.refractions.chyf.flowpathconstructor.directionalize;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.locationtech.jts.geom.Coordinate;
 import org.opengis.filter.identity.FeatureId;
@@ -17,6 +25,8 @@ import net.refractions.chyf.flowpathconstructor.ChyfProperties;
 import net.refractions.chyf.flowpathconstructor.ChyfProperties.Property;
 import net.refractions.chyf.flowpathconstructor.datasource.ChyfAngle;
 import net.refractions.chyf.flowpathconstructor.directionalize.graph.BridgeFinder;
+import net.refractions.chyf.flowpathconstructor.directionalize.graph.ConnectedComponents;
+import net.refractions.chyf.flowpathconstructor.directionalize.graph.CsrGraph;
 import net.refractions.chyf.flowpathconstructor.directionalize.graph.DEdge;
 import net.refractions.chyf.flowpathconstructor.directionalize.graph.DGraph;
 import net.refractions.chyf.flowpathconstructor.directionalize.graph.DNode;
@@ -25,9 +35,12 @@ import net.refractions.chyf.flowpathconstructor.directionalize.graph.Partition;
 import net.refractions.chyf.flowpathconstructor.directionalize.graph.PathDirectionalizer;
 import net.refractions.chyf.flowpathconstructor.directionalize.graph.SubGraph;
 import net.refractions.chyf.flowpathconstructor.directionalize.graph.TreeDirection;
+import net.refractions.chyf.util.CoordinateGrid;
 
 /**
- * Engine for directionalizing a flow network graph
+ * Engine for directionalizing a flow network graph.  Each connected
+ * component of the graph is an independent drainage network and 
+ * components are directionalized in parallel.
  * 
  * @author Emily
  *
@@ -36,19 +49,31 @@ public class Directionalizer {
 
 	private static final Logger logger = LoggerFactory.getLogger(Directionalizer.class.getCanonicalName());
 
-	private Set<FeatureId> toflip = new HashSet<>();
-	private Set<FeatureId> processed  = new HashSet<>();
+	private Set<FeatureId> toflip = new LinkedHashSet<>();
+	private Set<FeatureId> processed  = new LinkedHashSet<>();
 	
 	private ChyfAngle angleComputer = null;
 	private ChyfProperties prop;
+	private int cores;
 	
 	public Directionalizer(CoordinateReferenceSystem sourceCRS, ChyfProperties prop) {
+		this(sourceCRS, prop, 1);
+	}
+	
+	/**
+	 * 
+	 * @param sourceCRS
+	 * @param prop
+	 * @param cores number of threads to use for directionalizing components
+	 */
+	public Directionalizer(CoordinateReferenceSystem sourceCRS, ChyfProperties prop, int cores) {
 		angleComputer = new ChyfAngle(sourceCRS);
 		this.prop = prop;
+		this.cores = Math.max(1, cores);
 	}
 	
 	/**
-	 * features to flip
+	 * features to flip; ordered by component
 	 * @return
 	 */
 	public Set<FeatureId> getFeaturesToFlip(){
@@ -56,7 +81,7 @@ public class Directionalizer {
 	}
 	
 	/**
-	 * all processed features
+	 * all processed features; ordered by component
 	 * @return
 	 */
 	public Set<FeatureId> getProcessedFeatures(){
@@ -81,16 +106,18 @@ public class Directionalizer {
 		
 		graph.removeSameEdges();
 
+		//sink points are matched to the closest node within the tolerance
+		CoordinateGrid<DNode> nodes = new CoordinateGrid<>(prop.getProperty(Property.DIR_SINK_TOLERANCE));
+		for (DNode n : graph.getNodes()) nodes.put(n.getCoordinate(), n);
+		
 		boolean nosink = true;
-		for (DNode n : graph.getNodes()) {
-			for (int i = 0; i < sinkpoints.size(); i ++) {
-				Coordinate c = sinkpoints.get(i);
-				if (c.equals2D(n.getCoordinate())) {
-					n.setSink(true);
-					sinkNodes[i] = n;
-					nosink = false;
-				}
-			}			
+		for (int i = 0; i < sinkpoints.size(); i ++) {
+			DNode n = nodes.find(sinkpoints.get(i));
+			if (n != null) {
+				n.setSink(true);
+				sinkNodes[i] = n;
+				nosink = false;
+			}
 		}
 		
 		if (nosink) throw new Exception("No sink points found for graph.");
@@ -100,14 +127,54 @@ public class Directionalizer {
 			}
 		}
 
-		directionalizeGraph(graph, sinkNodes);
+		//independent drainage networks never share edges so
+		//each component can be directionalized on its own
+		ConnectedComponents cc = new ConnectedComponents(graph);
+		List<DGraph> components = cc.getComponents();
+		List<List<DNode>> componentSinks = new ArrayList<>();
+		for (int i = 0; i < components.size(); i ++) componentSinks.add(new ArrayList<>());
+		//sink points can snap to the same node
+		Set<DNode> seen = new HashSet<>();
+		for (DNode n : sinkNodes) {
+			if (seen.add(n)) componentSinks.get(cc.getComponent(n)).add(n);
+		}
 		
-		//process any non-directionalized edges here; generally these
-		//should be small isolated areas and sinks are picked at random
-		logger.info("Processing isloated areas");
-		for (DEdge e : graph.edges) {
-			if (e.getDType() == DirectionType.KNOWN) continue;
-			processNoSink(graph, e);
+		logger.info("Directionalizing " + components.size() + " network components");
+		List<Set<FeatureId>> flips = new ArrayList<>();
+		List<Set<FeatureId>> processes = new ArrayList<>();
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[components.size()];
+		ExecutorService service = Executors.newFixedThreadPool(cores);
+		try {
+			for (int i = 0; i < components.size(); i ++) {
+				DGraph component = components.get(i);
+				List<DNode> sinks = componentSinks.get(i);
+				Set<FeatureId> cflip = new LinkedHashSet<>();
+				Set<FeatureId> cprocessed = new LinkedHashSet<>();
+				flips.add(cflip);
+				processes.add(cprocessed);
+				futures[i] = CompletableFuture.runAsync(()->{
+					try {
+						directionalizeComponent(component, sinks, cflip, cprocessed);
+					}catch (Exception ex) {
+						throw new CompletionException(ex);
+					}
+				}, service);
+			}
+			
+			//results are combined in component order so the
+			//output is the same regardless of the number of threads
+			for (int i = 0; i < futures.length; i ++) {
+				try {
+					futures[i].join();
+				}catch (CompletionException ex) {
+					if (ex.getCause() instanceof Exception) throw (Exception)ex.getCause();
+					throw ex;
+				}
+				toflip.addAll(flips.get(i));
+				processed.addAll(processes.get(i));
+			}
+		}finally {
+			service.shutdownNow();
 		}
 		
 		for (DEdge e : graph.edges) {
@@ -117,33 +184,57 @@ public class Directionalizer {
 		}
 	}
 	
-	private void directionalizeGraph(DGraph graph, DNode[] sinkNodes) throws Exception {
+	/*
+	 * Directionalizes a connected component from its sinks then
+	 * directionalizes any remaining edges
+	 */
+	private void directionalizeComponent(DGraph component, List<DNode> sinks, 
+			Set<FeatureId> toflip, Set<FeatureId> processed) throws Exception {
+		if (!sinks.isEmpty()) directionalizeGraph(component, sinks.toArray(new DNode[sinks.size()]), toflip, processed);
+		
+		//process any non-directionalized edges here; generally these
+		//should be small isolated areas and sinks are picked at random
+		for (DEdge e : component.edges) {
+			if (e.getDType() == DirectionType.KNOWN) continue;
+			processNoSink(component, e, toflip, processed);
+		}
+	}
+	
+	private void directionalizeGraph(DGraph graph, DNode[] sinkNodes, 
+			Set<FeatureId> toflip, Set<FeatureId> processed) throws Exception {
 
-		List<DNode> toProcess = new ArrayList<>();
-		for (DNode n : sinkNodes) toProcess.add(n);
+		ArrayDeque<DNode> toProcess = new ArrayDeque<>();
+		//position of each sink in the sorted sink list
+		Map<DNode, Integer> sinkOrder = new HashMap<>();
+		for (int i = 0; i < sinkNodes.length; i ++) {
+			toProcess.add(sinkNodes[i]);
+			sinkOrder.putIfAbsent(sinkNodes[i], i);
+		}
+		//sinks that are part of a sub graph already processed
+		Set<DNode> doneSinks = new HashSet<>();
 		
 		while(!toProcess.isEmpty()) {
 			//logger.info("Processing sink.  Remaining: " + toProcess.size());
 			
-			DNode sink = toProcess.remove(0);
+			DNode sink = toProcess.removeFirst();
+			if (doneSinks.contains(sink)) continue;
 			
 			//find connected components
 			DGraph sub = SubGraph.computeSubGraph(graph, sink);
 			
 			//remove all sink nodes from processing list
-			for (DNode d : sub.getNodes())  if (d.isSink()) toProcess.remove(d);
+			for (DNode d : sub.getNodes())  if (d.isSink()) doneSinks.add(d);
 			
 			//find sorted list of local sinks
 			List<DNode> localSinks = new ArrayList<DNode>();
-			for (DNode s : sinkNodes) {
-				if (sub.getNodes().contains(s)) {
-					localSinks.add(s);
-				}
+			for (DNode d : sub.getNodes()) {
+				if (sinkOrder.containsKey(d)) localSinks.add(d);
 			}
+			localSinks.sort((a, b) -> Integer.compare(sinkOrder.get(a), sinkOrder.get(b)));
 			
 			//find bridge nodes
 			BridgeFinder bb = new BridgeFinder();
-			bb.computeBridges(sub, sink);
+			bb.computeBridges(new CsrGraph(sub), sink);
 
 			//partition graph at bridge nodes
 			Partition pp = new Partition();
@@ -166,8 +257,11 @@ public class Directionalizer {
 			//int total = pp.getSubGraphs().size();
 			for (DGraph subg : pp.getSubGraphs()) {
 				//logger.info("Processing subgraph " + (cnt++) + "/" + total);
-				pd.directionalize(subg);
-				postProcessShortEdges(subg);
+				//directionalizing flips edges but does not change 
+				//the subgraph structure so the view can be shared
+				CsrGraph csr = new CsrGraph(subg);
+				pd.directionalize(subg, csr);
+				postProcessShortEdges(subg, csr);
 			}
 			
 			//figure out which edges need flipping
@@ -205,7 +299,7 @@ public class Directionalizer {
 
 	}
 	
-	private void processNoSink(DGraph graph, DEdge start) throws Exception {
+	private void processNoSink(DGraph graph, DEdge start, Set<FeatureId> toflip, Set<FeatureId> processed) throws Exception {
 		//find connected components
 		DGraph sub = SubGraph.computeSubGraph(graph, start.getNodeA());
 		
@@ -220,13 +314,13 @@ public class Directionalizer {
 		}
 		
 
-		Set<DNode> sinks = new HashSet<>();
+		Set<DNode> sinks = new LinkedHashSet<>();
 		
 		//NOTE: we do not look for sinks from directionalized edges here
 		//as those should have be generated in the main processing
 		
 		//find all degree1 nodes that are downstream from a known edge
-		List<DNode> toprocess = new ArrayList<>();
+		ArrayDeque<DNode> toprocess = new ArrayDeque<>();
 		for (DEdge e : sub.edges) e.setVisited(false);
 		for (DEdge e : sub.edges) {
 			if (e.getDType() == DirectionType.UNKNOWN) continue;
@@ -234,7 +328,7 @@ public class Directionalizer {
 
 			toprocess.add(e.getNodeB());
 			while(!toprocess.isEmpty()) {
-				DNode n = toprocess.remove(0);
+				DNode n = toprocess.removeFirst();
 				for (DEdge eo : n.getEdges()) {
 					if (eo.isVisited()) continue;
 					if (eo.getDType() == DirectionType.KNOWN) continue;
@@ -271,11 +365,11 @@ public class Directionalizer {
 		if (sinks.isEmpty()) {
 			sinks.add(sub.nodes.get(0));
 		}
-		directionalizeGraph(sub, sinks.toArray(new DNode[sinks.size()]));
+		directionalizeGraph(sub, sinks.toArray(new DNode[sinks.size()]), toflip, processed);
 	}
 	
 	
-	private void postProcessShortEdges(DGraph g) throws Exception {
+	private void postProcessShortEdges(DGraph g, CsrGraph csr) throws Exception {
 		double minlength = prop.getProperty(Property.DIR_SHORT_SEGMENT);
 		for (DEdge e : g.getEdges()) {
 			
@@ -311,7 +405,7 @@ public class Directionalizer {
 			Coordinate start = e.getNodeA().getCoordinate();
 			for (DEdge in : e.getNodeA().getEdges()) {
 				if (in == e) continue;
-				if (!g.getEdges().contains(in)) continue;
+				if (!csr.contains(in)) continue;
 				Coordinate a = in.getNodeA().getCoordinate();
 				Coordinate b = in.getNodeB().getCoordinate();
 				double xoff = a.x - start.x;
@@ -323,7 +417,7 @@ public class Directionalizer {
 			
 			for (DEdge out : e.getNodeB().getEdges()) {
 				if (out == e) continue;
-				if (!g.getEdges().contains(out)) continue;
+				if (!csr.contains(out)) continue;
 				Coordinate a = out.getNodeA().getCoordinate();
 				Coordinate b = out.getNodeB().getCoordinate();
 					
@@ -358,7 +452,7 @@ public class Directionalizer {
 				temp.getNodes().add(e.getNodeA());
 				temp.getNodes().add(e.getNodeB());
 				//check for cycles
-				if (Directionalizer.cycleCheck(temp, g)) {
+				if (Directionalizer.cycleCheck(temp, csr)) {
 					//revert flip
 					e.flip();
 				}
@@ -377,36 +471,22 @@ public class Directionalizer {
 	 * @return
 	 */
 	public static boolean cycleCheck(DPath path, DGraph graph) {
-		return findCycles(path, graph);
+		return cycleCheck(path, new CsrGraph(graph));
 	}
 	
-	private static boolean findCycles(DPath path, DGraph graph) {
-		graph.getEdges().forEach(e->e.setVisited(false));
-		for(DEdge f : path.getEdges()) {
-			if(findCycles(f, new HashSet<DEdge>(), graph)) {
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	private static boolean findCycles(DEdge f, HashSet<DEdge> visited, DGraph graph) {
-		if (f.isVisited()) return false;
-		if(visited.contains(f)) {
-			return true;
-		}
-		visited.add(f);
-		for (DEdge u : f.getNodeA().getEdges()) {
-			if (u.getDType() == DirectionType.UNKNOWN) continue;
-			if (!graph.getEdges().contains(u)) continue;
-			if (u.getNodeB() == f.getNodeA()) {
-				if (findCycles(u, visited, graph)) {
-					return true;
-				}
-			}
+	/**
+	 * Same as {@link #cycleCheck(DPath, DGraph)} but uses an existing
+	 * CSR view of the graph for edge membership tests.
+	 * 
+	 * @param path
+	 * @param graph
+	 * @return
+	 */
+	public static boolean cycleCheck(DPath path, CsrGraph graph) {
+		int[] starts = new int[path.getEdges().size()];
+		for (int i = 0; i < starts.length; i ++) {
+			starts[i] = graph.getNodeId(path.getEdges().get(i).getNodeA());
 		}
-		f.setVisited(true);
-		visited.remove(f);
-		return false;
+		return CycleChecker.findCycle(graph, starts, true) != -1;
 	}
 }
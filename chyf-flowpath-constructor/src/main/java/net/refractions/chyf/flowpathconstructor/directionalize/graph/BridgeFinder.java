@@ -15,19 +15,24 @@
  */
 package net.refractions.chyf.flowpathconstructor.directionalize.graph;
 
+import java.util.Arrays;
+import java.util.BitSet;
+
 /**
  * Computes "bridge" edges in a graph.  Sets
  * the isBridge flag of these edges.  A bridge edge
  * is an edge that if removed from the graph increases the
  * number of distinct connected components in the graph.
  * 
+ * Uses Tarjan's bridge algorithm with an explicit stack so 
+ * long chains of edges do not overflow the thread stack. Runs in
+ * time and memory linear in the size of the graph.
+ * 
  * @author Emily
  *
  */
 public class BridgeFinder {
 	
-    private int cnt;          // counter
-
     public BridgeFinder() {
     	
     }
@@ -38,32 +43,90 @@ public class BridgeFinder {
      * @param source any node in the graph
      */
     public void computeBridges(DGraph graph, DNode source) {
-    	cnt = 0;
-    	graph.nodes.forEach(n->{
-    		n.bridgeMin = -1;
-    		n.bridgePre = -1;
-    	});
-    	source.bridgePre = -1;
+    	computeBridges(new CsrGraph(graph), source);
+    }
+    
+    /**
+     * 
+     * @param csr view of the graph to compute bridges for
+     * @param source any node in the graph
+     */
+    public void computeBridges(CsrGraph csr, DNode source) {
+    	int s = csr.getNodeId(source);
+    	if (s == -1) return;
     	
-    	dfs(source, source);
+    	BitSet bridges = findBridges(csr.getNodeCount(), csr.getOffsets(), csr.getAdjacency(), 
+    			csr.getEnds1(), csr.getEnds2(), s);
+    	for (int e = bridges.nextSetBit(0); e >= 0; e = bridges.nextSetBit(e + 1)) {
+    		csr.getEdge(e).setBridge();
+    	}
     }
     
-    //TODO: make not recursive
-    private void dfs(DNode u, DNode v) {
-    	v.bridgePre = cnt++;
-    	v.bridgeMin = v.bridgePre;
-    	for (DEdge e : v.getEdges()) {
-    		DNode w = e.getOtherNode(v);
-    		if (w.bridgePre == -1) {
-    			dfs(v, w);
-    			v.bridgeMin = Math.min(v.bridgeMin, w.bridgeMin);
-    			if (w.bridgeMin == w.bridgePre) {
-    				e.setBridge();
+    /**
+     * Finds the bridge edges in the connected component containing the source node.
+     * Edges are undirected; an end node of -1 is outside the graph and ignored.
+     * 
+     * @param nodeCount number of nodes
+     * @param offsets incident edges of node i are adjacency[offsets[i]] to adjacency[offsets[i+1]-1]
+     * @param adjacency incident edge ids
+     * @param end1 one end node of each edge
+     * @param end2 other end node of each edge
+     * @param source node to start from
+     * @return the ids of the bridge edges
+     */
+    public static BitSet findBridges(int nodeCount, int[] offsets, int[] adjacency, 
+    		int[] end1, int[] end2, int source) {
+    	BitSet bridges = new BitSet(end1.length);
+    	
+    	//preorder number and lowest reachable preorder number
+    	//for each node; -1 if not visited
+    	int[] pre = new int[nodeCount];
+    	int[] min = new int[nodeCount];
+    	Arrays.fill(pre, -1);
+    	
+    	//dfs stack: node, edge used to reach the node and 
+    	//position of the next incident edge to process
+    	int[] stack = new int[nodeCount];
+    	int[] parentEdge = new int[nodeCount];
+    	int[] next = new int[nodeCount];
+    	
+    	int cnt = 0;
+    	int depth = 0;
+    	stack[0] = source;
+    	parentEdge[0] = -1;
+    	next[0] = offsets[source];
+    	pre[source] = cnt++;
+    	min[source] = pre[source];
+    	
+    	while (depth >= 0) {
+    		int v = stack[depth];
+    		if (next[depth] < offsets[v + 1]) {
+    			int e = adjacency[next[depth]++];
+    			if (e == parentEdge[depth]) continue;
+    			int w = end1[e] == v ? end2[e] : end1[e];
+    			if (w == -1) continue;
+    			if (pre[w] == -1) {
+    				pre[w] = cnt++;
+    				min[w] = pre[w];
+    				depth++;
+    				stack[depth] = w;
+    				parentEdge[depth] = e;
+    				next[depth] = offsets[w];
+    			}else {
+    				min[v] = Math.min(min[v], pre[w]);
+    			}
+    		}else {
+    			//all edges of v processed; return to parent
+    			int e = parentEdge[depth];
+    			depth--;
+    			if (depth >= 0) {
+    				int u = stack[depth];
+    				min[u] = Math.min(min[u], min[v]);
+    				if (min[v] == pre[v]) bridges.set(e);
     			}
-    		}else if (w != u){
-    			v.bridgeMin = Math.min(v.bridgeMin, w.bridgePre);
     		}
-    	}     
+    	}
+    	return bridges;
     }
     
-}
\ No newline at end of file
+}
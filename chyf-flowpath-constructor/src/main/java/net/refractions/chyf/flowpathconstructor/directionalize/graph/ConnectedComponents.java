@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Government of Canada
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.refractions.chyf.flowpathconstructor.directionalize.graph;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits a graph into its connected components using 
+ * union-find over the graph edges.  Direction is not taken into account.
+ * Components are ordered by the position of their first node in the graph and the 
+ * nodes and edges of each component are kept in graph order, so the decomposition
+ * is the same every time for the same graph.  Reuses DNode and DEdge objects.
+ * 
+ * @author Emily
+ *
+ */
+public class ConnectedComponents {
+
+	private List<DGraph> components = new ArrayList<>();
+	private Map<DNode, Integer> componentIndex = new IdentityHashMap<>();
+	
+	public ConnectedComponents(DGraph graph) {
+		compute(graph);
+	}
+	
+	/**
+	 * 
+	 * @return the connected components of the graph; nodes without 
+	 * any edges are included as components with no edges
+	 */
+	public List<DGraph> getComponents(){
+		return components;
+	}
+	
+	/**
+	 * 
+	 * @param node
+	 * @return the index of the component containing the node or -1 if
+	 * the node is not in the graph
+	 */
+	public int getComponent(DNode node) {
+		Integer index = componentIndex.get(node);
+		if (index == null) return -1;
+		return index;
+	}
+	
+	private void compute(DGraph graph) {
+		Map<DNode, Integer> nodeIndex = new IdentityHashMap<>();
+		for (DNode n : graph.getNodes()) nodeIndex.put(n, nodeIndex.size());
+		
+		int[] parent = new int[nodeIndex.size()];
+		for (int i = 0; i < parent.length; i ++) parent[i] = i;
+		
+		for (DEdge e : graph.getEdges()) {
+			int a = find(parent, nodeIndex.get(e.getNodeA()));
+			int b = find(parent, nodeIndex.get(e.getNodeB()));
+			//keep the smallest index as the root so roots
+			//are visited in graph order below
+			if (a < b) {
+				parent[b] = a;
+			}else if (b < a) {
+				parent[a] = b;
+			}
+		}
+		
+		int[] rootComponent = new int[parent.length];
+		for (int i = 0; i < parent.length; i ++) {
+			int root = find(parent, i);
+			if (root == i) {
+				rootComponent[i] = components.size();
+				components.add(new DGraph(new ArrayList<>(), new ArrayList<>()));
+			}
+			DNode n = graph.getNodes().get(i);
+			componentIndex.put(n, rootComponent[root]);
+			components.get(rootComponent[root]).nodes.add(n);
+		}
+		for (DEdge e : graph.getEdges()) {
+			components.get(componentIndex.get(e.getNodeA())).edges.add(e);
+		}
+	}
+	
+	private static int find(int[] parent, int i) {
+		while(parent[i] != i) {
+			//path halving
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2019 Government of Canada
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.refractions.chyf.flowpathconstructor.directionalize.graph;
+
+import net.refractions.chyf.datasource.DirectionType;
+
+/**
+ * Compressed sparse row view of a DGraph.  Nodes and edges are identified by 
+ * their index in the graph node and edge lists and the edges incident to each node
+ * are stored in a single int array, so traversals can use primitive arrays 
+ * and bitsets for their working state instead of fields and collections on the
+ * DNode and DEdge objects.
+ * 
+ * Only edges in the graph are included in the adjacency; nodes of subgraphs
+ * created by the Partition reference edges outside the subgraph and these are
+ * skipped.  The incident edges of each node are in the same order as DNode.getEdges().
+ * 
+ * The view holds the graph structure only.  Edge direction is read from the edges
+ * as it changes while the graph is directionalized.  The view is not valid
+ * once nodes or edges are added, removed or collapsed.
+ * 
+ * Ids are looked up using the index stored on the DNode and DEdge objects 
+ * when the view is created, so only the most recently created view over a node 
+ * or edge can find its id.  Views over the same graph assign the same ids.
+ * 
+ * @author Emily
+ *
+ */
+public class CsrGraph {
+
+	private DGraph graph;
+	
+	private DNode[] nodes;
+	private DEdge[] edges;
+	
+	//incident edges of node i are adjacency[offsets[i]] to adjacency[offsets[i+1]-1]
+	private int[] offsets;
+	private int[] adjacency;
+	
+	//end nodes of each edge; -1 if the node is not in the graph.
+	//these are unordered as flipping an edge swaps its nodes
+	private int[] end1;
+	private int[] end2;
+	
+	public CsrGraph(DGraph graph) {
+		this.graph = graph;
+		
+		nodes = graph.nodes.toArray(new DNode[graph.nodes.size()]);
+		edges = graph.edges.toArray(new DEdge[graph.edges.size()]);
+		
+		for (int i = 0; i < nodes.length; i ++) nodes[i].index = i;
+		for (int i = 0; i < edges.length; i ++) edges[i].index = i;
+		
+		end1 = new int[edges.length];
+		end2 = new int[edges.length];
+		for (int i = 0; i < edges.length; i ++) {
+			end1[i] = getNodeId(edges[i].getNodeA());
+			end2[i] = getNodeId(edges[i].getNodeB());
+		}
+		
+		offsets = new int[nodes.length + 1];
+		for (int i = 0; i < nodes.length; i ++) {
+			int cnt = 0;
+			for (DEdge e : nodes[i].getEdges()) {
+				if (contains(e)) cnt++;
+			}
+			offsets[i + 1] = offsets[i] + cnt;
+		}
+		adjacency = new int[offsets[nodes.length]];
+		for (int i = 0; i < nodes.length; i ++) {
+			int index = offsets[i];
+			for (DEdge e : nodes[i].getEdges()) {
+				if (contains(e)) adjacency[index++] = e.index;
+			}
+		}
+	}
+	
+	/**
+	 * @return the graph this view was created from
+	 */
+	public DGraph getGraph() {
+		return graph;
+	}
+	
+	public int getNodeCount() {
+		return nodes.length;
+	}
+	
+	public int getEdgeCount() {
+		return edges.length;
+	}
+	
+	public DNode getNode(int node) {
+		return nodes[node];
+	}
+	
+	public DEdge getEdge(int edge) {
+		return edges[edge];
+	}
+	
+	/**
+	 * @param node
+	 * @return the node id or -1 if the node is not in the graph
+	 */
+	public int getNodeId(DNode node) {
+		int id = node.index;
+		if (id < 0 || id >= nodes.length || nodes[id] != node) return -1;
+		return id;
+	}
+	
+	/**
+	 * @param edge
+	 * @return the edge id or -1 if the edge is not in the graph
+	 */
+	public int getEdgeId(DEdge edge) {
+		int id = edge.index;
+		if (id < 0 || id >= edges.length || edges[id] != edge) return -1;
+		return id;
+	}
+	
+	/**
+	 * @param edge
+	 * @return true if the edge is part of the graph
+	 */
+	public boolean contains(DEdge edge) {
+		return getEdgeId(edge) != -1;
+	}
+	
+	/**
+	 * The incident edges of node i are adjacency[offsets[i]] to
+	 * adjacency[offsets[i+1]-1].  The returned array is not a copy 
+	 * and must not be modified.
+	 * 
+	 * @return the adjacency offsets for each node, of length node count + 1
+	 */
+	public int[] getOffsets() {
+		return offsets;
+	}
+	
+	/**
+	 * The returned array is not a copy and must not be modified.
+	 * 
+	 * @return the incident edge ids of all nodes
+	 * @see #getOffsets()
+	 */
+	public int[] getAdjacency() {
+		return adjacency;
+	}
+	
+	/**
+	 * The returned array is not a copy and must not be modified.
+	 * 
+	 * @return one end node of each edge; -1 if the node is not in the graph
+	 * @see #getNodeA(int)
+	 */
+	public int[] getEnds1() {
+		return end1;
+	}
+	
+	/**
+	 * The returned array is not a copy and must not be modified.
+	 * 
+	 * @return the other end node of each edge; -1 if the node is not in the graph
+	 * @see #getNodeB(int)
+	 */
+	public int[] getEnds2() {
+		return end2;
+	}
+	
+	/**
+	 * @param node
+	 * @return the number of graph edges incident to the node
+	 */
+	public int getDegree(int node) {
+		return offsets[node + 1] - offsets[node];
+	}
+	
+	/**
+	 * @param node
+	 * @param i index between 0 and the node degree
+	 * @return the id of the i'th edge incident to the node
+	 */
+	public int getIncidentEdge(int node, int i) {
+		return adjacency[offsets[node] + i];
+	}
+	
+	/**
+	 * @param edge
+	 * @return the id of the edge start node (node A) or -1 if
+	 * the node is not in the graph
+	 */
+	public int getNodeA(int edge) {
+		return findNode(edges[edge].getNodeA(), edge);
+	}
+	
+	/**
+	 * @param edge
+	 * @return the id of the edge end node (node B) or -1 if
+	 * the node is not in the graph
+	 */
+	public int getNodeB(int edge) {
+		return findNode(edges[edge].getNodeB(), edge);
+	}
+	
+	private int findNode(DNode node, int edge) {
+		if (end1[edge] != -1 && nodes[end1[edge]] == node) return end1[edge];
+		if (end2[edge] != -1 && nodes[end2[edge]] == node) return end2[edge];
+		return -1;
+	}
+	
+	/**
+	 * @param edge
+	 * @param node
+	 * @return the id of the other node of the edge, -1 if the
+	 * other node is not in the graph
+	 */
+	public int getOtherNode(int edge, int node) {
+		if (end1[edge] == node) return end2[edge];
+		return end1[edge];
+	}
+	
+	/**
+	 * @param edge
+	 * @return true if the edge direction is known
+	 */
+	public boolean isKnown(int edge) {
+		return edges[edge].getDType() == DirectionType.KNOWN;
+	}
+}
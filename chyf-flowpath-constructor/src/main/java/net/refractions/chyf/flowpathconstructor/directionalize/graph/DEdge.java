@@ -50,6 +50,9 @@ public class DEdge {
 	//a path or not
 	protected boolean pathedge = false;
 	
+	//index in the most recent CsrGraph created over this edge
+	protected int index = -1;
+	
 	
 	private DirectionType rawdt;
 	
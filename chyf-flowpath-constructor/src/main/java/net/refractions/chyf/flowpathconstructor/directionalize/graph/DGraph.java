@@ -19,8 +19,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.locationtech.jts.geom.Coordinate;
 
@@ -119,31 +122,31 @@ public class DGraph {
 	 * @throws Exception
 	 */
 	public void removeSameEdges() throws Exception {
-		List<DEdge> remove = new ArrayList<>();
+		Set<DEdge> remove = new HashSet<>();
 		
+		//for each node keep the first edge to every neighbour; any later 
+		//edge to the same neighbour is a duplicate of that edge
+		Map<DNode, DEdge> first = new HashMap<>();
 		for (DNode d : nodes) {
-			for (int i = 0 ; i < d.getEdges().size() ;i ++) {
-				DEdge out1 = d.getEdges().get(i);
-				for (int j = i + 1; j < d.getEdges().size(); j ++) {
-					DEdge out2 = d.getEdges().get(j);
-			
-					if ((out1.getNodeA() == out2.getNodeA() && out1.getNodeB() == out2.getNodeB()) ||
-						(out1.getNodeA() == out2.getNodeB() && out1.getNodeB() == out2.getNodeA())) {
-						//remove out2
-						out1.addSameEdge(out2);
-						remove.add(out2);
-					}
-				} 
-				if (out1.getNodeA() == out1.getNodeB()){
-					throw new Exception("Circular reference found in graph: " + out1.getNodeA().toString());
+			first.clear();
+			for (DEdge out : d.getEdges()) {
+				if (out.getNodeA() == out.getNodeB()){
+					throw new Exception("Circular reference found in graph: " + out.getNodeA().toString());
+				}
+				if (remove.contains(out)) continue;
+				
+				DEdge out1 = first.putIfAbsent(out.getOtherNode(d), out);
+				if (out1 != null) {
+					out1.addSameEdge(out);
+					remove.add(out);
 				}
 			}
 		}
+		if (remove.isEmpty()) return;
 		
-		getEdges().removeAll(remove);
-		for (DEdge e : remove) {
-			e.getNodeA().getEdges().remove(e);
-			e.getNodeB().getEdges().remove(e);
+		getEdges().removeIf(e->remove.contains(e));
+		for (DNode d : nodes) {
+			d.getEdges().removeIf(e->remove.contains(e));
 		}
 	}
 	
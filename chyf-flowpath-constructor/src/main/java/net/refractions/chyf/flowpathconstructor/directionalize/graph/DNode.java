@@ -32,21 +32,19 @@ public class DNode {
 	private List<DEdge> edges = new ArrayList<>();
 	private boolean isSink = false;
 	
-	//these two variable to used in
-	//the bridge edge calculations	
-	protected int bridgePre = -1;
-	protected int bridgeMin = -1;
-
-	//used for computing shortest paths
+	//used for ordering source nodes by distance to sinks
 	protected double pathdistance = 0;
 	//true if is on an existing created path
 	protected boolean pathnode;
-	//visited flag used by shortest path finder
+	//visited flag used by straightest path finder
 	protected boolean pathvisited;
 	
 	//used for computing subgraphs
 	protected boolean visited = false;
 	
+	//index in the most recent CsrGraph created over this node
+	protected int index = -1;
+	
 	public DNode(Coordinate c) {
 		this.c = c;
 		this.isSink = false;
@@ -57,6 +57,17 @@ public class PathDirectionalizer {
 	 * provide a reference to the bigger graph.
 	 */
 	public void directionalize(DGraph subGraph) throws Exception {
+		directionalize(subGraph, new CsrGraph(subGraph));
+	}
+	
+	/**
+	 * Same as {@link #directionalize(DGraph)} but uses an existing
+	 * CSR view of the subgraph.
+	 * 
+	 * @param subGraph
+	 * @param csr view of the subgraph
+	 */
+	public void directionalize(DGraph subGraph, CsrGraph csr) throws Exception {
 		Set<DNode> sinks = new HashSet<>();
 		Set<DNode> sources = new HashSet<>();
 		
@@ -69,7 +80,7 @@ public class PathDirectionalizer {
 			
 			//find the edge not in the graph
 			for (DEdge e : n.getEdges()) {
-				if (!subGraph.getEdges().contains(e)) {
+				if (!csr.contains(e)) {
 					if (e.getNodeA() == subGraph.collapseNode) {
 						sinks.add(n);
 					}else {
@@ -154,10 +165,15 @@ public class PathDirectionalizer {
 			}
 			logger.warn("Loop case detected where a random source node will be created. Source node created at: " + src.toString());
 		}
-		dir(subGraph, sinks, sources);
+		dir(csr, sinks, sources);
 	}
 	
 	public void dir(DGraph graph, Set<DNode> sinks, Set<DNode> sources) throws Exception{
+		dir(new CsrGraph(graph), sinks, sources);
+	}
+	
+	private void dir(CsrGraph csr, Set<DNode> sinks, Set<DNode> sources) throws Exception{
+		DGraph graph = csr.getGraph();
 		//set of paths created
 		List<DPath> paths = new ArrayList<>();
 
@@ -175,7 +191,7 @@ public class PathDirectionalizer {
 		
 		//find shortest path from every source to every sink
 		for (DNode sourcenode : ordered) {
-			DPath path = PathFinder.findPath(sourcenode,  sinks, graph);
+			DPath path = PathFinder.findPath(sourcenode,  sinks, csr);
 			//directionalize path
 			if (path != null) {
 				path.nodes.forEach(n->n.pathnode = true);
@@ -197,14 +213,14 @@ public class PathDirectionalizer {
 
 		while(true) {
 			//find edge to visit next
-			DEdge toprocess = findUnvisitedEdge(graph, paths, sinks, fail);
+			DEdge toprocess = findUnvisitedEdge(csr, paths, sinks, fail);
 			if (toprocess == null) break;
 
 
 			//create a path
 			DPath temp = findStraightestPath(toprocess, sinks, graph);
 			if (temp == null ) {
-				temp = PathFinder.findPath(toprocess.getNodeB(), sinks, graph);
+				temp = PathFinder.findPath(toprocess.getNodeB(), sinks, csr);
 			}
 //			DPath temp = PathFinder.findPath(toprocess.getNodeB(), sinks, graph);
 			
@@ -224,13 +240,13 @@ public class PathDirectionalizer {
 	
 			boolean canflip = true;
 			//check for cycle and flip is necessary
-			if (Directionalizer.cycleCheck(temp, graph)) {
+			if (Directionalizer.cycleCheck(temp, csr)) {
 				canflip = false;
 				//flip
 				Collections.reverse(temp.edges);
 				Collections.reverse(temp.nodes);
 				for (DEdge e : temp.edges) e.flip();
-				if (Directionalizer.cycleCheck(temp, graph)) {
+				if (Directionalizer.cycleCheck(temp, csr)) {
 					throw new Exception("Cannot add path as both directions for this path creates a cycle. " + temp.toString());
 				}
 			}
@@ -258,7 +274,7 @@ public class PathDirectionalizer {
 						Coordinate c3 = first.getNextToA();
 						if (in.getDType() == DirectionType.KNOWN && in.getNodeB() == start) {
 							c1 = in.getNextToB();
-						}else if (!graph.edges.contains(in) && in.getDType() == DirectionType.KNOWN) {
+						}else if (!csr.contains(in) && in.getDType() == DirectionType.KNOWN) {
 							
 							if (in.getNodeB() == graph.collapseNode) {
 								c1 = in.getNextToB();
@@ -286,7 +302,7 @@ public class PathDirectionalizer {
 							//compute angle
 							c1 = in.getNextToB();
 							
-						}else if (!graph.edges.contains(in) && in.getDType() == DirectionType.KNOWN) {
+						}else if (!csr.contains(in) && in.getDType() == DirectionType.KNOWN) {
 							
 							if (in.getNodeB() == graph.collapseNode) 
 								c1= in.getNextToB();
@@ -310,7 +326,7 @@ public class PathDirectionalizer {
 							Collections.reverse(temp.nodes);
 							for (DEdge e : temp.edges) e.flip();
 							
-							if (Directionalizer.cycleCheck(temp, graph)) {
+							if (Directionalizer.cycleCheck(temp, csr)) {
 								Collections.reverse(temp.edges);
 								Collections.reverse(temp.nodes);
 								for (DEdge e : temp.edges) e.flip();
@@ -344,7 +360,7 @@ public class PathDirectionalizer {
 	 * @param dtype
 	 * @return
 	 */
-	private static DEdge findUnvisitedEdge(DGraph graph, List<DPath> paths, Set<DNode> sinks, Set<DEdge> failed) throws Exception{
+	private static DEdge findUnvisitedEdge(CsrGraph graph, List<DPath> paths, Set<DNode> sinks, Set<DEdge> failed) throws Exception{
 		DEdge undir = null;
 		boolean needsflip = false;
 		for (DPath path : paths) {
@@ -353,7 +369,7 @@ public class PathDirectionalizer {
 				
 				for (DEdge e : n.getEdges()) {
 					if (e.pathedge) continue;
-					if (!graph.edges.contains(e)) continue;
+					if (!graph.contains(e)) continue;
 					
 					if (failed.contains(e)) continue;
 					
@@ -383,7 +399,7 @@ public class PathDirectionalizer {
 		for (DNode n : sinks) {
 			for (DEdge e : n.getEdges()) {
 				if (e.pathedge) continue;
-				if (!graph.edges.contains(e)) continue;
+				if (!graph.contains(e)) continue;
 				if (failed.contains(e)) continue;
 				if (e.getDType() == DirectionType.KNOWN && e.getNodeA() != n) continue;
 				if (e.getDType() == DirectionType.KNOWN) return e;
@@ -15,13 +15,12 @@
  */
 package net.refractions.chyf.flowpathconstructor.directionalize.graph;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.PriorityQueue;
 import java.util.Set;
 
-import net.refractions.chyf.datasource.DirectionType;
-
 /**
  * Finds the shortest path between the source node and the sink node.
  * 
@@ -35,7 +34,6 @@ import net.refractions.chyf.datasource.DirectionType;
 public class PathFinder {
 	
 
-	//the subgraph nodes can contain references to edges that are not
 	/**
 	 * Finds the shorest path from source to sink.  
 	 * @param source source node
@@ -44,40 +42,59 @@ public class PathFinder {
 	 * @return
 	 */
 	public static DPath findPath(DNode source, Set<DNode> sink, DGraph graph) {
+		return findPath(source, sink, new CsrGraph(graph));
+	}
+	
+	/**
+	 * Finds the shorest path from source to sink.  Nodes at the
+	 * same distance are visited in the order they were first reached.
+	 *  
+	 * @param source source node
+	 * @param sink sink nodes 
+	 * @param graph graph
+	 * @return
+	 */
+	public static DPath findPath(DNode source, Set<DNode> sink, CsrGraph graph) {
+		int s = graph.getNodeId(source);
+		if (s == -1) return null;
 		
-		HashMap<DNode, Object[]> prev = new HashMap<>();
-		List<DNode> tovisit = new ArrayList<>();
-
-		for (DNode n : graph.nodes) {
-			n.pathdistance = Double.MAX_VALUE;
-			n.pathvisited = false;
-		}
+		int n = graph.getNodeCount();
+		double[] distance = new double[n];
+		Arrays.fill(distance, Double.MAX_VALUE);
+		int[] prevEdge = new int[n];
+		int[] prevNode = new int[n];
+		//order in which nodes are first reached; used to break ties
+		int[] reached = new int[n];
+		Arrays.fill(reached, -1);
+		BitSet visited = new BitSet(n);
+		
+		PriorityQueue<NodeDistance> tovisit = new PriorityQueue<>();
+		int cnt = 0;
 		
-		source.pathdistance = 0;
-		tovisit.add(source);
+		distance[s] = 0;
+		prevEdge[s] = -1;
+		reached[s] = cnt++;
+		tovisit.add(new NodeDistance(s, 0, reached[s]));
 		
 		while(!tovisit.isEmpty()) {
-			DNode max = null;
-			//find the path nearest node
-			for (DNode n : tovisit) {
-				if (max == null || n.pathdistance < max.pathdistance) {
-					max = n;
-				}
-			}
-
-			if (sink.contains(max) ) {
+			NodeDistance nd = tovisit.poll();
+			int max = nd.node;
+			//skip entries for nodes that have since been reached by a shorter path
+			if (visited.get(max) || nd.distance != distance[max]) continue;
+			
+			if (sink.contains(graph.getNode(max))) {
 				//stop
 				//follow prev to source to get path
 				DPath p = new DPath();
-				DNode c = max;
-				p.nodes.add(0, c);
-				
-				Object[] pv = prev.get(c);
-				while(pv != null) {
-					p.nodes.add(0, (DNode)pv[0]);
-					p.edges.add(0, (DEdge)pv[1]);	
-					pv = prev.get((DNode)pv[0]);	
+				int c = max;
+				p.nodes.add(graph.getNode(c));
+				while(prevEdge[c] != -1) {
+					p.edges.add(graph.getEdge(prevEdge[c]));
+					c = prevNode[c];
+					p.nodes.add(graph.getNode(c));
 				}
+				Collections.reverse(p.nodes);
+				Collections.reverse(p.edges);
 				
 				//trim path to the first node that is used
 				//in another node 
@@ -92,23 +109,22 @@ public class PathFinder {
 				return p;
 			}
 			
-			tovisit.remove(max);
-			max.pathvisited = true;
+			visited.set(max);
 			
-			for (DEdge e : max.getEdges()) {
-				//if the subgraph nodes contain references to edges that are not
-				//in the subgraph; we only want to follow edges in the subgraph
-				if (!graph.edges.contains(e)) continue;
-				if (e.getDType() == DirectionType.KNOWN) if (e.getNodeA() != max) continue;
+			for (int i = 0; i < graph.getDegree(max); i ++) {
+				int e = graph.getIncidentEdge(max, i);
+				if (graph.isKnown(e)) if (graph.getNodeA(e) != max) continue;
 				
-				DNode o = e.getOtherNode(max);
-				if (o.pathvisited) continue;
+				int o = graph.getOtherNode(e, max);
+				if (o == -1 || visited.get(o)) continue;
 				
-				double alt = max.pathdistance + e.getLength();
-				if (alt < o.pathdistance) {
-					o.pathdistance = alt;
-					prev.put(o, new Object[] {max, e});
-					tovisit.add(o);
+				double alt = distance[max] + graph.getEdge(e).getLength();
+				if (alt < distance[o]) {
+					distance[o] = alt;
+					prevEdge[o] = e;
+					prevNode[o] = max;
+					if (reached[o] == -1) reached[o] = cnt++;
+					tovisit.add(new NodeDistance(o, alt, reached[o]));
 				}
 			}
 		}
@@ -116,6 +132,23 @@ public class PathFinder {
 		
 	}
 	
-	
+	private static class NodeDistance implements Comparable<NodeDistance>{
+		int node;
+		double distance;
+		int reached;
+		
+		NodeDistance(int node, double distance, int reached){
+			this.node = node;
+			this.distance = distance;
+			this.reached = reached;
+		}
+
+		@Override
+		public int compareTo(NodeDistance o) {
+			int c = Double.compare(distance, o.distance);
+			if (c != 0) return c;
+			return Integer.compare(reached, o.reached);
+		}
+	}
 
 }
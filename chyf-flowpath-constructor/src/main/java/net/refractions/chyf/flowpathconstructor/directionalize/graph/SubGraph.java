@@ -15,6 +15,7 @@
  */
 package net.refractions.chyf.flowpathconstructor.directionalize.graph;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,11 +35,11 @@ public class SubGraph {
 		graph.edges.forEach(e->e.visited = false);
 		graph.nodes.forEach(e->e.visited = false);
 
-		List<DEdge> toVisit = new ArrayList<>();
+		ArrayDeque<DEdge> toVisit = new ArrayDeque<>();
 		toVisit.addAll(sink.getEdges());
 		
 		while(!toVisit.isEmpty()) {
-			DEdge e = toVisit.remove(0);
+			DEdge e = toVisit.poll();
 			if (e.visited) continue;
 			
 			e.visited = true;
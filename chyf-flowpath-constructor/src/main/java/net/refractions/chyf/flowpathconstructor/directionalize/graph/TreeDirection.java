@@ -16,14 +16,13 @@
 package net.refractions.chyf.flowpathconstructor.directionalize.graph;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.refractions.chyf.datasource.DirectionType;
-
 /**
  * Directionalizes a non-directionalized tree structured
  * based on a set of sink nodes.  The order of the sink nodes
@@ -47,11 +46,14 @@ public class TreeDirection {
 	 * @param localSinks
 	 */
 	public void directionalize(DGraph graph, List<DNode> localSinks) throws Exception {
-		graph.edges.forEach(e->e.visited = false);
+		CsrGraph csr = new CsrGraph(graph);
+		BitSet visited = new BitSet(csr.getEdgeCount());
+		//node queue for walking upstream; each edge adds at most one node
+		int[] tovisit = new int[csr.getEdgeCount() + 1];
 		
 		//process main sink first
 		DNode sink = localSinks.get(0);
-		visitUpstream(sink);
+		visitUpstream(csr, visited, tovisit, sink);
 		
 		if (localSinks.size() != 1) {
 			
@@ -100,52 +102,64 @@ public class TreeDirection {
 					}else {
 						e.setKnown();
 					}
-					e.visited = true;
+					int eid = csr.getEdgeId(e);
+					if (eid != -1) visited.set(eid);
 					temp.add(e);
 					prev = sink;
 					sink = e.getOtherNode(sink);
 				}
 				
 				//walk up any unvisited edges that go into one of the nodes above
-				for (DNode d : toVisit) visitUpstream(d);
+				for (DNode d : toVisit) visitUpstream(csr, visited, tovisit, d);
 			}
 			
 			
 			
 		}
 		
-		for (DEdge d : graph.edges) {
-			if (!d.visited) {
-				logger.error("Not all edges visited when directionalizing tree.  At least one eddge missed: " + d.toString());
-			}
+		for (int i = visited.nextClearBit(0); i < csr.getEdgeCount(); i = visited.nextClearBit(i + 1)) {
+			logger.error("Not all edges visited when directionalizing tree.  At least one eddge missed: " + csr.getEdge(i).toString());
 		}
 	}
 	
-	private void visitUpstream(DNode sink) throws Exception{
-		List<DNode> tovisit = new ArrayList<>();
-		tovisit.add(sink);
-		while(!tovisit.isEmpty()) {
-			DNode current = tovisit.remove(0);
+	/*
+	 * Walks upstream from the node directionalizing all unvisited
+	 * edges.  Nodes that are not part of the graph have no edges 
+	 * to walk.
+	 */
+	private void visitUpstream(CsrGraph graph, BitSet visited, int[] tovisit, DNode sink) throws Exception{
+		int s = graph.getNodeId(sink);
+		if (s == -1) return;
+		
+		int head = 0;
+		int tail = 0;
+		tovisit[tail++] = s;
+		while(head < tail) {
+			int current = tovisit[head++];
+			//node outside the graph
+			if (current == -1) continue;
 	
-			for (DEdge e : current.getEdges()) {
-				if (e.visited) continue;
-				if (e.getDType() == DirectionType.KNOWN) {
-					if (e.getNodeB() == current) {
-						e.visited = true;
-						tovisit.add(e.getOtherNode(current));
+			for (int i = 0; i < graph.getDegree(current); i ++) {
+				int eid = graph.getIncidentEdge(current, i);
+				if (visited.get(eid)) continue;
+				DEdge e = graph.getEdge(eid);
+				if (graph.isKnown(eid)) {
+					if (graph.getNodeB(eid) == current) {
+						visited.set(eid);
+						tovisit[tail++] = graph.getOtherNode(eid, current);
 					}else {
 						//we want to flip but we can't 
 						//maybe there is another sink node that can 
 						//flip this later
 					}
 				}else {
-					e.visited = true;
-					if (e.getNodeB() != current) {
+					visited.set(eid);
+					if (graph.getNodeB(eid) != current) {
 						e.flip();
 					}else {
 						e.setKnown();
 					}
-					tovisit.add(e.getOtherNode(current));
+					tovisit[tail++] = graph.getOtherNode(eid, current);
 				}
 			}
 		}
@@ -16,6 +16,7 @@
 package net.refractions.chyf.flowpathconstructor.rank;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import org.locationtech.jts.geom.Coordinate;
@@ -37,6 +38,8 @@ public class RGraph {
 	
 	public List<RNode> nodes = new ArrayList<>();
 	public List<REdge> edges = new ArrayList<>();
+	
+	private HashMap<Coordinate, RNode> nodeIndex = new HashMap<>();
 
 	
 	
@@ -54,18 +57,8 @@ public class RGraph {
 		Coordinate c0 = ls.getCoordinateN(0);
 		Coordinate c1 = ls.getCoordinateN(ls.getCoordinates().length-1);
 		
-		RNode fromNode = null;
-		RNode toNode = null;
-		
-		for (RNode n : nodes) {
-			if (n.getCoordinate().equals2D(c0)) fromNode = n;
-			if (n.getCoordinate().equals2D(c1)) toNode = n;
-			
-			if(fromNode != null && toNode != null) break;
-		}
-		
-		if (fromNode == null) fromNode = createNode(c0);
-		if (toNode == null) toNode = createNode(c1);
+		RNode fromNode = getNode(c0);
+		RNode toNode = getNode(c1);
 		
 		REdge e = new REdge(fromNode, toNode, eftype, ls.getLength(), id, ls);
 		edges.add(e);
@@ -83,18 +76,8 @@ public class RGraph {
 		Coordinate c0 = ls.getCoordinateN(0);
 		Coordinate c1 = ls.getCoordinateN(ls.getCoordinates().length-1);
 		
-		RNode fromNode = null;
-		RNode toNode = null;
-		
-		for (RNode n : nodes) {
-			if (n.getCoordinate().equals2D(c0)) fromNode = n;
-			if (n.getCoordinate().equals2D(c1)) toNode = n;
-			
-			if(fromNode != null && toNode != null) break;
-		}
-		
-		if (fromNode == null) fromNode = createNode(c0);
-		if (toNode == null) toNode = createNode(c1);
+		RNode fromNode = getNode(c0);
+		RNode toNode = getNode(c1);
 		
 		REdge e = new REdge(fromNode, toNode, eftype, ls.getLength(), sf.getIdentifier(), ls);
 		edges.add(e);
@@ -112,9 +95,15 @@ public class RGraph {
 		return this.edges;
 	}
 	
-	private RNode createNode(Coordinate cc) {
-		RNode n = new RNode(cc);
-		nodes.add(n);
+	private RNode getNode(Coordinate cc) {
+		//coordinate hash and equals only use x and y so this 
+		//matches the 2d equality used for nodes
+		RNode n = nodeIndex.get(cc);
+		if (n == null) {
+			n = new RNode(cc);
+			nodes.add(n);
+			nodeIndex.put(cc, n);
+		}
 		return n;
 	}
 
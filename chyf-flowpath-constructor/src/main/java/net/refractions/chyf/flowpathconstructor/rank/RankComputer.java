@@ -15,14 +15,19 @@
  */
 package net.refractions.chyf.flowpathconstructor.rank;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import org.geotools.data.simple.SimpleFeatureReader;
-import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
@@ -32,19 +37,17 @@ import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.linearref.LengthIndexedLine;
 import org.locationtech.jts.operation.distance.DistanceOp;
-import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.filter.identity.FeatureId;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.refractions.chyf.datasource.ChyfDataSource;
 import net.refractions.chyf.datasource.EfType;
-import net.refractions.chyf.datasource.Layer;
 import net.refractions.chyf.datasource.RankType;
 import net.refractions.chyf.flowpathconstructor.ChyfProperties;
 import net.refractions.chyf.flowpathconstructor.ChyfProperties.Property;
 import net.refractions.chyf.flowpathconstructor.datasource.ChyfAngle;
+import net.refractions.chyf.flowpathconstructor.rank.RankContext.Waterbody;
 
 /**
  * Compute rank by looking at angles.
@@ -59,23 +62,93 @@ public class RankComputer {
 	private ChyfAngle angleComputer;
 	private ChyfDataSource source;
 	private ChyfProperties properties;
+	private int cores;
 	
-	private CoordinateReferenceSystem sourceCRS;
+	private RankContext context;
 	
 	public RankComputer(CoordinateReferenceSystem sourceCRS, ChyfDataSource source, ChyfProperties properties) {
+		this(sourceCRS, source, properties, 1);
+	}
+	
+	public RankComputer(CoordinateReferenceSystem sourceCRS, ChyfDataSource source, ChyfProperties properties, int cores) {
 		this.angleComputer = new ChyfAngle(sourceCRS);
 		this.source = source;
-		this.sourceCRS = sourceCRS;
 		this.properties = properties;
+		this.cores = Math.max(1, cores);
+	}
+	
+	/*
+	 * The waterbodies and shorelines are only read if a node 
+	 * inside a waterbody needs a channel width
+	 */
+	private synchronized RankContext getContext() throws Exception {
+		if (context == null) context = new RankContext(source);
+		return context;
 	}
 	
 	public void computeRank(RGraph graph) throws Exception {
-		for (RNode node : graph.getNodes()) {
-			if (node.getOutDegree() > 1) {
-				//compute primary/secondary
-				computePrimarySecondary(node);
+		//nodes in different connected components never share
+		//edges so each component can be ranked on its own
+		List<List<RNode>> components = findComponents(graph);
+		logger.info("Ranking " + components.size() + " network components");
+		
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[components.size()];
+		ExecutorService service = Executors.newFixedThreadPool(cores);
+		try {
+			for (int i = 0; i < components.size(); i ++) {
+				List<RNode> nodes = components.get(i);
+				futures[i] = CompletableFuture.runAsync(()->{
+					try {
+						for (RNode node : nodes) {
+							//compute primary/secondary
+							computePrimarySecondary(node);
+						}
+					}catch (Exception ex) {
+						throw new CompletionException(ex);
+					}
+				}, service);
+			}
+			for (int i = 0; i < futures.length; i ++) {
+				try {
+					futures[i].join();
+				}catch (CompletionException ex) {
+					if (ex.getCause() instanceof Exception) throw (Exception)ex.getCause();
+					throw ex;
+				}
+			}
+		}finally {
+			service.shutdownNow();
+		}
+	}
+	
+	/*
+	 * Groups the nodes with more than one out edge by the 
+	 * connected component of the graph they belong to
+	 */
+	private List<List<RNode>> findComponents(RGraph graph){
+		List<List<RNode>> components = new ArrayList<>();
+		Set<RNode> visited = new HashSet<>();
+		ArrayDeque<RNode> tovisit = new ArrayDeque<>();
+		
+		for (RNode start : graph.getNodes()) {
+			if (start.getOutDegree() <= 1 || visited.contains(start)) continue;
+			
+			List<RNode> component = new ArrayList<>();
+			visited.add(start);
+			tovisit.add(start);
+			while(!tovisit.isEmpty()) {
+				RNode node = tovisit.removeFirst();
+				if (node.getOutDegree() > 1) component.add(node);
+				for (REdge e : node.getOutEdges()) {
+					if (visited.add(e.getToNode())) tovisit.add(e.getToNode());
+				}
+				for (REdge e : node.getInEdges()) {
+					if (visited.add(e.getFromNode())) tovisit.add(e.getFromNode());
+				}
 			}
+			components.add(component);
 		}
+		return components;
 	}
 	
 	
@@ -100,24 +173,13 @@ public class RankComputer {
 		if ( inwb ) {
 			//compute channel width
 			//find waterbody that contains the node
-			Polygon wb = null;
-			FeatureId wbfid = null;
+			RankContext context = getContext();
 			Point nodep = ((new GeometryFactory())).createPoint(node.getCoordinate());
-			
-			try(SimpleFeatureReader reader = source.query(Layer.ECATCHMENTS, new ReferencedEnvelope(nodep.getEnvelopeInternal(), sourceCRS), source.getWbTypeFilter())){
-				while(reader.hasNext()) {
-					SimpleFeature sf = reader.next();
-					Polygon p = ChyfDataSource.getPolygon(sf);
-					if (p.intersects(nodep)) {
-						wb = p;
-						wbfid = sf.getIdentifier();
-						break;
-					}
-				}
-			}
-			if (wb == null) {
+			Waterbody found = context.findWaterbody(nodep);
+			if (found == null) {
 				throw new Exception("waterbody could not be found for node: " + node.toString());
-			}	
+			}
+			Polygon wb = found.getPolygon();
 			List<LineString> wbparts = new ArrayList<>();
 			wbparts.add(wb.getExteriorRing());
 			for (int i = 0; i < wb.getNumInteriorRing();i ++) wbparts.add(wb.getInteriorRingN(i));
@@ -125,53 +187,41 @@ public class RankComputer {
 			List<LineString> tempparts = new ArrayList<>();
 				
 			//break waterbody parts where they intersect with another waterbody or the coastline
-			try(SimpleFeatureReader reader = source.query(Layer.ECATCHMENTS, new ReferencedEnvelope(wb.getEnvelopeInternal(), sourceCRS), source.getWbTypeFilter())){
-				while(reader.hasNext()) {
-					SimpleFeature sf = reader.next();
-					if (sf.getIdentifier().equals(wbfid)) continue;
-					Polygon p = ChyfDataSource.getPolygon(sf);
-					
-					tempparts.clear();
-					for (LineString l : wbparts) {
-						if (l.getEnvelopeInternal().intersects(p.getEnvelopeInternal()) && l.intersects(p)) {
-							Geometry g = l.difference(p);
-							for (int i = 0; i < g.getNumGeometries(); i ++) {
-								LineString ls = ((LineString)g.getGeometryN(i));
-								if (!ls.isEmpty()) tempparts.add(ls);
-							}	
-						}else {
-							tempparts.add(l);
-						}
+			for (Waterbody other : context.getWaterbodies(wb.getEnvelopeInternal())) {
+				if (other == found) continue;
+				Polygon p = other.getPolygon();
+				
+				tempparts.clear();
+				for (LineString l : wbparts) {
+					if (l.getEnvelopeInternal().intersects(p.getEnvelopeInternal()) && other.getPreparedPolygon().intersects(l)) {
+						Geometry g = l.difference(p);
+						for (int i = 0; i < g.getNumGeometries(); i ++) {
+							LineString ls = ((LineString)g.getGeometryN(i));
+							if (!ls.isEmpty()) tempparts.add(ls);
+						}	
+					}else {
+						tempparts.add(l);
 					}
-					wbparts.clear();
-					wbparts.addAll(tempparts);
-					
 				}
+				wbparts.clear();
+				wbparts.addAll(tempparts);
 			}
 			//do the some thing with the coastline
-			try(SimpleFeatureReader reader = source.query(Layer.SHORELINES, new ReferencedEnvelope(wb.getEnvelopeInternal(), sourceCRS), null)){
-				if (reader != null) {
-					while(reader.hasNext()) {
-						SimpleFeature sf = reader.next();
-						LineString p = ChyfDataSource.getLineString(sf);
-						
-						tempparts.clear();
-						for (LineString l : wbparts) {
-							if (l.getEnvelopeInternal().intersects(p.getEnvelopeInternal())) {
-								Geometry g = l.difference(p);
-								for (int i = 0; i < g.getNumGeometries(); i ++) {
-									LineString ls = ((LineString)g.getGeometryN(i));
-									if (!ls.isEmpty()) tempparts.add(ls);
-								}	
-							}else {
-								tempparts.add(l);
-							}
-						}
-						wbparts.clear();
-						wbparts.addAll(tempparts);
-						
+			for (LineString p : context.getShorelines(wb.getEnvelopeInternal())) {
+				tempparts.clear();
+				for (LineString l : wbparts) {
+					if (l.getEnvelopeInternal().intersects(p.getEnvelopeInternal())) {
+						Geometry g = l.difference(p);
+						for (int i = 0; i < g.getNumGeometries(); i ++) {
+							LineString ls = ((LineString)g.getGeometryN(i));
+							if (!ls.isEmpty()) tempparts.add(ls);
+						}	
+					}else {
+						tempparts.add(l);
 					}
 				}
+				wbparts.clear();
+				wbparts.addAll(tempparts);
 			}
 				
 			
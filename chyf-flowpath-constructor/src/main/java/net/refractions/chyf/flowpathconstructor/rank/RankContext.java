@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 Government of Canada
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.refractions.chyf.flowpathconstructor.rank;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.geotools.data.simple.SimpleFeatureReader;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.identity.FeatureId;
+
+import net.refractions.chyf.datasource.ChyfDataSource;
+import net.refractions.chyf.datasource.Layer;
+
+/**
+ * The waterbodies and shorelines used when computing rank.  These are read 
+ * from the data source once and held in STRtree indexes so the spatial lookups 
+ * made for each node do not query the data source.  Lookups return features 
+ * in the order they were read from the data source.
+ * 
+ * Once loaded the context is read only and can be shared between threads.
+ * 
+ * @author Emily
+ *
+ */
+public class RankContext {
+
+	private STRtree waterbodies = new STRtree();
+	private STRtree shorelines = new STRtree();
+	
+	public RankContext(ChyfDataSource source) throws IOException {
+		int index = 0;
+		try(SimpleFeatureReader reader = source.query(Layer.ECATCHMENTS, source.getWbTypeFilter())){
+			while(reader.hasNext()) {
+				SimpleFeature sf = reader.next();
+				Polygon p = ChyfDataSource.getPolygon(sf);
+				waterbodies.insert(p.getEnvelopeInternal(), new Waterbody(index++, sf.getIdentifier(), p));
+			}
+		}
+		
+		index = 0;
+		try(SimpleFeatureReader reader = source.query(Layer.SHORELINES)){
+			if (reader != null) {
+				while(reader.hasNext()) {
+					SimpleFeature sf = reader.next();
+					LineString ls = ChyfDataSource.getLineString(sf);
+					shorelines.insert(ls.getEnvelopeInternal(), new Shoreline(index++, ls));
+				}
+			}
+		}
+		
+		waterbodies.build();
+		shorelines.build();
+	}
+	
+	/**
+	 * @param point
+	 * @return the first waterbody that intersects the point or null if none found
+	 */
+	public Waterbody findWaterbody(Point point) {
+		Waterbody found = null;
+		for (Waterbody wb : queryWaterbodies(point.getEnvelopeInternal())) {
+			if (found != null && found.index < wb.index) continue;
+			if (wb.getPreparedPolygon().intersects(point)) found = wb;
+		}
+		return found;
+	}
+	
+	/**
+	 * @param env
+	 * @return the waterbodies whose envelopes intersect the given envelope 
+	 */
+	public List<Waterbody> getWaterbodies(Envelope env){
+		List<Waterbody> items = queryWaterbodies(env);
+		items.sort(Comparator.comparingInt(w->w.index));
+		return items;
+	}
+	
+	/**
+	 * @param env
+	 * @return the shorelines whose envelopes intersect the given envelope 
+	 */
+	public List<LineString> getShorelines(Envelope env){
+		List<Shoreline> items = new ArrayList<>();
+		shorelines.query(env, item->items.add((Shoreline)item));
+		items.sort(Comparator.comparingInt(s->s.index));
+		
+		List<LineString> lines = new ArrayList<>(items.size());
+		for (Shoreline s : items) lines.add(s.line);
+		return lines;
+	}
+	
+	private List<Waterbody> queryWaterbodies(Envelope env){
+		List<Waterbody> items = new ArrayList<>();
+		waterbodies.query(env, item->items.add((Waterbody)item));
+		return items;
+	}
+	
+	/**
+	 * Waterbody polygon with its prepared geometry
+	 */
+	public static class Waterbody{
+		
+		private int index;
+		private FeatureId fid;
+		private Polygon polygon;
+		private PreparedGeometry prepared;
+		
+		Waterbody(int index, FeatureId fid, Polygon polygon){
+			this.index = index;
+			this.fid = fid;
+			this.polygon = polygon;
+			this.prepared = PreparedGeometryFactory.prepare(polygon);
+		}
+		
+		public FeatureId getFeatureId() {
+			return fid;
+		}
+		
+		public Polygon getPolygon() {
+			return polygon;
+		}
+		
+		public PreparedGeometry getPreparedPolygon() {
+			return prepared;
+		}
+	}
+	
+	private static class Shoreline{
+		int index;
+		LineString line;
+		
+		Shoreline(int index, LineString line){
+			this.index = index;
+			this.line = line;
+		}
+	}
+}
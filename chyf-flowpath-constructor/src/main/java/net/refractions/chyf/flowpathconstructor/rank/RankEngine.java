@@ -45,12 +45,20 @@ public class RankEngine {
 	static final Logger logger = LoggerFactory.getLogger(RankEngine.class.getCanonicalName());
 
 	public static void doWork(Path output, ChyfProperties properties) throws Exception {
+		doWork(output, properties, 1);
+	}
+	
+	public static void doWork(Path output, ChyfProperties properties, int cores) throws Exception {
 		try(FlowpathGeoPackageDataSource dataSource = new FlowpathGeoPackageDataSource(output)){
-			doWork(dataSource, properties);
+			doWork(dataSource, properties, cores);
 		}
 	}
 	
 	public static void doWork(FlowpathGeoPackageDataSource dataSource, ChyfProperties properties) throws Exception {
+		doWork(dataSource, properties, 1);
+	}
+	
+	public static void doWork(FlowpathGeoPackageDataSource dataSource, ChyfProperties properties, int cores) throws Exception {
 		logger.info("build graph");
 		RGraph graph = new RGraph();
 		CoordinateReferenceSystem crs;
@@ -77,7 +85,7 @@ public class RankEngine {
 		}
 		
 		logger.info("computing ranks");
-		RankComputer engine = new RankComputer(crs, dataSource, properties);
+		RankComputer engine = new RankComputer(crs, dataSource, properties, cores);
 		engine.computeRank(graph);
 
 		logger.info("saving results");
@@ -92,7 +100,7 @@ public class RankEngine {
 		runtime.prepareOutput();
 		
 		long now = System.nanoTime();
-		RankEngine.doWork(runtime.getOutput(), runtime.getPropertiesFile());
+		RankEngine.doWork(runtime.getOutput(), runtime.getPropertiesFile(), runtime.getCores());
 		long then = System.nanoTime();
 		
 		logger.info("Processing Time: " + ( (then - now) / Math.pow(10, 9) ) + " seconds" );
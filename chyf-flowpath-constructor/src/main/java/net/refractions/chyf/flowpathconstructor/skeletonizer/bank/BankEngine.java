@@ -17,15 +17,22 @@ package net.refractions.chyf.flowpathconstructor.skeletonizer.bank;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.geotools.data.simple.SimpleFeatureReader;
 import org.geotools.geometry.jts.ReferencedEnvelope;
-import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.MultiLineString;
@@ -34,187 +41,223 @@ import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.operation.linemerge.LineMerger;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.type.Name;
+import org.opengis.filter.identity.FeatureId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.refractions.chyf.datasource.ChyfAttribute;
 import net.refractions.chyf.datasource.ChyfDataSource;
-import net.refractions.chyf.datasource.EfType;
 import net.refractions.chyf.datasource.Layer;
 import net.refractions.chyf.flowpathconstructor.ChyfProperties;
 import net.refractions.chyf.flowpathconstructor.FlowpathArgs;
 import net.refractions.chyf.flowpathconstructor.datasource.FlowpathGeoPackageDataSource;
 import net.refractions.chyf.flowpathconstructor.datasource.WaterbodyIterator;
-import net.refractions.chyf.flowpathconstructor.skeletonizer.points.PolygonInfo;
+import net.refractions.chyf.flowpathconstructor.skeletonizer.bank.BankJob.BankTask;
 import net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi.SkelLineString;
-import net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi.SkeletonResult;
 
+/**
+ * Manages the generation of bank skeletons.  A single reader prefetches
+ * each waterbody with the data required to process it ahead of a pool 
+ * of bank jobs and a single writer saves the updated waterbodies and skeletons.
+ * 
+ * @author Emily
+ *
+ */
 public class BankEngine {
 
 	static final Logger logger = LoggerFactory.getLogger(BankEngine.class.getCanonicalName());
 
+	//number of waterbodies read ahead of each worker
+	private static final int PREFETCH_PER_WORKER = 4;
+	//number of processed waterbodies between progress messages
+	private static final int REPORT_INTERVAL = 100;
+	
 	public static void doWork(Path output, ChyfProperties properties) throws Exception {
+		doWork(output, properties, 1);
+	}
+	
+	public static void doWork(Path output, ChyfProperties properties, int cores) throws Exception {
+		try(FlowpathGeoPackageDataSource dataSource = new FlowpathGeoPackageDataSource(output)){
+			doWork(dataSource, properties, cores);
+		}
+	}
+	
+	public static void doWork(FlowpathGeoPackageDataSource dataSource, ChyfProperties properties, int cores) throws Exception {
+		dataSource.removeExistingSkeletons(true);
 		
-		int cnt = 1;
+		if (properties == null) properties = ChyfProperties.getProperties(dataSource.getCoordinateReferenceSystem());
 		
-		List<Polygon> ptouch = new ArrayList<>();
-		List<SkelLineString> ftouch = new ArrayList<>();
+		List<LineString> be = getBoundary(dataSource);
+		Name efatt = ChyfDataSource.findAttribute(dataSource.getFeatureType(Layer.EFLOWPATHS), ChyfAttribute.EFTYPE);
 
-		try(FlowpathGeoPackageDataSource dataSource = new FlowpathGeoPackageDataSource(output)){
-			
-			dataSource.removeExistingSkeletons(true);
-			
-			if (properties == null) properties = ChyfProperties.getProperties(dataSource.getCoordinateReferenceSystem());
+		int workers = Math.max(1, cores);
+		BlockingQueue<BankTask> workQueue = new ArrayBlockingQueue<>(workers * PREFETCH_PER_WORKER);
+		BlockingQueue<BankTask> resultQueue = new ArrayBlockingQueue<>(workers * PREFETCH_PER_WORKER);
+		List<Exception> ioerrors = Collections.synchronizedList(new ArrayList<>());
+		
+		ExecutorService ioservice = Executors.newFixedThreadPool(2);
+		ExecutorService service = Executors.newFixedThreadPool(workers);
+		
+		List<BankJob> tasks = new ArrayList<>();
+		try {
+			WaterbodyIterator iterator = new WaterbodyIterator(dataSource);
+			CompletableFuture<?> producer = CompletableFuture.runAsync(()->produce(dataSource, iterator, workQueue, workers, ioerrors), ioservice);
+			CompletableFuture<?> writer = CompletableFuture.runAsync(()->write(dataSource, resultQueue, producer, ioerrors), ioservice);
 			
-			BankSkeletonizer generator = new BankSkeletonizer(properties);
-			List<LineString> be = getBoundary(dataSource);
-
-			List<SkelLineString> newSkeletons = new ArrayList<>();
+			for (int i = 0; i < workers; i ++) {
+				tasks.add(new BankJob(workQueue, resultQueue, properties, be, efatt));
+			}
+			CompletableFuture<?>[] futures = tasks.stream()
+			                               .map(task -> CompletableFuture.runAsync(task, service))
+			                               .toArray(CompletableFuture[]::new);
 			
-			WaterbodyIterator iterator = new WaterbodyIterator(dataSource);
+			//if any thread dies the others may be left waiting on a 
+			//queue forever; interrupt them all so the stage fails instead
+			List<CompletableFuture<?>> all = new ArrayList<>(Arrays.asList(futures));
+			all.add(producer);
+			all.add(writer);
+			for (CompletableFuture<?> f : all) {
+				f.whenComplete((r, t) -> {
+					if (t != null) {
+						service.shutdownNow();
+						ioservice.shutdownNow();
+					}
+				});
+			}
 			
-			SimpleFeature toProcess = null;
-			while((toProcess = iterator.getNextWaterbody()) != null) {;
-				logger.info("Generating Banks: " + cnt);
-				cnt++;
-				
-				ftouch.clear();
-				ptouch.clear();
+			try {
+				CompletableFuture.allOf(futures).join();
+				producer.join();
 				
-				Polygon workingPolygon = ChyfDataSource.getPolygon(toProcess);
-				
-				//get overlapping polygons
-				List<LineString> wateredges = new ArrayList<>();
-				ReferencedEnvelope env = new ReferencedEnvelope(workingPolygon.getEnvelopeInternal(), toProcess.getType().getCoordinateReferenceSystem());
-				try(SimpleFeatureReader wbtouches = dataSource.query(Layer.ECATCHMENTS, env, dataSource.getWbTypeFilter())){
-					while(wbtouches.hasNext()) {
-						SimpleFeature t = wbtouches.next();
-						if (t.getIdentifier().equals(toProcess.getIdentifier())) continue;
-						Polygon temp = ChyfDataSource.getPolygon(t);
-						Geometry g = workingPolygon.intersection(temp);
-						
-						if (g instanceof LineString) {
-							wateredges.add((LineString)g);
-						}else if (g instanceof MultiLineString) {
-							MultiLineString ms = (MultiLineString)g;
-							for (int i = 0; i < ms.getNumGeometries(); i ++) {
-								wateredges.add((LineString) ms.getGeometryN(i));
-							}
-						}else {
-							if (! (g instanceof Polygon && ((Polygon)g).isEmpty())) {
-								throw new Exception("Intersection of waterbodies does not return LineStrings");
-							}
-								
+				//the writer may already have died in which case no one 
+				//is taking from the queue
+				while (!writer.isDone() && !resultQueue.offer(BankJob.END_OF_RESULTS, 1, TimeUnit.SECONDS));
+				writer.join();
+			}catch (CompletionException ex) {
+				if (ex.getCause() instanceof Exception) throw (Exception)ex.getCause();
+				throw ex;
+			}
+		}finally {
+			service.shutdownNow();
+			ioservice.shutdownNow();
+		}
+		
+		//check for errors
+		for (BankJob j : tasks) {
+			ioerrors.addAll(j.getExceptions());
+		}
+		if (!ioerrors.isEmpty()) {
+			ioerrors.forEach(e->logger.error(e.getMessage(), e));
+			throw new Exception("Bank skeleton generation failed", ioerrors.get(0));
+		}
+	}
+	
+	/*
+	 * Reads each waterbody with the overlapping waterbodies and flowpaths
+	 * ahead of the workers.  One end of work marker is added for each worker 
+	 * once all waterbodies have been read.  If interrupted no markers are 
+	 * added; the workers are being interrupted as well.
+	 */
+	private static void produce(FlowpathGeoPackageDataSource dataSource, WaterbodyIterator iterator, 
+			BlockingQueue<BankTask> workQueue, int workers, List<Exception> errors) {
+		try {
+			try {
+				SimpleFeature toProcess = null;
+				while((toProcess = iterator.getNextWaterbody()) != null) {
+					Polygon workingPolygon = ChyfDataSource.getPolygon(toProcess);
+					ReferencedEnvelope env = new ReferencedEnvelope(workingPolygon.getEnvelopeInternal(), toProcess.getType().getCoordinateReferenceSystem());
+					
+					List<Polygon> neighbours = new ArrayList<>();
+					try(SimpleFeatureReader wbtouches = dataSource.query(Layer.ECATCHMENTS, env, dataSource.getWbTypeFilter())){
+						while(wbtouches.hasNext()) {
+							SimpleFeature t = wbtouches.next();
+							if (t.getIdentifier().equals(toProcess.getIdentifier())) continue;
+							neighbours.add(ChyfDataSource.getPolygon(t));
 						}
 					}
-				}
-				
-				//get any water boundary edges
-				for (LineString e : be) {
-					if (e.getEnvelopeInternal().intersects(workingPolygon.getEnvelopeInternal()) &&
-						e.intersects(workingPolygon)) {
-							wateredges.add(e);
+					List<SimpleFeature> flowpaths = new ArrayList<>();
+					try(SimpleFeatureReader flowtouches = dataSource.query(Layer.EFLOWPATHS, env, null)){
+						while(flowtouches.hasNext()) flowpaths.add(flowtouches.next());
 					}
+					workQueue.put(new BankTask(toProcess, neighbours, flowpaths));
 				}
+			}catch (InterruptedException ex) {
+				throw ex;
+			}catch (Exception ex) {
+				errors.add(ex);
+			}
+			for (int i = 0; i < workers; i ++) workQueue.put(BankJob.END_OF_WORK);
+		}catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			errors.add(ex);
+		}
+	}
+	
+	/*
+	 * Collects processed waterbodies until the end of results marker is found, reporting
+	 * progress as they complete.  Waterbody updates are written in batches once all 
+	 * waterbodies have been read so the geopackage is never read and written at
+	 * the same time.  Skeletons are written at the end as all existing 
+	 * skeletons are replaced.  If a write fails the queue continues to be 
+	 * drained so the workers are not blocked, but nothing more is written.
+	 */
+	private static void write(FlowpathGeoPackageDataSource dataSource, BlockingQueue<BankTask> resultQueue, 
+			CompletableFuture<?> producer, List<Exception> errors) {
+		Map<FeatureId, Polygon> updates = new LinkedHashMap<>();
+		List<SkelLineString> newSkeletons = new ArrayList<>();
+		List<BankTask> failed = new ArrayList<>();
+		boolean writeFailed = false;
+		int cnt = 0;
+		long start = System.nanoTime();
+		
+		try {
+			BankTask task = null;
+			while((task = resultQueue.take()) != BankJob.END_OF_RESULTS) {
+				cnt++;
+				if (task.getError() != null) failed.add(task);
+				if (cnt % REPORT_INTERVAL == 0) reportProgress(cnt, failed.size(), start);
+				if (writeFailed) continue;
 				
-				//get overlapping flowpaths
-				HashMap<Coordinate, Integer> nodes = new HashMap<>();
-				HashMap<Coordinate, Integer> ctype = new HashMap<>();
-				try(SimpleFeatureReader flowtouches = dataSource.query(Layer.EFLOWPATHS, env, null)){
-					Name efatt = ChyfDataSource.findAttribute(flowtouches.getFeatureType(), ChyfAttribute.EFTYPE);
-					while(flowtouches.hasNext()) {
-						SimpleFeature t = flowtouches.next();
-						if (! (((Geometry)t.getDefaultGeometry()).getEnvelopeInternal().intersects(workingPolygon.getEnvelopeInternal()))) continue; 
-						EfType type = EfType.parseValue( (Integer)t.getAttribute(efatt) );
-						if (type == EfType.BANK) continue;
-						
-						boolean isskel = false;
-						if (type == EfType.SKELETON) { 
-							LineString temp = ChyfDataSource.getLineString(t);
-							temp.setUserData(t.getIdentifier());
-							if (workingPolygon.contains(temp)) {
-								isskel = true;
-								SkelLineString ls = new SkelLineString(temp, type, t);
-								ftouch.add(ls);
-							}
-						}
-
-						//this is observed flow
-						//if the end point touches the boundary
-						LineString temp = ChyfDataSource.getLineString(t);
-						Coordinate c1 = temp.getCoordinates()[0];
-						Coordinate c2 = temp.getCoordinates()[temp.getCoordinates().length - 1];
-						
-						for (Coordinate c : new Coordinate[] {c1, c2}) {
-							Point pnt = temp.getFactory().createPoint(c);
-							boolean onwater = false;
-							for (LineString bee : wateredges) {
-								for (Coordinate bc : bee.getCoordinates()) {
-									if (bc.equals2D(c)) {
-										onwater = true;
-										break;
-									}
-								}
-							}
-							if (onwater) continue;
-							
-							if (workingPolygon.relate(pnt, "F**0*****")) {
-								Integer cnter = nodes.get(c);
-								if (cnter == null) {
-									cnter = 1;
-								}else {
-									cnter = cnter + 1;
-								}
-								nodes.put(c,  cnter);
-								if (isskel) {
-									if (c == c1) {
-										ctype.put(c, 1);
-									}else {
-										ctype.put(c, 2);
-									}
-								}
-							}
-						}
-					}
-				}
-
-				if (ftouch.isEmpty()) {
-					logger.warn("WARNING: Waterbody found without any skeletons.  Centroid: " + workingPolygon.getCentroid().toText());
-					continue;
+				if (task.getPolygon() != null) {
+					updates.put(task.getWaterbody().getIdentifier(), task.getPolygon());
 				}
+				newSkeletons.addAll(task.getSkeletons());
 				
-				List<Coordinate> degree1nodes = new ArrayList<>();
-				for (Entry<Coordinate,Integer> e : nodes.entrySet()) {
-					if (e.getValue() == 1) degree1nodes.add(e.getKey());
-				}
-				Coordinate terminalnode = null;
-				if (degree1nodes.size() == 1) {
-					terminalnode = degree1nodes.get(0);
-				}else if (degree1nodes.size() == 2) {
-					if (ctype.get(degree1nodes.get(0)) != ctype.get(degree1nodes.get(1))) {
-						//isolated lake 
-						terminalnode = degree1nodes.get(0);
-					}else {
-						throw new Exception("Invalid number of headwater/terminal nodes in the lake");
+				if (producer.isDone() && updates.size() >= FlowpathGeoPackageDataSource.UPDATE_BATCH_SIZE) {
+					try {
+						dataSource.updateWaterbodyGeometries(updates, FlowpathGeoPackageDataSource.UPDATE_BATCH_SIZE);
+					}catch (Exception ex) {
+						errors.add(ex);
+						writeFailed = true;
 					}
-				}else if (degree1nodes.size() > 2) {
-					throw new Exception("Invalid number of headwater/terminal nodes in the lake");
+					updates.clear();
 				}
-				
-				//generate bank skeletons
-				SkeletonResult result = generator.skeletonize(workingPolygon, ftouch, terminalnode, wateredges);
-
-				//update polygons as required
-				Polygon newwb = result.getPolygon();
-				newwb.setUserData(new PolygonInfo(toProcess.getIdentifier(), null));
-				dataSource.updateWaterbodyGeometries(Collections.singletonList(newwb));
-				
-				newSkeletons.addAll(result.getSkeletons());
-			}			
-			dataSource.removeExistingSkeletons(false);
-			dataSource.writeSkeletons(newSkeletons);
+			}
+			reportProgress(cnt, failed.size(), start);
+			
+			if (!writeFailed) {
+				dataSource.updateWaterbodyGeometries(updates, FlowpathGeoPackageDataSource.UPDATE_BATCH_SIZE);
+				dataSource.removeExistingSkeletons(false);
+				dataSource.writeSkeletons(newSkeletons);
+				dataSource.flushSkeletons();
+			}
+		}catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			errors.add(ex);
+		}catch (Exception ex) {
+			errors.add(ex);
 		}
-
+		
+		for (BankTask t : failed) {
+			Polygon p = ChyfDataSource.getPolygon(t.getWaterbody());
+			logger.error("Banks not generated for waterbody " + t.getWaterbody().getIdentifier() + "; existing skeletons kept.  Centroid: " + p.getCentroid().toText(), t.getError());
+		}
+	}
+	
+	private static void reportProgress(int cnt, int failed, long start) {
+		double seconds = (System.nanoTime() - start) / Math.pow(10, 9);
+		logger.info("Generating Banks: " + cnt + " waterbodies processed (" + failed + " failed); " 
+				+ String.format("%.2f", seconds == 0 ? 0 : cnt / seconds) + " waterbodies/second");
 	}
 	
 	private static List<LineString> getBoundary(FlowpathGeoPackageDataSource geopkg) throws Exception{
@@ -299,7 +342,7 @@ public class BankEngine {
 		runtime.prepareOutput();
 		
 		long now = System.nanoTime();
-		BankEngine.doWork(runtime.getOutput(), runtime.getPropertiesFile());
+		BankEngine.doWork(runtime.getOutput(), runtime.getPropertiesFile(), runtime.getCores());
 		long then = System.nanoTime();
 		
 		logger.info("Processing Time: " + ( (then - now) / Math.pow(10, 9) ) + " seconds" );
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2019 Government of Canada
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.refractions.chyf.flowpathconstructor.skeletonizer.bank;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Collectors;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.type.Name;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.refractions.chyf.datasource.ChyfDataSource;
+import net.refractions.chyf.datasource.EfType;
+import net.refractions.chyf.flowpathconstructor.ChyfProperties;
+import net.refractions.chyf.flowpathconstructor.skeletonizer.points.PolygonInfo;
+import net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi.SkelLineString;
+import net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi.SkeletonResult;
+
+/**
+ * Bank job that generates bank skeletons for waterbodies
+ * taken from a work queue.  Each waterbody is processed using only the 
+ * data read for it up front so waterbodies are independent of each other.  
+ * Completed tasks are passed to a result queue to be written by a single writer.
+ * 
+ * If a waterbody fails it is marked with the error and its 
+ * existing skeletons are returned unchanged so the remaining
+ * waterbodies can still be processed.
+ * 
+ * @author Emily
+ *
+ */
+public class BankJob implements Runnable{
+
+	static final Logger logger = LoggerFactory.getLogger(BankJob.class.getCanonicalName());
+
+	/**
+	 * Marker task placed on the work queue (once for each job)
+	 * when there are no more waterbodies to process, and on the 
+	 * result queue when there are no more results to write.
+	 */
+	public static final BankTask END_OF_WORK = new BankTask(null, null, null);
+	public static final BankTask END_OF_RESULTS = new BankTask(null, null, null);
+	
+	private BankSkeletonizer generator;
+	private List<LineString> boundaryEdges;
+	private Name efTypeAttribute;
+	private BlockingQueue<BankTask> workQueue;
+	private BlockingQueue<BankTask> resultQueue;
+	
+	private List<Exception> exerrors;
+	
+	/**
+	 * 
+	 * @param workQueue
+	 * @param resultQueue
+	 * @param properties
+	 * @param boundaryEdges edges where the waterbodies touch the aoi or shorelines
+	 * @param efTypeAttribute eftype attribute of the flowpath features
+	 */
+	public BankJob(BlockingQueue<BankTask> workQueue, BlockingQueue<BankTask> resultQueue, 
+			ChyfProperties properties, List<LineString> boundaryEdges, Name efTypeAttribute) {
+		//the skeletonizer is not thread safe so each job has its own 
+		this.generator = new BankSkeletonizer(properties);
+		this.boundaryEdges = boundaryEdges;
+		this.efTypeAttribute = efTypeAttribute;
+		this.workQueue = workQueue;
+		this.resultQueue = resultQueue;
+	}
+	
+	public List<Exception> getExceptions() {
+		return exerrors;
+	}
+	
+	@Override
+	public void run() {
+		exerrors = new ArrayList<>();
+		
+		try {
+			BankTask task = null;
+			while((task = workQueue.take()) != END_OF_WORK) {
+				try {
+					process(task);
+				}catch (Exception ex) {
+					//keep the existing skeletons for the waterbody
+					task.error = ex;
+					task.polygon = null;
+					try {
+						task.skeletons = findSkeletons(task, ChyfDataSource.getPolygon(task.getWaterbody()));
+					}catch (Exception ex2) {
+						task.skeletons = Collections.emptyList();
+					}
+				}
+				resultQueue.put(task);
+			}
+		}catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			exerrors.add(ex);
+		}catch (Exception ex) {
+			exerrors.add(ex);
+		}
+	}
+	
+	private void process(BankTask task) throws Exception {
+		SimpleFeature toProcess = task.getWaterbody();
+		Polygon workingPolygon = ChyfDataSource.getPolygon(toProcess);
+		
+		//get overlapping polygons
+		List<LineString> wateredges = new ArrayList<>();
+		for (Polygon temp : task.neighbours) {
+			Geometry g = workingPolygon.intersection(temp);
+			
+			if (g instanceof LineString) {
+				wateredges.add((LineString)g);
+			}else if (g instanceof MultiLineString) {
+				MultiLineString ms = (MultiLineString)g;
+				for (int i = 0; i < ms.getNumGeometries(); i ++) {
+					wateredges.add((LineString) ms.getGeometryN(i));
+				}
+			}else {
+				if (! (g instanceof Polygon && ((Polygon)g).isEmpty())) {
+					throw new Exception("Intersection of waterbodies does not return LineStrings");
+				}
+					
+			}
+		}
+		
+		//get any water boundary edges
+		for (LineString e : boundaryEdges) {
+			if (e.getEnvelopeInternal().intersects(workingPolygon.getEnvelopeInternal()) &&
+				e.intersects(workingPolygon)) {
+					wateredges.add(e);
+			}
+		}
+		
+		List<SkelLineString> ftouch = findSkeletons(task, workingPolygon);
+		Set<SimpleFeature> skelFeatures = ftouch.stream().map(e->e.getFeature()).collect(Collectors.toSet());
+		
+		//get overlapping flowpaths
+		HashMap<Coordinate, Integer> nodes = new HashMap<>();
+		HashMap<Coordinate, Integer> ctype = new HashMap<>();
+		for (SimpleFeature t : task.flowpaths) {
+			if (! (((Geometry)t.getDefaultGeometry()).getEnvelopeInternal().intersects(workingPolygon.getEnvelopeInternal()))) continue; 
+			EfType type = EfType.parseValue( (Integer)t.getAttribute(efTypeAttribute) );
+			if (type == EfType.BANK) continue;
+			
+			boolean isskel = skelFeatures.contains(t);
+
+			//this is observed flow
+			//if the end point touches the boundary
+			LineString temp = ChyfDataSource.getLineString(t);
+			Coordinate c1 = temp.getCoordinates()[0];
+			Coordinate c2 = temp.getCoordinates()[temp.getCoordinates().length - 1];
+			
+			for (Coordinate c : new Coordinate[] {c1, c2}) {
+				Point pnt = temp.getFactory().createPoint(c);
+				boolean onwater = false;
+				for (LineString bee : wateredges) {
+					for (Coordinate bc : bee.getCoordinates()) {
+						if (bc.equals2D(c)) {
+							onwater = true;
+							break;
+						}
+					}
+				}
+				if (onwater) continue;
+				
+				if (workingPolygon.relate(pnt, "F**0*****")) {
+					Integer cnter = nodes.get(c);
+					if (cnter == null) {
+						cnter = 1;
+					}else {
+						cnter = cnter + 1;
+					}
+					nodes.put(c,  cnter);
+					if (isskel) {
+						if (c == c1) {
+							ctype.put(c, 1);
+						}else {
+							ctype.put(c, 2);
+						}
+					}
+				}
+			}
+		}
+
+		if (ftouch.isEmpty()) {
+			logger.warn("WARNING: Waterbody found without any skeletons.  Centroid: " + workingPolygon.getCentroid().toText());
+			task.skeletons = Collections.emptyList();
+			return;
+		}
+		
+		List<Coordinate> degree1nodes = new ArrayList<>();
+		for (Entry<Coordinate,Integer> e : nodes.entrySet()) {
+			if (e.getValue() == 1) degree1nodes.add(e.getKey());
+		}
+		Coordinate terminalnode = null;
+		if (degree1nodes.size() == 1) {
+			terminalnode = degree1nodes.get(0);
+		}else if (degree1nodes.size() == 2) {
+			if (ctype.get(degree1nodes.get(0)) != ctype.get(degree1nodes.get(1))) {
+				//isolated lake 
+				terminalnode = degree1nodes.get(0);
+			}else {
+				throw new Exception("Invalid number of headwater/terminal nodes in the lake");
+			}
+		}else if (degree1nodes.size() > 2) {
+			throw new Exception("Invalid number of headwater/terminal nodes in the lake");
+		}
+		
+		//generate bank skeletons
+		SkeletonResult result = generator.skeletonize(workingPolygon, ftouch, terminalnode, wateredges);
+
+		//update polygons as required
+		Polygon newwb = result.getPolygon();
+		newwb.setUserData(new PolygonInfo(toProcess.getIdentifier(), null));
+		task.polygon = newwb;
+		task.skeletons = new ArrayList<>(result.getSkeletons());
+	}
+	
+	/*
+	 * Finds the existing skeletons contained in the waterbody
+	 */
+	private List<SkelLineString> findSkeletons(BankTask task, Polygon workingPolygon) {
+		List<SkelLineString> skels = new ArrayList<>();
+		for (SimpleFeature t : task.flowpaths) {
+			if (! (((Geometry)t.getDefaultGeometry()).getEnvelopeInternal().intersects(workingPolygon.getEnvelopeInternal()))) continue;
+			EfType type = EfType.parseValue( (Integer)t.getAttribute(efTypeAttribute) );
+			if (type != EfType.SKELETON) continue;
+			
+			LineString temp = ChyfDataSource.getLineString(t);
+			temp.setUserData(t.getIdentifier());
+			if (workingPolygon.contains(temp)) {
+				skels.add(new SkelLineString(temp, type, t));
+			}
+		}
+		return skels;
+	}
+
+	/**
+	 * A waterbody to generate banks for along with the overlapping 
+	 * waterbodies and flowpaths. Once processed it holds the
+	 * updated waterbody polygon and skeletons.
+	 */
+	public static class BankTask {
+		private SimpleFeature waterbody;
+		private List<Polygon> neighbours;
+		private List<SimpleFeature> flowpaths;
+		
+		private Polygon polygon;
+		private List<SkelLineString> skeletons;
+		private Exception error;
+		
+		/**
+		 * 
+		 * @param waterbody the waterbody feature
+		 * @param neighbours other waterbodies overlapping the waterbody envelope
+		 * @param flowpaths flowpaths overlapping the waterbody envelope
+		 */
+		public BankTask(SimpleFeature waterbody, List<Polygon> neighbours, List<SimpleFeature> flowpaths) {
+			this.waterbody = waterbody;
+			this.neighbours = neighbours;
+			this.flowpaths = flowpaths;
+		}
+		
+		public SimpleFeature getWaterbody() {
+			return waterbody;
+		}
+		
+		/**
+		 * @return the updated waterbody polygon, or null if the polygon
+		 * does not need to be updated
+		 */
+		public Polygon getPolygon() {
+			return polygon;
+		}
+		
+		/**
+		 * @return the skeletons for the waterbody; these include
+		 * the existing skeletons
+		 */
+		public List<SkelLineString> getSkeletons(){
+			return skeletons;
+		}
+		
+		/**
+		 * @return the error that occurred processing the waterbody or null
+		 * if it was processed successfully
+		 */
+		public Exception getError() {
+			return error;
+		}
+	}
+}
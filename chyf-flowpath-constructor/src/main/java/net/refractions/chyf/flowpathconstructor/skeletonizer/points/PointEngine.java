@@ -17,13 +17,22 @@ package net.refractions.chyf.flowpathconstructor.skeletonizer.points;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.geotools.data.DefaultTransaction;
 import org.geotools.data.simple.SimpleFeatureReader;
-import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LineString;
@@ -32,6 +41,7 @@ import org.locationtech.jts.geom.MultiPoint;
 import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.prep.PreparedLineString;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.locationtech.jts.operation.linemerge.LineMerger;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.type.Name;
@@ -70,84 +80,194 @@ public class PointEngine {
 	 * @throws Exception
 	 */
 	public static void doWork(Path output, ChyfProperties properties) throws Exception {
+		doWork(output, properties, 1);
+	}
+	
+	public static void doWork(Path output, ChyfProperties properties, int cores) throws Exception {
 		try(FlowpathGeoPackageDataSource dataSource = new FlowpathGeoPackageDataSource(output)){
-			doWork(dataSource, properties);
+			doWork(dataSource, properties, cores);
 		}
 
 	}
 
 	public static void doWork(FlowpathGeoPackageDataSource dataSource, ChyfProperties properties) throws Exception{
+		doWork(dataSource, properties, 1);
+	}
+	
+	/**
+	 * Generates the skeleton in/out points using the given number of worker threads.
+	 * 
+	 * All waterbodies and flowpaths are loaded into memory and the waterbodies 
+	 * touching each waterbody are computed up front. Processing a waterbody reads 
+	 * and may add vertices to the waterbody and all the waterbodies it touches, so the
+	 * waterbodies are split into waves where no two waterbodies in the same wave 
+	 * touch a common waterbody. Each wave is processed concurrently, and waterbodies
+	 * that do share a neighbour are processed in the same order as a sequential run.
+	 * All updated waterbodies and the points are written once all waves complete.
+	 * 
+	 * @param dataSource
+	 * @param properties
+	 * @param cores number of worker threads
+	 * @throws Exception
+	 */
+	public static void doWork(FlowpathGeoPackageDataSource dataSource, ChyfProperties properties, int cores) throws Exception{
 		if (properties == null) properties = ChyfProperties.getProperties(dataSource.getCoordinateReferenceSystem());
 		
-		int cnt = 1;
-		
-		List<Polygon> ptouch = new ArrayList<>();
-		List<LineString> ftouch = new ArrayList<>();
-		
-		PointGenerator generator = new PointGenerator(getBoundary(dataSource, properties),  properties);
+		List<BoundaryEdge> boundaries = getBoundary(dataSource, properties);
 		
+		//load waterbodies
+		logger.info("loading waterbodies and flowpaths");
 		Name idAttribute = ChyfDataSource.findAttribute(dataSource.getFeatureType(Layer.ECATCHMENTS), ChyfAttribute.INTERNAL_ID);
+		List<Polygon> waterbodies = new ArrayList<>();
+		Map<String, Integer> fidIndex = new HashMap<>();
+		STRtree wbTree = new STRtree();
+		try(SimpleFeatureReader reader = dataSource.getWaterbodies()){
+			while(reader.hasNext()) {
+				SimpleFeature sf = reader.next();
+				Polygon p = ChyfDataSource.getPolygon(sf);
+				p.setUserData(new PolygonInfo(sf.getIdentifier(), (String)sf.getAttribute(idAttribute)));
+				fidIndex.put(sf.getID(), waterbodies.size());
+				wbTree.insert(p.getEnvelopeInternal(), waterbodies.size());
+				waterbodies.add(p);
+			}
+		}
+		wbTree.build();
+		
+		//load flowpaths, ignoring existing skeletons
+		STRtree flowTree = new STRtree();
+		try(SimpleFeatureReader reader = dataSource.query(Layer.EFLOWPATHS)){
+			Name eftypeatt = ChyfDataSource.findAttribute(reader.getFeatureType(), ChyfAttribute.EFTYPE);
+			Name diratt = ChyfDataSource.findAttribute(reader.getFeatureType(), ChyfAttribute.DIRECTION);
+			while(reader.hasNext()) {
+				SimpleFeature t = reader.next();
+				EfType type = EfType.parseValue( (Integer)t.getAttribute(eftypeatt) );
+				if (type == EfType.BANK || type == EfType.SKELETON) continue;
+				
+				LineString ls = ChyfDataSource.getLineString(t);
+				ls.setUserData(DirectionType.parseValue((Integer)t.getAttribute(diratt)));
+				flowTree.insert(ls.getEnvelopeInternal(), ls);
+			}
+		}
+		flowTree.build();
 		
+		//waterbodies to process
+		List<Integer> toProcess = new ArrayList<>();
 		WaterbodyIterator iterator = new WaterbodyIterator(dataSource);
-		SimpleFeature toProcess = null;
-		while((toProcess = iterator.getNextWaterbody()) != null) {
-
-			logger.info("POINT GENERATOR: " + cnt);
-			cnt++;
+		String wbid = null;
+		while((wbid = iterator.getNextWaterbodyId()) != null) {
+			toProcess.add(fidIndex.get(wbid));
+		}
 
-			ftouch.clear();
-			ptouch.clear();
+		int workers = Math.max(1, cores);
+		ExecutorService service = Executors.newFixedThreadPool(workers);
+		try {
+			//compute the touching waterbodies
+			logger.info("computing waterbody adjacency");
+			int[][] touches = new int[waterbodies.size()][];
+			runAll(service, toProcess, i->{
+				Polygon p = waterbodies.get(i);
+				List<?> items = wbTree.query(p.getEnvelopeInternal());
+				int[] t = items.stream().mapToInt(o->(Integer)o).filter(o -> o != i && p.intersects(waterbodies.get(o))).sorted().toArray();
+				touches[i] = t;
+			});
 			
-			Polygon workingPolygon = ChyfDataSource.getPolygon(toProcess);
-			if (!workingPolygon.isValid()) throw new Exception("Polygon not a valid geometry.  Centroid: " + workingPolygon.getCentroid().toText());
+			//assign waves; a waterbody is placed in the wave after the
+			//last waterbody that touches it or one of its neighbours
+			List<List<Integer>> waves = new ArrayList<>();
+			int[] lastWave = new int[waterbodies.size()];
+			Arrays.fill(lastWave, -1);
+			for (Integer i : toProcess) {
+				int wave = lastWave[i];
+				for (int t : touches[i]) wave = Math.max(wave, lastWave[t]);
+				wave++;
+				
+				lastWave[i] = wave;
+				for (int t : touches[i]) lastWave[t] = wave;
+				if (wave == waves.size()) waves.add(new ArrayList<>());
+				waves.get(wave).add(i);
+			}
+			logger.info(toProcess.size() + " waterbodies split into " + waves.size() + " waves");
 			
-			String internalId = (String)toProcess.getAttribute(idAttribute);
-			workingPolygon.setUserData(new PolygonInfo(toProcess.getIdentifier(), internalId));
+			//generate points
+			List<ConstructionPoint> points = Collections.synchronizedList(new ArrayList<>());
+			Set<Coordinate> pointCoordinates = ConcurrentHashMap.newKeySet();
+			boolean[] modified = new boolean[waterbodies.size()];
+			AtomicInteger cnt = new AtomicInteger(1);
+			final ChyfProperties props = properties;
 			
-			//get overlapping polygons
-			ReferencedEnvelope env = new ReferencedEnvelope(workingPolygon.getEnvelopeInternal(), toProcess.getType().getCoordinateReferenceSystem());
-			try(SimpleFeatureReader wbtouches = dataSource.query(Layer.ECATCHMENTS, env, dataSource.getWbTypeFilter())){
-				while(wbtouches.hasNext()) {
-					SimpleFeature t = wbtouches.next();
-					if (t.getIdentifier().equals(toProcess.getIdentifier())) continue;
-					Polygon temp = ChyfDataSource.getPolygon(t);
+			for (List<Integer> wave : waves) {
+				runAll(service, wave, i->{
+					logger.info("POINT GENERATOR: " + cnt.getAndIncrement());
 					
-					if (workingPolygon.intersects(temp)) {
-						ptouch.add(temp);
-						temp.setUserData(new PolygonInfo(t.getIdentifier(), (String)t.getAttribute(idAttribute)));
-					}
-				}
-			}
-			//get overlapping flowpaths							
-			try(SimpleFeatureReader flowtouches = dataSource.query(Layer.EFLOWPATHS, env)){
-				Name eftypeatt = ChyfDataSource.findAttribute(flowtouches.getFeatureType(), ChyfAttribute.EFTYPE);
-				Name diratt = ChyfDataSource.findAttribute(flowtouches.getFeatureType(), ChyfAttribute.DIRECTION);
-				while(flowtouches.hasNext()) {
-					SimpleFeature t = flowtouches.next();
+					Polygon workingPolygon = waterbodies.get(i);
+					if (!workingPolygon.isValid()) throw new Exception("Polygon not a valid geometry.  Centroid: " + workingPolygon.getCentroid().toText());
 					
-					EfType type = EfType.parseValue( (Integer)t.getAttribute(eftypeatt) );
-					if (type == EfType.BANK || type == EfType.SKELETON) continue; //ignore existing skeletons
+					List<Polygon> ptouch = new ArrayList<>();
+					for (int t : touches[i]) ptouch.add(waterbodies.get(t));
 					
+					List<LineString> ftouch = new ArrayList<>();
+					for (Object o : flowTree.query(workingPolygon.getEnvelopeInternal())) {
+						LineString ls = (LineString)o;
+						if (workingPolygon.relate(ls, "FF*F0****")) ftouch.add(ls);
+					}
+					
+					PointGenerator generator = new PointGenerator(boundaries, props, points, pointCoordinates);
+					generator.processPolygon(workingPolygon, ptouch, ftouch);
 					
-					LineString temp = ChyfDataSource.getLineString(t);
-					if (workingPolygon.relate(temp, "FF*F0****")) {
-						DirectionType dtype = DirectionType.parseValue((Integer)t.getAttribute(diratt));
-						ftouch.add(temp);
-						temp.setUserData(dtype);
+					//waterbodies in a wave do not share neighbours so 
+					//these updates never overlap
+					for (Polygon p : generator.getUpdatedPolygons()) {
+						int index = fidIndex.get(PolygonInfo.getFeatureId(p).getID());
+						waterbodies.set(index, p);
+						modified[index] = true;
 					}
-				}
+				});
 			}
-
-			//generate points
-			generator.processPolygon(workingPolygon, ptouch, ftouch);
-
+			
 			//update polygons as required
-			dataSource.updateWaterbodyGeometries(generator.getUpdatedPolygons());
+			List<Polygon> updated = new ArrayList<>();
+			for (int i = 0; i < modified.length; i ++) {
+				if (modified[i]) updated.add(waterbodies.get(i));
+			}
+			dataSource.updateWaterbodyGeometries(updated);
+			
+			//write point layers
+			dataSource.createConstructionsPoints(points);
+		}finally {
+			service.shutdown();
 		}
-					
-		//write point layers
-		dataSource.createConstructionsPoints(generator.getPoints());
 	}
+	
+	/**
+	 * Work to be run for a single waterbody
+	 */
+	@FunctionalInterface
+	private interface WaterbodyTask{
+		void run(int index) throws Exception;
+	}
+	
+	/*
+	 * Runs the task for each waterbody index, waiting until all 
+	 * are complete.  The first exception thrown by any task is rethrown.
+	 */
+	private static void runAll(ExecutorService service, List<Integer> indices, WaterbodyTask task) throws Exception {
+		CompletableFuture<?>[] futures = indices.stream()
+				.map(i -> CompletableFuture.runAsync(()->{
+					try {
+						task.run(i);
+					}catch (Exception ex) {
+						throw new CompletionException(ex);
+					}
+				}, service))
+				.toArray(CompletableFuture[]::new);
+		try {
+			CompletableFuture.allOf(futures).join();
+		}catch (CompletionException ex) {
+			if (ex.getCause() instanceof Exception) throw (Exception)ex.getCause();
+			throw ex;
+		}
+	}
+	
 	private static List<BoundaryEdge> getBoundary(FlowpathGeoPackageDataSource geopkg, ChyfProperties properties) throws Exception{
 
 		logger.info("computing boundary points");
@@ -378,7 +498,7 @@ public class PointEngine {
 		runtime.prepareOutput();
 		
 		long now = System.nanoTime();
-		PointEngine.doWork(runtime.getOutput(), runtime.getPropertiesFile());
+		PointEngine.doWork(runtime.getOutput(), runtime.getPropertiesFile(), runtime.getCores());
 		long then = System.nanoTime();
 		
 		logger.info("Processing Time: " + ( (then - now) / Math.pow(10, 9) ) + " seconds" );
@@ -53,6 +53,7 @@ public class PointGenerator {
 	private ChyfProperties props;
 	
 	private List<ConstructionPoint> points;
+	private Set<Coordinate> pointCoordinates;
 	private Polygon workingWaterbody = null;
 	private Set<Polygon> workingPolygons = new HashSet<>();
 	private Set<InsertPoint> insertCoordinates = new HashSet<>();
@@ -60,7 +61,22 @@ public class PointGenerator {
 	private Set<Coordinate> interiorexteriortouches = new HashSet<>(); //points where interior touches exterior
 	
 	public PointGenerator(List<BoundaryEdge> boundaries, ChyfProperties props) {
-		points = new ArrayList<>();		
+		this(boundaries, props, new ArrayList<>(), new HashSet<>());
+	}
+	
+	/**
+	 * Creates a generator that adds its points to the provided collections,
+	 * so several generators can share the points generated.  When generators
+	 * are run concurrently the list and set must both be thread safe.
+	 * 
+	 * @param boundaries
+	 * @param props
+	 * @param points list of generated points
+	 * @param pointCoordinates coordinates of all points in the points list
+	 */
+	PointGenerator(List<BoundaryEdge> boundaries, ChyfProperties props, List<ConstructionPoint> points, Set<Coordinate> pointCoordinates) {
+		this.points = points;
+		this.pointCoordinates = pointCoordinates;
 		this.boundaries = boundaries;
 		this.props = props;
 	}
@@ -197,6 +213,7 @@ public class PointGenerator {
 		}
 		
 		//add all to point list
+		for (ConstructionPoint cp : wbpoints) pointCoordinates.add(cp.getCoordinate());
 		points.addAll(wbpoints);
 		
 		//add verticies to all polygons as necessary
@@ -577,9 +594,7 @@ public class PointGenerator {
 		//if there is already a point on this line, reuse the exact same point
 		//for banks we don't want to use existing points
 		for (int i = 1; i < items.size() - 2; i ++) {
-			for (ConstructionPoint p : points) {
-				if (p.getCoordinate().equals2D(items.get(i)))  return items.get(i);
-			}
+			if (pointCoordinates.contains(items.get(i))) return items.get(i);
 		}
 		
 		double vertexDistance = props.getProperty(Property.PNT_VERTEX_DISTANCE);
@@ -15,44 +15,282 @@
  */
 package net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import org.locationtech.jts.algorithm.Orientation;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
-import org.locationtech.jts.geom.LineSegment;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.Polygon;
-import org.locationtech.jts.index.strtree.STRtree;
 
 /**
  * 
- * Assumes test coordinates are already known to be inside the polygon.
+ * Point and segment containment tests for a single polygon.
  * 
- * Builds an index out of all segments in the polygon, then tests if any of
- * those segements crosses the given segment. If they do then the segement is
- * not within the polygon.
+ * The polygon segments are bucketed into a uniform grid with roughly one 
+ * cell per segment.  When the grid is built each row is swept once to find 
+ * whether the center of each cell is inside the polygon.  A point is then
+ * located by counting the crossings between the point and the center of its
+ * cell, which only involves the segments in that cell.  If the point is 
+ * collinear with a segment or a cell center is too close to the boundary
+ * the point is located with a ray cast along its row instead.
+ * 
+ * The segment test checks if any of the polygon segments near the given segment 
+ * crosses it. If they do then the segment is not within the polygon.
+ * 
+ * Neither test creates any objects.  Not thread safe; scratch objects are 
+ * reused between tests.
  * 
  */
 public class FastSegInPolygon {
 
-	private STRtree segTree = new STRtree();
-
+	private static final byte OUTSIDE = 0;
+	private static final byte INSIDE = 1;
+	//cell center is on or very near the boundary 
+	private static final byte UNKNOWN = 2;
+	
+	//polygon segments
+	private Coordinate[] p0;
+	private Coordinate[] p1;
+	
+	//grid
+	private double minx, miny, maxx, maxy;
+	private double cellw, cellh;
+	private int nx, ny;
+	private int[] cellStart;
+	private int[] cellSegments;
+	private byte[] cellState;
+	
+	//scratch objects reused for each test
+	private Coordinate center = new Coordinate();
+	private int[] mark;
+	private int stamp = 0;
+	
 	public FastSegInPolygon(Polygon p) {
-
-		handleRing(p.getExteriorRing());
+		List<Coordinate> segs = new ArrayList<>();
+		handleRing(p.getExteriorRing(), segs);
 		for (int t = 0; t < p.getNumInteriorRing(); t++) {
-			handleRing(p.getInteriorRingN(t));
+			handleRing(p.getInteriorRingN(t), segs);
 		}
+		int n = segs.size() / 2;
+		p0 = new Coordinate[n];
+		p1 = new Coordinate[n];
+		for (int i = 0; i < n; i ++) {
+			p0[i] = segs.get(2*i);
+			p1[i] = segs.get(2*i+1);
+		}
+		mark = new int[n];
+		
+		buildGrid(p.getEnvelopeInternal());
+		computeCellState();
 	}
 
-	private void handleRing(LineString ls) {
+	private void handleRing(LineString ls, List<Coordinate> segs) {
 		Coordinate[] coords = ls.getCoordinates();
 		for (int t = 0; t < coords.length - 1; t++) {
-			LineSegment seg = new LineSegment(coords[t], coords[t + 1]);
-			segTree.insert(new Envelope(seg.p0, seg.p1), seg);
+			segs.add(coords[t]);
+			segs.add(coords[t + 1]);
+		}
+	}
+	
+	/*
+	 * Sizes the grid to have about one cell per segment 
+	 * then buckets each segment into every cell its envelope overlaps
+	 */
+	private void buildGrid(Envelope env) {
+		minx = env.getMinX();
+		miny = env.getMinY();
+		maxx = env.getMaxX();
+		maxy = env.getMaxY();
+		double w = env.getWidth() > 0 ? env.getWidth() : 1.0;
+		double h = env.getHeight() > 0 ? env.getHeight() : 1.0;
+		
+		int n = Math.max(1, p0.length);
+		nx = (int) Math.max(1, Math.min(n, Math.ceil(Math.sqrt(n * w / h))));
+		ny = (int) Math.max(1, Math.ceil(n / (double) nx));
+		cellw = w / nx;
+		cellh = h / ny;
+		
+		cellStart = new int[nx * ny + 1];
+		for (int i = 0; i < p0.length; i ++) {
+			int x0 = column(Math.min(p0[i].x, p1[i].x));
+			int x1 = column(Math.max(p0[i].x, p1[i].x));
+			int y0 = row(Math.min(p0[i].y, p1[i].y));
+			int y1 = row(Math.max(p0[i].y, p1[i].y));
+			for (int y = y0; y <= y1; y ++) {
+				for (int x = x0; x <= x1; x ++) {
+					cellStart[y * nx + x + 1]++;
+				}
+			}
+		}
+		for (int i = 1; i < cellStart.length; i ++) cellStart[i] += cellStart[i-1];
+		
+		cellSegments = new int[cellStart[cellStart.length - 1]];
+		int[] next = Arrays.copyOf(cellStart, cellStart.length - 1);
+		for (int i = 0; i < p0.length; i ++) {
+			int x0 = column(Math.min(p0[i].x, p1[i].x));
+			int x1 = column(Math.max(p0[i].x, p1[i].x));
+			int y0 = row(Math.min(p0[i].y, p1[i].y));
+			int y1 = row(Math.max(p0[i].y, p1[i].y));
+			for (int y = y0; y <= y1; y ++) {
+				for (int x = x0; x <= x1; x ++) {
+					cellSegments[next[y * nx + x]++] = i;
+				}
+			}
 		}
 	}
+	
+	/*
+	 * For each row finds where the polygon segments cross the horizontal 
+	 * line through the cell centers, then walks the sorted crossings
+	 * to find which cell centers are inside
+	 */
+	private void computeCellState() {
+		cellState = new byte[nx * ny];
+		double[] xs = new double[p0.length];
+		double eps = cellw * 1e-6;
+		
+		for (int r = 0; r < ny; r ++) {
+			double cy = miny + (r + 0.5) * cellh;
+			int cnt = 0;
+			stamp++;
+			for (int c = 0; c < nx; c ++) {
+				int cell = r * nx + c;
+				for (int k = cellStart[cell]; k < cellStart[cell + 1]; k ++) {
+					int s = cellSegments[k];
+					if (mark[s] == stamp) continue;
+					mark[s] = stamp;
+					
+					Coordinate a = p0[s];
+					Coordinate b = p1[s];
+					if ((a.y > cy) != (b.y > cy)) {
+						xs[cnt++] = a.x + (cy - a.y) * (b.x - a.x) / (b.y - a.y);
+					}else if (a.y == cy && b.y == cy) {
+						//horizontal segment on the center line
+						int x0 = column(Math.min(a.x, b.x));
+						int x1 = column(Math.max(a.x, b.x));
+						for (int x = x0; x <= x1; x ++) {
+							double cx = minx + (x + 0.5) * cellw;
+							if (cx >= Math.min(a.x, b.x) - eps && cx <= Math.max(a.x, b.x) + eps) {
+								cellState[r * nx + x] = UNKNOWN;
+							}
+						}
+					}
+				}
+			}
+			Arrays.sort(xs, 0, cnt);
+			
+			int k = 0;
+			for (int c = 0; c < nx; c ++) {
+				double cx = minx + (c + 0.5) * cellw;
+				while(k < cnt && xs[k] < cx - eps) k++;
+				int cell = r * nx + c;
+				if (cellState[cell] == UNKNOWN) continue;
+				if (k < cnt && xs[k] <= cx + eps) {
+					cellState[cell] = UNKNOWN;
+				}else {
+					cellState[cell] = (k % 2 == 1) ? INSIDE : OUTSIDE;
+				}
+			}
+		}
+	}
+	
+	private int column(double x) {
+		int c = (int) ((x - minx) / cellw);
+		if (c < 0) return 0;
+		if (c >= nx) return nx - 1;
+		return c;
+	}
+	
+	private int row(double y) {
+		int r = (int) ((y - miny) / cellh);
+		if (r < 0) return 0;
+		if (r >= ny) return ny - 1;
+		return r;
+	}
 
+	/**
+	 * Tests if the coordinate is inside or on the boundary of the polygon.
+	 * 
+	 * @param c
+	 * @return true if the coordinate is in the interior or on the boundary
+	 */
+	public boolean isIn(Coordinate c) {
+		if (c.x < minx || c.x > maxx || c.y < miny || c.y > maxy) return false;
+		
+		int col = column(c.x);
+		int row = row(c.y);
+		int cell = row * nx + col;
+		if (cellState[cell] == UNKNOWN) return rayCast(c, row, col);
+		
+		center.x = minx + (col + 0.5) * cellw;
+		center.y = miny + (row + 0.5) * cellh;
+		
+		boolean inside = cellState[cell] == INSIDE;
+		for (int k = cellStart[cell]; k < cellStart[cell + 1]; k ++) {
+			int s = cellSegments[k];
+			Coordinate a = p0[s];
+			Coordinate b = p1[s];
+			
+			int oc = Orientation.index(a, b, c);
+			if (oc == Orientation.COLLINEAR) {
+				if (inEnvelope(a, b, c)) return true;
+				return rayCast(c, row, col);
+			}
+			int oa = Orientation.index(center, c, a);
+			int ob = Orientation.index(center, c, b);
+			int ocenter = Orientation.index(a, b, center);
+			if (oa == Orientation.COLLINEAR || ob == Orientation.COLLINEAR || ocenter == Orientation.COLLINEAR) {
+				//passes through a vertex 
+				return rayCast(c, row, col);
+			}
+			if (oa != ob && oc != ocenter) inside = !inside;
+		}
+		return inside;
+	}
+	
+	/*
+	 * Counts the segments in the row that cross a ray to the right of 
+	 * the point.  Follows the same rules as the JTS RayCrossingCounter.
+	 */
+	private boolean rayCast(Coordinate c, int row, int col) {
+		stamp++;
+		int crossings = 0;
+		for (int x = col; x < nx; x ++) {
+			int cell = row * nx + x;
+			for (int k = cellStart[cell]; k < cellStart[cell + 1]; k ++) {
+				int s = cellSegments[k];
+				if (mark[s] == stamp) continue;
+				mark[s] = stamp;
+				
+				Coordinate a = p0[s];
+				Coordinate b = p1[s];
+				
+				if (a.x < c.x && b.x < c.x) continue;
+				if ((c.x == a.x && c.y == a.y) || (c.x == b.x && c.y == b.y)) return true;
+				if (a.y == c.y && b.y == c.y) {
+					//horizontal segments are not counted
+					if (c.x >= Math.min(a.x, b.x) && c.x <= Math.max(a.x, b.x)) return true;
+					continue;
+				}
+				if (((a.y > c.y) && (b.y <= c.y)) || ((b.y > c.y) && (a.y <= c.y))) {
+					int orient = Orientation.index(a, b, c);
+					if (orient == Orientation.COLLINEAR) return true;
+					if (b.y < a.y) orient = -orient;
+					if (orient == Orientation.LEFT) crossings++;
+				}
+			}
+		}
+		return crossings % 2 == 1;
+	}
+	
+	private static boolean inEnvelope(Coordinate a, Coordinate b, Coordinate c) {
+		return c.x >= Math.min(a.x, b.x) && c.x <= Math.max(a.x, b.x) 
+				&& c.y >= Math.min(a.y, b.y) && c.y <= Math.max(a.y, b.y);
+	}
+	
 	/**
 	 * Tests to see if the segment c1->c2 inside the polygon.
 	 * 
@@ -64,17 +302,45 @@ public class FastSegInPolygon {
 	 * @param c2
 	 */
 	public boolean testSegment(Coordinate c1, Coordinate c2) {
-
-		Envelope searchEnv = new Envelope(c1, c2);
-		List<?> possibleEdges = segTree.query(searchEnv);
-		if (possibleEdges.size() == 0) return true;
-
-		LineSegment testSeg = new LineSegment(c1, c2);
-		for (Object x : possibleEdges) {
-			LineSegment seg = (LineSegment) x;
-			if (seg.intersection(testSeg) != null)
-				return false;
+		double sminx = Math.min(c1.x, c2.x);
+		double smaxx = Math.max(c1.x, c2.x);
+		double sminy = Math.min(c1.y, c2.y);
+		double smaxy = Math.max(c1.y, c2.y);
+		if (smaxx < minx || sminx > maxx || smaxy < miny || sminy > maxy) return true;
+		
+		int x0 = column(sminx);
+		int x1 = column(smaxx);
+		int y0 = row(sminy);
+		int y1 = row(smaxy);
+		for (int y = y0; y <= y1; y ++) {
+			for (int x = x0; x <= x1; x ++) {
+				int cell = y * nx + x;
+				for (int k = cellStart[cell]; k < cellStart[cell + 1]; k ++) {
+					int s = cellSegments[k];
+					if (intersects(p0[s], p1[s], c1, c2)) return false;
+				}
+			}
 		}
 		return true;
 	}
+	
+	/*
+	 * Same result as RobustLineIntersector.hasIntersection 
+	 * without computing the intersection point
+	 */
+	private static boolean intersects(Coordinate p1, Coordinate p2, Coordinate q1, Coordinate q2) {
+		if (!Envelope.intersects(p1, p2, q1, q2)) return false;
+		
+		int pq1 = Orientation.index(p1, p2, q1);
+		int pq2 = Orientation.index(p1, p2, q2);
+		if ((pq1 > 0 && pq2 > 0) || (pq1 < 0 && pq2 < 0)) return false;
+		
+		int qp1 = Orientation.index(q1, q2, p1);
+		int qp2 = Orientation.index(q1, q2, p2);
+		if ((qp1 > 0 && qp2 > 0) || (qp1 < 0 && qp2 < 0)) return false;
+		
+		//either a proper, endpoint or collinear intersection; collinear
+		//segments overlap since the envelopes intersect
+		return true;
+	}
 }
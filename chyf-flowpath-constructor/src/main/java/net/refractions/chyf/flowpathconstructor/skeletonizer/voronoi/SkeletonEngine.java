@@ -17,22 +17,36 @@ package net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.refractions.chyf.datasource.ChyfAttribute;
+import net.refractions.chyf.datasource.ChyfDataSource;
 import net.refractions.chyf.flowpathconstructor.ChyfProperties;
 import net.refractions.chyf.flowpathconstructor.FlowpathArgs;
+import net.refractions.chyf.flowpathconstructor.datasource.ConstructionPointIndex;
 import net.refractions.chyf.flowpathconstructor.datasource.FlowpathGeoPackageDataSource;
 import net.refractions.chyf.flowpathconstructor.datasource.WaterbodyIterator;
+import net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi.SkeletonJob.WaterbodyTask;
 
 /**
- * Manages the running of the skeletonizer  
+ * Manages the running of the skeletonizer.  A single producer
+ * reads waterbodies ahead of a pool of skeleton jobs (one per core)
+ * and a single writer saves the generated skeletons.
  * 
  * @author Emily
  *
@@ -41,6 +55,9 @@ public class SkeletonEngine {
 	
 	static final Logger logger = LoggerFactory.getLogger(SkeletonEngine.class.getCanonicalName());
 	
+	//number of waterbodies passed to a worker at a time
+	private static final int BATCH_SIZE = 16;
+	
 	public static void doWork(Path output, ChyfProperties props, int cores ) throws Exception {
 		try(FlowpathGeoPackageDataSource dataSource = new FlowpathGeoPackageDataSource(output)){
 			doWork(dataSource, props, cores);
@@ -54,26 +71,66 @@ public class SkeletonEngine {
 		
 		SkeletonGenerator generator = new SkeletonGenerator(properties);
 	
-		//break up tasks
-		ExecutorService service = Executors.newFixedThreadPool(4);
-		List<SkeletonJob> tasks = new ArrayList<>();
-		WaterbodyIterator iterator = new WaterbodyIterator(dataSource);
-		
-		for (int i = 0; i < cores; i ++) {
-			SkeletonJob j1 = new SkeletonJob(dataSource, iterator, generator);
-			tasks.add(j1);
-		}
-		CompletableFuture<?>[] futures = tasks.stream()
-		                               .map(task -> CompletableFuture.runAsync(task, service))
-		                               .toArray(CompletableFuture[]::new);
-		CompletableFuture.allOf(futures).join();    
-		service.shutdown();
+		int workers = Math.max(1, cores);
+		BlockingQueue<List<WaterbodyTask>> workQueue = new ArrayBlockingQueue<>(workers * 2);
+		BlockingQueue<Collection<SkelLineString>> resultQueue = new ArrayBlockingQueue<>(workers * 4);
+		List<Exception> ioerrors = Collections.synchronizedList(new ArrayList<>());
 		
-		//ensure all skeletons are written
-		dataSource.writeSkeletons(Collections.emptyList());
+		//the producer and writer each get their own thread so the
+		//workers never wait on the geopackage
+		ExecutorService ioservice = Executors.newFixedThreadPool(2);
+		ExecutorService service = Executors.newFixedThreadPool(workers);
 		
+		List<SkeletonJob> tasks = new ArrayList<>();
+		try {
+			//all construction points are read once up front 
+			ConstructionPointIndex points = dataSource.getConstructionPointIndex();
+			WaterbodyIterator iterator = new WaterbodyIterator(dataSource);
+			CompletableFuture<?> producer = CompletableFuture.runAsync(()->produce(points, iterator, workQueue, workers, ioerrors), ioservice);
+			CompletableFuture<?> writer = CompletableFuture.runAsync(()->write(dataSource, resultQueue, ioerrors), ioservice);
+			
+			//break up tasks
+			for (int i = 0; i < workers; i ++) {
+				SkeletonJob j1 = new SkeletonJob(workQueue, resultQueue, generator);
+				tasks.add(j1);
+			}
+			CompletableFuture<?>[] futures = tasks.stream()
+			                               .map(task -> CompletableFuture.runAsync(task, service))
+			                               .toArray(CompletableFuture[]::new);
+			
+			//if any thread dies the others may be left waiting on a 
+			//queue forever; interrupt them all so the stage fails instead
+			List<CompletableFuture<?>> all = new ArrayList<>(Arrays.asList(futures));
+			all.add(producer);
+			all.add(writer);
+			for (CompletableFuture<?> f : all) {
+				f.whenComplete((r, t) -> {
+					if (t != null) {
+						service.shutdownNow();
+						ioservice.shutdownNow();
+					}
+				});
+			}
+			
+			try {
+				CompletableFuture.allOf(futures).join();
+				producer.join();
+				
+				//ensure all skeletons are written; the writer may already
+				//have died in which case no one is taking from the queue
+				while (!writer.isDone() && !resultQueue.offer(SkeletonJob.END_OF_RESULTS, 1, TimeUnit.SECONDS));
+				writer.join();
+			}catch (CompletionException ex) {
+				if (ex.getCause() instanceof Exception) throw (Exception)ex.getCause();
+				throw ex;
+			}
+		}finally {
+			service.shutdownNow();
+			ioservice.shutdownNow();
+		}
 		
 		//check for errors
+		ioerrors.forEach(e->logger.error(e.getMessage(), e));
 		for (SkeletonJob j : tasks) {
 			j.getExceptions().forEach(e->logger.error(e.getMessage(), e));
 		}
@@ -83,6 +140,73 @@ public class SkeletonEngine {
 		}
 	}
 	
+	/*
+	 * Reads waterbodies and their construction points ahead of the
+	 * workers, placing them on the work queue in batches.  One end of work
+	 * marker is added for each worker once all waterbodies have been read.
+	 * If interrupted no markers are added; the workers are being
+	 * interrupted as well.
+	 */
+	private static void produce(ConstructionPointIndex points, WaterbodyIterator iterator, 
+			BlockingQueue<List<WaterbodyTask>> workQueue, int workers, List<Exception> errors) {
+		try {
+			try {
+				List<WaterbodyTask> batch = new ArrayList<>(BATCH_SIZE);
+				SimpleFeature toProcess = null;
+				while((toProcess = iterator.getNextWaterbody()) != null) {
+					String catchmentId = (String) toProcess.getAttribute(ChyfAttribute.INTERNAL_ID.getFieldName());
+					try {
+						Polygon workingPolygon = ChyfDataSource.getPolygon(toProcess);
+						batch.add(new WaterbodyTask(toProcess.getIdentifier().toString(), catchmentId, workingPolygon, points.getConstructionPoints(catchmentId)));
+					}catch (Exception ex) {
+						errors.add(new Exception("Error reading catchment with identifier: " + catchmentId, ex));
+					}
+					if (batch.size() >= BATCH_SIZE) {
+						workQueue.put(batch);
+						batch = new ArrayList<>(BATCH_SIZE);
+					}
+				}
+				if (!batch.isEmpty()) workQueue.put(batch);
+			}catch (InterruptedException ex) {
+				throw ex;
+			}catch (Exception ex) {
+				errors.add(ex);
+			}
+			for (int i = 0; i < workers; i ++) workQueue.put(SkeletonJob.END_OF_WORK);
+		}catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			errors.add(ex);
+		}
+	}
+	
+	/*
+	 * Writes skeletons from the result queue until the end of results
+	 * marker is found.  If a write fails the queue continues to be 
+	 * drained so the workers are not blocked.
+	 */
+	private static void write(FlowpathGeoPackageDataSource dataSource, 
+			BlockingQueue<Collection<SkelLineString>> resultQueue, List<Exception> errors) {
+		boolean failed = false;
+		try {
+			Collection<SkelLineString> skeletons = null;
+			while((skeletons = resultQueue.take()) != SkeletonJob.END_OF_RESULTS) {
+				if (failed) continue;
+				try {
+					dataSource.writeSkeletons(skeletons);
+				}catch (Exception ex) {
+					errors.add(ex);
+					failed = true;
+				}
+			}
+			if (!failed) dataSource.flushSkeletons();
+		}catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			errors.add(ex);
+		}catch (Exception ex) {
+			errors.add(ex);
+		}
+	}
+	
 	public static void main(String[] args) throws Exception {
 		FlowpathArgs runtime = new FlowpathArgs("SkeletonEngine");
 		if (!runtime.parseArguments(args)) return;
@@ -17,24 +17,28 @@ package net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.locationtech.jts.algorithm.Angle;
-import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LineSegment;
 import org.locationtech.jts.geom.LineString;
-import org.locationtech.jts.geom.Location;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.prep.PreparedPolygon;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+import org.locationtech.jts.index.strtree.ItemDistance;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.locationtech.jts.triangulate.VoronoiDiagramBuilder;
 
 import net.refractions.chyf.datasource.EfType;
@@ -49,6 +53,32 @@ import net.refractions.chyf.flowpathconstructor.skeletonizer.points.Construction
  */
 public class SkeletonGenerator {
 
+	/**
+	 * Distance between an indexed line segment and the query coordinate
+	 */
+	private static final ItemDistance SEGMENT_POINT_DISTANCE = (ItemBoundable item1, ItemBoundable item2) -> {
+		Object o1 = item1.getItem();
+		Object o2 = item2.getItem();
+		if (o1 instanceof LineSegment) return ((LineSegment)o1).distance((Coordinate)o2);
+		return ((LineSegment)o2).distance((Coordinate)o1);
+	};
+	
+	//fraction of the local waterbody width used as the densify spacing
+	private static final double WIDTH_FRACTION = 0.25;
+	//segments within this many densify factors of an in/out point
+	//always use the base spacing (the same distance used for extra densification
+	//around acute in/out points)
+	private static final double INOUT_DISTANCE_FACTOR = 10;
+	//maximum change in direction (radians) at the ends of a segment 
+	//for it to be densified adaptively
+	private static final double MAX_STRAIGHT_TURN = Math.toRadians(15);
+	//maximum number of times spacing is doubled to satisfy the site limit; 
+	//two doublings keeps the spacing within the known width (maxSpacing / WIDTH_FRACTION)
+	private static final int MAX_COARSEN_STEPS = 2;
+	//fraction of the densify spacing used to snap together voronoi 
+	//vertices computed in different tiles
+	private static final double SNAP_FRACTION = 1e-6;
+	
 	private ChyfProperties properties;
 
 	public SkeletonGenerator(ChyfProperties prop) {
@@ -58,14 +88,23 @@ public class SkeletonGenerator {
 	
 	public SkeletonResult generateSkeleton(Polygon waterbody, List<ConstructionPoint> inoutPoints) throws Exception {
 		if (inoutPoints.size() < 2) throw new IOException("invalid number of input/output points");
-		List<Coordinate> points = preprocess2(waterbody, inoutPoints);	
+		List<Coordinate> points = getVoronoiSites(waterbody, inoutPoints);	
 
-		VoronoiDiagramBuilder builder = new VoronoiDiagramBuilder();
-		builder.setSites(points);
-		builder.setClipEnvelope(waterbody.getEnvelopeInternal());
-		Geometry voronoi = builder.getDiagram(waterbody.getFactory());
-		
-		Collection<LineSegment> segments = processVoronoi(waterbody, inoutPoints, voronoi);
+		Collection<LineSegment> segments = null;
+		int tileSites = (int) properties.getProperty(Property.SKEL_TILE_SITES);
+		if (tileSites > 0 && points.size() > tileSites) {
+			//very large waterbody; compute the voronoi in tiles
+			double snap = properties.getProperty(Property.SKEL_DENSIFY_FACTOR) * SNAP_FRACTION;
+			TiledVoronoiBuilder builder = new TiledVoronoiBuilder(points, waterbody.getEnvelopeInternal(), tileSites, snap);
+			segments = processVoronoi(waterbody, inoutPoints, builder.getEdges(waterbody.getFactory()));
+		}else {
+			VoronoiDiagramBuilder builder = new VoronoiDiagramBuilder();
+			builder.setSites(points);
+			builder.setClipEnvelope(waterbody.getEnvelopeInternal());
+			Geometry voronoi = builder.getDiagram(waterbody.getFactory());
+			
+			segments = processVoronoi(waterbody, inoutPoints, voronoi);
+		}
 		
 		Collection<LineString> linestrings = filterExcess(segments, inoutPoints, waterbody.getFactory());
 		Collection<String> errors = validate(linestrings, waterbody, inoutPoints);
@@ -174,64 +213,128 @@ public class SkeletonGenerator {
 		Set<LineSegment> inoutsegments = new HashSet<>();
 		
 		
-		IndexedPointInAreaLocator outer = new IndexedPointInAreaLocator(waterbody);
-
-		//this is for the cases where there are acute angle in the
-		//boundary of the polygons and the segment 
+		//locates the voronoi vertices; the segment test is for the cases 
+		//where there are acute angle in the boundary of the polygons and the segment 
 		//crosses the boundary
 		FastSegInPolygon segInPoly = new FastSegInPolygon(waterbody);
 		
 		for (int i = 0; i < voronoi.getNumGeometries(); i ++) {
-			Polygon p = (Polygon) voronoi.getGeometryN(i);		
-			for (int j = 1; j < p.getCoordinates().length; j ++) {
-				Coordinate c1 = p.getCoordinates()[j-1];
-				Coordinate c2 = p.getCoordinates()[j];
-				
-				int loc = outer.locate(c1);
-				boolean in1 = (loc == Location.INTERIOR || loc == Location.BOUNDARY);
-				loc = outer.locate(c2);
-				boolean in2 = (loc == Location.INTERIOR || loc == Location.BOUNDARY);
+			Polygon p = (Polygon) voronoi.getGeometryN(i);
+			Coordinate[] cs = p.getCoordinates();
+			if (cs.length == 0) continue;
+			
+			//the end of one segment is the start of the next so
+			//each vertex only needs to be located once
+			boolean in1 = segInPoly.isIn(cs[0]);
+			for (int j = 1; j < cs.length; j ++) {
+				boolean in2 = segInPoly.isIn(cs[j]);
+				addEdge(segInPoly, cs[j-1], in1, cs[j], in2, segments, inoutsegments);
+				in1 = in2;
+			}
+		}
+		return connectInOut(waterbody, segInPoly, inoutPoints, segments, inoutsegments);
+	}
+	
+	/**
+	 * Create voronoi edges from the edges computed by the
+	 * tiled voronoi builder
+	 * 
+	 * @param waterbody
+	 * @param inoutPoints
+	 * @param edges
+	 * @return
+	 * @throws Exception
+	 */
+	private Set<LineSegment> processVoronoi(Polygon waterbody, List<ConstructionPoint> inoutPoints, Collection<LineSegment> edges) throws Exception{
+		Set<LineSegment> segments = new HashSet<>();
+		Set<LineSegment> inoutsegments = new HashSet<>();
 		
-				if (in1 && in2) {
-					if (segInPoly.testSegment(c1, c2)) {
-						segments.add(createSegment(c1, c2));
-					}else {
-						inoutsegments.add(createSegment(c1, c2));	
-					}
-				}else if (in1 || in2) {
-					inoutsegments.add(createSegment(c1, c2));
-				}
+		FastSegInPolygon segInPoly = new FastSegInPolygon(waterbody);
+		
+		for (LineSegment edge : edges) {
+			addEdge(segInPoly, edge.p0, segInPoly.isIn(edge.p0), edge.p1, segInPoly.isIn(edge.p1), segments, inoutsegments);
+		}
+		return connectInOut(waterbody, segInPoly, inoutPoints, segments, inoutsegments);
+	}
+	
+	/*
+	 * Adds the voronoi edge to the segments if it is inside the 
+	 * waterbody, or to the inout segments if it crosses the waterbody boundary
+	 */
+	private static void addEdge(FastSegInPolygon segInPoly, Coordinate c1, boolean in1, Coordinate c2, boolean in2,
+			Set<LineSegment> segments, Set<LineSegment> inoutsegments) {
+		if (in1 && in2) {
+			if (segInPoly.testSegment(c1, c2)) {
+				segments.add(createSegment(c1, c2));
+			}else {
+				inoutsegments.add(createSegment(c1, c2));	
 			}
+		}else if (in1 || in2) {
+			inoutsegments.add(createSegment(c1, c2));
+		}
+	}
+	
+	/*
+	 * Connects each in/out point to the skeleton using the
+	 * inout segment closest to the point.  Segments at the same
+	 * distance are resolved in inout segment iteration order (the first 
+	 * one found is used), matching a linear scan over the segments.
+	 */
+	private Set<LineSegment> connectInOut(Polygon waterbody, FastSegInPolygon segInPoly, List<ConstructionPoint> inoutPoints, 
+			Set<LineSegment> segments, Set<LineSegment> inoutsegments) throws Exception{
+		if (inoutPoints.isEmpty()) return segments;
+		if (inoutsegments.isEmpty()) {
+			throw new Exception("No voronoi edges cross the boundary of the waterbody " + waterbody.getEnvelopeInternal() 
+				+ "; input/output points cannot be connected to the skeleton");
 		}
 
+		//index the inout segments for nearest segment lookup
+		Map<LineSegment, Integer> order = new HashMap<>();
+		STRtree inoutIndex = new STRtree();
+		for (LineSegment inout : inoutsegments) {
+			order.put(inout, order.size());
+			inoutIndex.insert(new Envelope(inout.p0, inout.p1), inout);
+		}
+		inoutIndex.build();
+		
 		//only keep the inout segments that are closest to input/output point
 		//and truncate to original inout point
 		for (ConstructionPoint spnt : inoutPoints) {
-			LineSegment nearest = null;
-			double d = Double.MAX_VALUE;
 			Coordinate c = spnt.getCoordinate();
-			for (LineSegment inout : inoutsegments) {
-				double temp = inout.distance(c);
-				if(temp < d) {
-					nearest = inout;
-					d = temp;
-				}
+			LineSegment nearest = (LineSegment) inoutIndex.nearestNeighbour(new Envelope(c), c, SEGMENT_POINT_DISTANCE);
+			
+			//break distance ties the same way as a scan of the segments
+			double d = nearest.distance(c);
+			Envelope search = new Envelope(c);
+			search.expandBy(d);
+			for (Object o : inoutIndex.query(search)) {
+				LineSegment other = (LineSegment) o;
+				if (other.distance(c) == d && order.get(other) < order.get(nearest)) nearest = other;
 			}
-			if (nearest == null) {
-				throw new Exception("FAIL");
+			
+			if (segInPoly.isIn(nearest.p0)) { 
+				segments.add(createSegment(c, nearest.p0));
 			}else {
-				int loc = outer.locate(nearest.p0);
-				if (loc == Location.INTERIOR || loc == Location.BOUNDARY) { 
-					segments.add(createSegment(c, nearest.p0));
-				}else {
-					segments.add(createSegment(c, nearest.p1));
-				}
+				segments.add(createSegment(c, nearest.p1));
 			}
 		}
 		return segments;
 	}
 		
 	
+	/**
+	 * Computes the sites used to build the voronoi diagram for the 
+	 * waterbody: the densified waterbody boundary, split around
+	 * the in/out points
+	 * 
+	 * @param waterbody
+	 * @param inoutPoints
+	 * @return
+	 */
+	public List<Coordinate> getVoronoiSites(Polygon waterbody, List<ConstructionPoint> inoutPoints) {
+		return preprocess2(waterbody, inoutPoints);
+	}
+	
 	/**
 	 * Preprocess the waterbody polygon, adding points to the left and
 	 * right of the input points and densifying the waterbody polygon
@@ -257,7 +360,9 @@ public class SkeletonGenerator {
 		double maxAngle = 2*Math.PI - minAngle;
 		double densify = properties.getProperty(Property.SKEL_DENSIFY_FACTOR);
 
+		List<Integer> ringStarts = new ArrayList<>();
 		for (LineString ls : outside) {		
+			ringStarts.add(segments.size());
 			Coordinate[] cs = ls.getCoordinates();
 			
 			List<Coordinate> all = new ArrayList<>();
@@ -321,13 +426,16 @@ public class SkeletonGenerator {
 			}
 		}
 		
+		double[] spacing = computeSpacing(segments, ringStarts, inoutset, densify);
+		
 		HashSet<Coordinate> inputPoints = new HashSet<>();
 
-		for (LineSegment s : segments) {
-			double df = densify;
+		for (int i = 0; i < segments.size(); i ++) {
+			LineSegment s = segments.get(i);
+			double df = spacing[i];
 			for (Coordinate c : densifyMore) {
 				if (s.distance(c) < densify * 10) {
-					df = df / 10.0;
+					df = densify / 10.0;
 					break;
 				}
 			}
@@ -338,6 +446,128 @@ public class SkeletonGenerator {
 //		return segments;
 	}
 	
+	/**
+	 * Computes the densify spacing for each boundary segment. Segments are 
+	 * densified at the densify factor within densify * INOUT_DISTANCE_FACTOR of 
+	 * in/out points, where the boundary turns and where the waterbody is 
+	 * narrow.  Elsewhere the spacing grows with the local width of the waterbody, up to densify * SKEL_DENSIFY_MAX_FACTOR. If the
+	 * number of sites exceeds SKEL_MAX_SITES the spacing is increased on segments 
+	 * limited only by the maximum factor. 
+	 * 
+	 * @param segments boundary segments, in ring order
+	 * @param ringStarts index of the first segment of each ring
+	 * @param inout in/out points
+	 * @param densify base densify factor
+	 * @return the spacing for each segment
+	 */
+	private double[] computeSpacing(List<LineSegment> segments, List<Integer> ringStarts, Set<Coordinate> inout, double densify) {
+		double[] spacing = new double[segments.size()];
+		Arrays.fill(spacing, densify);
+		
+		double maxFactor = properties.getProperty(Property.SKEL_DENSIFY_MAX_FACTOR);
+		if (maxFactor <= 1 || segments.isEmpty()) return spacing;
+		
+		double maxSpacing = densify * maxFactor;
+		//widths greater than this do not limit the spacing
+		double searchDistance = maxSpacing / WIDTH_FRACTION;
+		
+		//ring and position along the ring of each segment
+		int[] ring = new int[segments.size()];
+		double[] position = new double[segments.size()];
+		double[] ringLength = new double[ringStarts.size()];
+		STRtree index = new STRtree();
+		for (int r = 0; r < ringStarts.size(); r ++) {
+			int end = r + 1 < ringStarts.size() ? ringStarts.get(r + 1) : segments.size();
+			double length = 0;
+			for (int i = ringStarts.get(r); i < end; i ++) {
+				ring[i] = r;
+				position[i] = length;
+				length += segments.get(i).getLength();
+				index.insert(new Envelope(segments.get(i).p0, segments.get(i).p1), i);
+			}
+			ringLength[r] = length;
+		}
+		
+		//in/out points are not segment end points (the segments are split 
+		//around them) so segments near them are found by distance
+		double inoutDistance = densify * INOUT_DISTANCE_FACTOR;
+		STRtree inoutIndex = new STRtree();
+		for (Coordinate c : inout) inoutIndex.insert(new Envelope(c), c);
+		inoutIndex.build();
+		
+		//segments whose spacing is only limited by the maximum factor
+		boolean[] open = new boolean[segments.size()];
+		for (int r = 0; r < ringStarts.size(); r ++) {
+			int start = ringStarts.get(r);
+			int end = r + 1 < ringStarts.size() ? ringStarts.get(r + 1) : segments.size();
+			for (int i = start; i < end; i ++) {
+				LineSegment s = segments.get(i);
+				LineSegment prev = segments.get(i == start ? end - 1 : i - 1);
+				LineSegment next = segments.get(i == end - 1 ? start : i + 1);
+				
+				//near in/out points and where the boundary turns use the base spacing
+				if (isNear(s, inoutIndex, inoutDistance)) continue;
+				if (Math.PI - Angle.angleBetween(prev.p0, s.p0, s.p1) > MAX_STRAIGHT_TURN) continue;
+				if (Math.PI - Angle.angleBetween(s.p0, s.p1, next.p1) > MAX_STRAIGHT_TURN) continue;
+				
+				//local width is the distance to the nearest segment that is not 
+				//close to this one along the ring
+				double width = searchDistance;
+				Envelope env = new Envelope(s.p0, s.p1);
+				env.expandBy(searchDistance);
+				for (Object o : index.query(env)) {
+					int j = (Integer)o;
+					if (ring[j] == ring[i]) {
+						double along = Math.abs(position[j] - position[i]);
+						along = Math.min(along, ringLength[ring[i]] - along);
+						if (along < 2 * searchDistance) continue;
+					}
+					width = Math.min(width, s.distance(segments.get(j)));
+				}
+				
+				double sp = Math.max(densify, width * WIDTH_FRACTION);
+				if (sp >= maxSpacing) {
+					sp = maxSpacing;
+					open[i] = true;
+				}
+				spacing[i] = sp;
+			}
+		}
+		
+		double maxSites = properties.getProperty(Property.SKEL_MAX_SITES);
+		if (maxSites > 0) {
+			for (int k = 0; k < MAX_COARSEN_STEPS && countSites(segments, spacing) > maxSites; k ++) {
+				for (int i = 0; i < spacing.length; i ++) {
+					if (open[i]) spacing[i] *= 2;
+				}
+			}
+		}
+		return spacing;
+	}
+	
+	/*
+	 * true if the segment is within the given distance of any of the indexed points 
+	 */
+	private static boolean isNear(LineSegment s, STRtree points, double distance) {
+		Envelope env = new Envelope(s.p0, s.p1);
+		env.expandBy(distance);
+		for (Object o : points.query(env)) {
+			if (s.distance((Coordinate)o) < distance) return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * approximate number of sites generated when densifying
+	 */
+	private static long countSites(List<LineSegment> segments, double[] spacing) {
+		long count = 0;
+		for (int i = 0; i < spacing.length; i ++) {
+			count += 1 + (long)(segments.get(i).getLength() / spacing[i]);
+		}
+		return count;
+	}
+	
 	/**
 	 * Densify the linesegment to the given distance.  The first coordinate is always
 	 * added, the second coordinate is never added
@@ -362,7 +592,11 @@ public class SkeletonGenerator {
 		}
 	}
 	
-	private static LineSegment createSegment(Coordinate c1, Coordinate c2) {
+	/**
+	 * Creates a line segment with the end points in a consistent order
+	 * so the same edge always produces an equal segment
+	 */
+	static LineSegment createSegment(Coordinate c1, Coordinate c2) {
 		if (c1.x < c2.x)
 			return new LineSegment(c1, c2);
 		else if (c2.x < c1.x)
@@ -21,7 +21,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -58,6 +57,7 @@ public class SkeletonGraph {
 	public static SkeletonGraph buildGraph(Collection<LineSegment> segments, List<ConstructionPoint> inout) {
 		SkeletonGraph graph = new SkeletonGraph();
 		HashMap<Coordinate, Node> nodes = new HashMap<>();
+		Set<Coordinate> bankpoints = getBankPoints(inout);
 		
 		for (LineSegment ls : segments) {
 			Coordinate c0 = ls.p0;
@@ -79,11 +79,7 @@ public class SkeletonGraph {
 			}
 			
 			EfType type = EfType.SKELETON;
-			for (ConstructionPoint p : inout) {
-				if (p.getType() == NodeType.BANK && (p.getCoordinate().equals2D(c0) || p.getCoordinate().equals2D(c1))) {
-					type = EfType.BANK;
-				}
-			}
+			if (bankpoints.contains(c0) || bankpoints.contains(c1)) type = EfType.BANK;
 			ArrayList<Coordinate> coords = new ArrayList<>();
 			coords.add(c0);
 			coords.add(c1);
@@ -106,6 +102,7 @@ public class SkeletonGraph {
 	public static SkeletonGraph buildGraphLines(Collection<SkelLineString> segments, List<ConstructionPoint> inout) {
 		SkeletonGraph graph = new SkeletonGraph();
 		HashMap<Coordinate, Node> nodes = new HashMap<>();
+		Set<Coordinate> bankpoints = getBankPoints(inout);
 		
 		for (SkelLineString sls : segments) {
 			LineString ls = sls.getLineString();
@@ -129,11 +126,7 @@ public class SkeletonGraph {
 			}
 			
 			EfType type = sls.getEfType();
-			for (ConstructionPoint p : inout) {
-				if (p.getType() == NodeType.BANK && (p.getCoordinate().equals2D(c0) || p.getCoordinate().equals2D(c1))) {
-					type = EfType.BANK;
-				}
-			}
+			if (bankpoints.contains(c0) || bankpoints.contains(c1)) type = EfType.BANK;
 			ArrayList<Coordinate> coords = new ArrayList<>();
 			for (Coordinate c : ls.getCoordinates()) coords.add(c);
 			Edge e = graph.createEdge(type, a1, a2, coords);
@@ -145,6 +138,23 @@ public class SkeletonGraph {
 		return graph;
 	}
 	
+	private static Set<Coordinate> getBankPoints(List<ConstructionPoint> inout){
+		Set<Coordinate> bankpoints = new HashSet<>();
+		for (ConstructionPoint p : inout) {
+			if (p.getType() == NodeType.BANK) bankpoints.add(p.getCoordinate());
+		}
+		return bankpoints;
+	}
+	
+	/*
+	 * Removes the nodes and edges flagged as removed from the node 
+	 * and edge lists; keeps the order of the remaining items
+	 */
+	private void compact() {
+		nodes.removeIf(n->n.removed);
+		edges.removeIf(e->e.removed);
+	}
+	
 	public LineString shortestPath(GeometryFactory gf){
 		//find the shortest path between the two degree one nodes;  Makes the assumption
 		//that this graph only has two points
@@ -229,7 +239,7 @@ public class SkeletonGraph {
 				e.visited = true;
 				if (keeppoints.contains(e.getEndCoordinate())) {
 					// reverse
-					Collections.reverse(e.coordinates);
+					e.reverse();
 				}
 			}
 		}
@@ -253,14 +263,16 @@ public class SkeletonGraph {
 
 			List<Edge> all = new ArrayList<>(n.edges);
 			for (Edge e : all) {
-				edges.remove(e);
+				e.removed = true;
 				e.getNodeA().edges.remove(e);
 				e.getNodeB().edges.remove(e);
 				if (e.getNodeA() != n && e.getNodeA().getDegree() == 1) toremove.add(e.getNodeA());
 				if (e.getNodeB() != n && e.getNodeB().getDegree() == 1) toremove.add(e.getNodeB());
 			}
-			nodes.remove(n);
+			n.removed = true;
 		}
+		compact();
+		
 		//merge any remaining degree 2 nodes
 		mergedegree2();
 	}
@@ -269,7 +281,7 @@ public class SkeletonGraph {
 	 * merge all degree 2 nodes
 	 */
 	public void mergedegree2() {
-		Set<Node> d2 = nodes.stream().filter(e->e.getDegree() == 2).collect(Collectors.toSet());
+		List<Node> d2 = nodes.stream().filter(e->e.getDegree() == 2).collect(Collectors.toList());
 		for (Node node : d2) {
 			Edge e1 = node.getEdges().get(0);
 			Edge e2 = node.getEdges().get(1);
@@ -306,9 +318,9 @@ public class SkeletonGraph {
 			}
 
 			//remove the node and existing edges
-			nodes.remove(node);
-			edges.remove(e1);
-			edges.remove(e2);
+			node.removed = true;
+			e1.removed = true;
+			e2.removed = true;
 			e1.getNodeA().getEdges().remove(e1);
 			e1.getNodeA().getEdges().remove(e2);
 			e1.getNodeB().getEdges().remove(e1);
@@ -328,47 +340,131 @@ public class SkeletonGraph {
 			a2.getEdges().add(e);
 			edges.add(e);
 		}
-		
-
+		compact();
 	}
 
+	/**
+	 * Collapses edges shorter than the minimum length into a single node.  Edges are 
+	 * processed in order and the end node of the collapsed edge is kept.  Edges 
+	 * connected to a degree 1 node are never collapsed.
+	 * 
+	 * Collapsed nodes are tracked with a union-find structure and the edge end points 
+	 * are only moved to the kept nodes once all edges have been processed, so repeated
+	 * collapses around the same node do not move the same edges again.
+	 * 
+	 * @param minlength
+	 */
 	public void collapseShortEdges(double minlength) {
 		if (minlength < 0) return;
 		
-		for (Iterator<Edge> iterator = edges.iterator(); iterator.hasNext();) {
-			Edge e =  iterator.next();
+		//edges can reference nodes that are no longer in the node list
+		//(a cycle merged to a single edge) so these are indexed as well
+		for (Node n : nodes) n.index = -1;
+		for (Edge e : edges) {
+			e.getNodeA().index = -1;
+			e.getNodeB().index = -1;
+		}
+		List<Node> all = new ArrayList<>();
+		for (Node n : nodes) {
+			if (n.index < 0) {
+				n.index = all.size();
+				all.add(n);
+			}
+		}
+		for (Edge e : edges) {
+			for (Node n : new Node[] {e.getNodeA(), e.getNodeB()}) {
+				if (n.index < 0) {
+					n.index = all.size();
+					all.add(n);
+				}
+			}
+		}
+		
+		int[] parent = new int[all.size()];
+		int[] degree = new int[all.size()];
+		//the node kept for each set of collapsed nodes
+		Node[] kept = new Node[all.size()];
+		for (int i = 0; i < parent.length; i ++) {
+			parent[i] = i;
+			degree[i] = all.get(i).getDegree();
+			kept[i] = all.get(i);
+		}
 		
+		boolean collapsed = false;
+		for (Edge e : edges) {
+			int r1 = find(parent, e.getNodeA().index);
+			int r2 = find(parent, e.getNodeB().index);
+			
 			//if one of the nodes is degree 1 never collapse
-			if (e.getNodeA().getDegree() == 1 || e.getNodeB().getDegree() == 1 ) continue;
+			if (degree[r1] == 1 || degree[r2] == 1) continue;
 			
+			Coordinate start = kept[r1].getCoordinate();
+			Coordinate end = kept[r2].getCoordinate();
+			int last = e.coordinates.size() - 1;
 			double d = 0;
-			for (int i = 1; i < e.coordinates.size(); i ++) {
-				d += e.coordinates.get(i-1).distance(e.getCoordinates().get(i));
+			for (int i = 1; i <= last; i ++) {
+				Coordinate c0 = i == 1 ? start : e.coordinates.get(i-1);
+				Coordinate c1 = i == last ? end : e.coordinates.get(i);
+				d += c0.distance(c1);
 				if (d > minlength) break;
 			}
 			if (d > minlength) continue;
 			
-			//collapse edge
-			Node n1 = e.getNodeA();
-			Node n2 = e.getNodeB();
-			
-			n1.edges.remove(e);
-			n2.edges.remove(e);
-			for (Edge t : n1.getEdges()) {
-				if (t.getNodeA() == n1) {
-					t.setNodeA(n2);
-				}
-				if (t.getNodeB() == n1) {
-					t.setNodeB(n2);
-				}
+			collapsed = true;
+			e.removed = true;
+			if (r1 == r2) {
+				//both ends have already been collapsed to the same node
+				degree[r1] -= 2;
+				continue;
 			}
 			
-			n2.edges.addAll(n1.getEdges());
-			
-			nodes.remove(n1);
-			iterator.remove();
+			//collapse edge; the first node is merged into the second
+			kept[r1].removed = true;
+			Node keep = kept[r2];
+			int d2 = degree[r1] + degree[r2] - 2;
+			if (r1 < r2) {
+				parent[r2] = r1;
+				r2 = r1;
+			}else {
+				parent[r1] = r2;
+			}
+			degree[r2] = d2;
+			kept[r2] = keep;
 		}
+		if (!collapsed) return;
+		
+		//move edges to the kept nodes
+		for (Node n : all) {
+			if (!n.removed) n.edges.clear();
+		}
+		for (Edge e : edges) {
+			if (e.removed) continue;
+			Node n1 = kept[find(parent, e.getNodeA().index)];
+			Node n2 = kept[find(parent, e.getNodeB().index)];
+			if (n1 != e.getNodeA()) e.setNodeA(n1);
+			if (n2 != e.getNodeB()) e.setNodeB(n2);
+			n1.edges.add(e);
+			n2.edges.add(e);
+		}
+		compact();
+	}
+	
+	private static int find(int[] parent, int i) {
+		while(parent[i] != i) {
+			//path halving
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
 	}
+	
+	/**
+	 * An edge between two nodes.  The coordinates are always ordered from
+	 * node A to node B: the first coordinate is at node A and the last 
+	 * coordinate is at node B.  The cleanup methods rely on this when
+	 * merging and collapsing edges, so anything that changes the
+	 * coordinate order must swap the nodes as well.
+	 */
 	class Edge {
 		private Node n1;
 		private Node n2;
@@ -376,6 +472,7 @@ public class SkeletonGraph {
 		private List<Coordinate> coordinates;
 		private EfType type = EfType.SKELETON;
 		private boolean visited = false;
+		private boolean removed = false;
 
 		private Double distance = null;
 		
@@ -425,11 +522,9 @@ public class SkeletonGraph {
 		
 		public void setNodeA(Node newnode) {
 			if (coordinates.get(0).equals2D( n1.getCoordinate())) {
-				coordinates.remove(0);
-				coordinates.add(0, newnode.getCoordinate());
+				coordinates.set(0, newnode.getCoordinate());
 			}else if (coordinates.get(coordinates.size() - 1).equals2D( n1.getCoordinate() ) ){
-				coordinates.remove(coordinates.size() - 1);
-				coordinates.add(newnode.getCoordinate());
+				coordinates.set(coordinates.size() - 1, newnode.getCoordinate());
 			}else {
 				throw new IllegalStateException("edge coordinates does not match node coordinate");
 			}
@@ -439,11 +534,9 @@ public class SkeletonGraph {
 		
 		public void setNodeB(Node newnode) {
 			if (coordinates.get(0).equals2D( n2.getCoordinate())) {
-				coordinates.remove(0);
-				coordinates.add(0, newnode.getCoordinate());
+				coordinates.set(0, newnode.getCoordinate());
 			}else if (coordinates.get(coordinates.size() - 1).equals2D( n2.getCoordinate() ) ){
-				coordinates.remove(coordinates.size() - 1);
-				coordinates.add(newnode.getCoordinate());
+				coordinates.set(coordinates.size() - 1, newnode.getCoordinate());
 			}else {
 				throw new IllegalStateException("edge coordinates does not match node coordinate");
 			}
@@ -451,6 +544,16 @@ public class SkeletonGraph {
 			this.distance = null;
 		}
 		
+		/**
+		 * Reverses the coordinates and swaps the nodes
+		 */
+		public void reverse() {
+			Collections.reverse(coordinates);
+			Node t = n1;
+			n1 = n2;
+			n2 = t;
+		}
+		
 		public Coordinate getStartCoordinate() {
 			return this.coordinates.get(0);
 		}
@@ -477,6 +580,8 @@ public class SkeletonGraph {
 	class Node {
 		private Coordinate c;
 		private List<Edge> edges = new ArrayList<>();
+		private boolean removed = false;
+		private int index;
 
 		public Node(Coordinate c) {
 			this.c = c;
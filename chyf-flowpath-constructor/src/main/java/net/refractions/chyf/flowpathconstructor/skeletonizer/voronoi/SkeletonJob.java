@@ -16,21 +16,21 @@
 package net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 
 import org.locationtech.jts.geom.Polygon;
-import org.opengis.feature.simple.SimpleFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.refractions.chyf.datasource.ChyfAttribute;
-import net.refractions.chyf.datasource.ChyfDataSource;
-import net.refractions.chyf.flowpathconstructor.datasource.FlowpathGeoPackageDataSource;
-import net.refractions.chyf.flowpathconstructor.datasource.WaterbodyIterator;
+import net.refractions.chyf.flowpathconstructor.skeletonizer.points.ConstructionPoint;
 
 /**
  * Skeleton job that generates skeletons for waterbodies
- * in the provided dataset.
+ * taken from a work queue. Generated skeletons are passed to
+ * a result queue to be written by a single writer.
  * 
  * @author Emily
  *
@@ -39,18 +39,25 @@ public class SkeletonJob implements Runnable{
 
 	static final Logger logger = LoggerFactory.getLogger(SkeletonJob.class.getCanonicalName());
 
-	private FlowpathGeoPackageDataSource dataSource;
-	private SkeletonGenerator generator;
-	private WaterbodyIterator iterator;
+	/**
+	 * Marker batch placed on the work queue (once for each job)
+	 * when there are no more waterbodies to process, and on the 
+	 * result queue when there are no more skeletons to write.
+	 */
+	public static final List<WaterbodyTask> END_OF_WORK = Collections.emptyList();
+	public static final Collection<SkelLineString> END_OF_RESULTS = Collections.emptyList();
 	
+	private SkeletonGenerator generator;
+	private BlockingQueue<List<WaterbodyTask>> workQueue;
+	private BlockingQueue<Collection<SkelLineString>> resultQueue;
 	
 	private List<Exception> exerrors;
 	private List<String> skelerrors;
 	
-	public SkeletonJob(FlowpathGeoPackageDataSource dataSource, WaterbodyIterator iterator, SkeletonGenerator generator) {
-		this.dataSource = dataSource;
+	public SkeletonJob(BlockingQueue<List<WaterbodyTask>> workQueue, BlockingQueue<Collection<SkelLineString>> resultQueue, SkeletonGenerator generator) {
 		this.generator = generator;
-		this.iterator = iterator;
+		this.workQueue = workQueue;
+		this.resultQueue = resultQueue;
 	}
 	
 	public List<Exception> getExceptions() {
@@ -66,22 +73,56 @@ public class SkeletonJob implements Runnable{
 		skelerrors = new ArrayList<>();
 		
 		try {
-			SimpleFeature toProcess = null;
-			while((toProcess = iterator.getNextWaterbody()) != null) {
-				logger.info(toProcess.getIdentifier().toString());
-				String catchmentId = (String) toProcess.getAttribute(ChyfAttribute.INTERNAL_ID.getFieldName());
-				try {
-					Polygon workingPolygon = ChyfDataSource.getPolygon(toProcess);
-					SkeletonResult result = generator.generateSkeleton(workingPolygon, dataSource.getConstructionsPoints(catchmentId));
-					dataSource.writeSkeletons(result.getSkeletons());
-					skelerrors.addAll(result.getErrors());
-				}catch (Exception ex) {
-					exerrors.add(new Exception("Error processing catchment with identifier: " + catchmentId, ex));
+			List<WaterbodyTask> batch = null;
+			while((batch = workQueue.take()) != END_OF_WORK) {
+				for (WaterbodyTask task : batch) {
+					logger.info(task.getFeatureId());
+					try {
+						SkeletonResult result = generator.generateSkeleton(task.getPolygon(), task.getPoints());
+						if (!result.getSkeletons().isEmpty()) resultQueue.put(result.getSkeletons());
+						skelerrors.addAll(result.getErrors());
+					}catch (InterruptedException ex) {
+						throw ex;
+					}catch (Exception ex) {
+						exerrors.add(new Exception("Error processing catchment with identifier: " + task.getCatchmentId(), ex));
+					}
 				}
 			}
+		}catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			exerrors.add(ex);
 		}catch (Exception ex) {
 			exerrors.add(ex);
 		}
 	}
 
+	/**
+	 * A waterbody to skeletonize along with its construction points.
+	 */
+	public static class WaterbodyTask {
+		private String featureId;
+		private String catchmentId;
+		private Polygon polygon;
+		private List<ConstructionPoint> points;
+		
+		public WaterbodyTask(String featureId, String catchmentId, Polygon polygon, List<ConstructionPoint> points) {
+			this.featureId = featureId;
+			this.catchmentId = catchmentId;
+			this.polygon = polygon;
+			this.points = points;
+		}
+		
+		public String getFeatureId() {
+			return featureId;
+		}
+		public String getCatchmentId() {
+			return catchmentId;
+		}
+		public Polygon getPolygon() {
+			return polygon;
+		}
+		public List<ConstructionPoint> getPoints(){
+			return points;
+		}
+	}
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2019 Government of Canada
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineSegment;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.index.kdtree.KdTree;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.triangulate.VoronoiDiagramBuilder;
+
+/**
+ * Computes the edges of the voronoi diagram of a large set of sites by 
+ * splitting the sites into a grid of tiles and building the diagram for each
+ * tile in parallel.
+ * 
+ * Each tile builds the diagram of the sites within the tile expanded by 
+ * a margin.  The edges computed for a tile are only kept if every point on them
+ * (and every point in the tile) is closer to its nearest site than to the edge of the 
+ * expanded tile, which ensures no site outside the expanded tile could change them.
+ * Otherwise the margin is doubled and the tile recomputed.  Each edge is kept by the
+ * tile containing its midpoint and edge end points computed by different tiles 
+ * are snapped together, so the result is the same set of edges as a 
+ * single diagram.
+ * 
+ * Tiling only helps when the diagram is locally determined, as in long narrow 
+ * waterbodies. When the sites are far apart relative to the tile size (for example the 
+ * interior of a large compact lake, where the only sites are on the distant shoreline), 
+ * a tile's margin grows until it holds most of the sites. If any tile's expanded envelope
+ * would contain all the sites, or more than MAX_TILE_GROWTH times the tile sites, tiling
+ * is abandoned and the diagram is computed in a single pass.
+ * 
+ * @author Emily
+ *
+ */
+public class TiledVoronoiBuilder {
+
+	//maximum number of sites in an expanded tile, as a multiple of the
+	//tile sites, before falling back to a single pass
+	private static final int MAX_TILE_GROWTH = 4;
+	
+	private List<Coordinate> sites;
+	private Envelope clipEnv;
+	private Envelope siteEnv;
+	private int tileSites;
+	private double snapTolerance;
+	
+	private STRtree siteIndex;
+	private boolean tiled;
+	
+	/**
+	 * 
+	 * @param sites voronoi sites
+	 * @param clipEnv envelope to clip the diagram to
+	 * @param tileSites approximate number of sites in each tile
+	 * @param snapTolerance tolerance for snapping edge end points
+	 * computed in different tiles
+	 */
+	public TiledVoronoiBuilder(List<Coordinate> sites, Envelope clipEnv, int tileSites, double snapTolerance) {
+		this.sites = sites;
+		this.clipEnv = clipEnv;
+		this.tileSites = Math.max(1, tileSites);
+		this.snapTolerance = snapTolerance;
+		
+		siteEnv = new Envelope();
+		for (Coordinate c : sites) siteEnv.expandToInclude(c);
+	}
+	
+	/**
+	 * Computes the voronoi edges.  Each edge is returned once,
+	 * with the end points ordered as by SkeletonGenerator.createSegment
+	 * 
+	 * @param gf
+	 * @return
+	 */
+	public Collection<LineSegment> getEdges(GeometryFactory gf){
+		siteIndex = new STRtree();
+		for (Coordinate c : sites) siteIndex.insert(new Envelope(c), c);
+		siteIndex.build();
+		
+		AtomicBoolean fallback = new AtomicBoolean(false);
+		List<List<LineSegment>> tileEdges = createTiles().parallelStream()
+				.map(t->computeTile(t, gf, fallback))
+				.collect(Collectors.toList());
+		
+		if (fallback.get()) {
+			siteIndex = null;
+			tiled = false;
+			return computeSinglePass(gf);
+		}
+		tiled = true;
+		
+		//stitch tiles together
+		KdTree snap = new KdTree(snapTolerance);
+		Set<LineSegment> edges = new HashSet<>();
+		for (List<LineSegment> items : tileEdges) {
+			for (LineSegment s : items) {
+				Coordinate c1 = snap.insert(s.p0).getCoordinate();
+				Coordinate c2 = snap.insert(s.p1).getCoordinate();
+				if (c1.equals2D(c2)) continue;
+				edges.add(SkeletonGenerator.createSegment(c1, c2));
+			}
+		}
+		return edges;
+	}
+	
+	/**
+	 * 
+	 * @return true if the last call to getEdges computed the diagram
+	 * in tiles, false if it fell back to a single pass
+	 */
+	public boolean isTiled() {
+		return tiled;
+	}
+	
+	/*
+	 * Computes the edges of a single diagram of all the sites
+	 */
+	private Collection<LineSegment> computeSinglePass(GeometryFactory gf){
+		VoronoiDiagramBuilder builder = new VoronoiDiagramBuilder();
+		builder.setSites(sites);
+		builder.setClipEnvelope(clipEnv);
+		Geometry voronoi = builder.getDiagram(gf);
+		
+		Set<LineSegment> edges = new HashSet<>();
+		for (int i = 0; i < voronoi.getNumGeometries(); i ++) {
+			Coordinate[] cs = voronoi.getGeometryN(i).getCoordinates();
+			for (int j = 1; j < cs.length; j ++) {
+				edges.add(SkeletonGenerator.createSegment(cs[j-1], cs[j]));
+			}
+		}
+		return edges;
+	}
+	
+	/*
+	 * Splits the site envelope into a grid with approximately
+	 * tileSites sites in each tile
+	 */
+	private List<Tile> createTiles(){
+		int count = (int) Math.ceil(sites.size() / (double)tileSites);
+		int cols = 1;
+		int rows = 1;
+		if (count > 1 && siteEnv.getWidth() > 0 && siteEnv.getHeight() > 0) {
+			cols = (int)Math.max(1, Math.round(Math.sqrt(count * siteEnv.getWidth() / siteEnv.getHeight())));
+			rows = (int)Math.max(1, Math.ceil(count / (double)cols));
+		}
+		double w = siteEnv.getWidth() / cols;
+		double h = siteEnv.getHeight() / rows;
+		
+		List<Tile> tiles = new ArrayList<>();
+		for (int i = 0; i < cols; i ++) {
+			for (int j = 0; j < rows; j ++) {
+				double maxx = i == cols - 1 ? siteEnv.getMaxX() : siteEnv.getMinX() + (i + 1) * w;
+				double maxy = j == rows - 1 ? siteEnv.getMaxY() : siteEnv.getMinY() + (j + 1) * h;
+				Envelope core = new Envelope(siteEnv.getMinX() + i * w, maxx, siteEnv.getMinY() + j * h, maxy);
+				tiles.add(new Tile(core, i == cols - 1, j == rows - 1));
+			}
+		}
+		return tiles;
+	}
+	
+	/*
+	 * Computes the edges owned by the tile, increasing the margin
+	 * until they are known to be correct.  Returns null, and sets the fallback flag, 
+	 * if the tile grows too large to be worth computing separately.
+	 */
+	private List<LineSegment> computeTile(Tile tile, GeometryFactory gf, AtomicBoolean fallback) {
+		double margin = 0.5 * Math.max(tile.core.getWidth(), tile.core.getHeight());
+		if (margin <= 0) margin = Math.max(siteEnv.getWidth(), siteEnv.getHeight());
+		long maxLocal = (long)MAX_TILE_GROWTH * tileSites;
+		
+		while(!fallback.get()) {
+			Envelope expanded = new Envelope(tile.core);
+			expanded.expandBy(margin);
+			if (expanded.contains(siteEnv)) break;
+			
+			List<Coordinate> local = new ArrayList<>();
+			for (Object o : siteIndex.query(expanded)) {
+				Coordinate c = (Coordinate)o;
+				if (expanded.contains(c)) local.add(c);
+			}
+			if (local.size() > maxLocal) break;
+			
+			List<LineSegment> owned = new ArrayList<>();
+			if (computeTile(tile, expanded, margin, local, gf, owned)) return owned;
+			margin *= 2;
+		}
+		fallback.set(true);
+		return null;
+	}
+	
+	private boolean computeTile(Tile tile, Envelope expanded, double margin, 
+			List<Coordinate> local, GeometryFactory gf, List<LineSegment> owned) {
+		if (local.isEmpty()) return false;
+		
+		Envelope clip = expanded.intersection(clipEnv);
+		VoronoiDiagramBuilder builder = new VoronoiDiagramBuilder();
+		builder.setSites(local);
+		builder.setClipEnvelope(clip);
+		Geometry voronoi = builder.getDiagram(gf);
+		
+		for (int i = 0; i < voronoi.getNumGeometries(); i ++) {
+			if (!(voronoi.getGeometryN(i) instanceof Polygon)) continue;
+			Polygon p = (Polygon) voronoi.getGeometryN(i);
+			Coordinate site = (Coordinate) p.getUserData();
+			Coordinate[] cs = p.getCoordinates();
+			for (int j = 1; j < cs.length; j ++) {
+				Coordinate c1 = cs[j-1];
+				Coordinate c2 = cs[j];
+				boolean isOwned = tile.owns((c1.x + c2.x) / 2.0, (c1.y + c2.y) / 2.0);
+				
+				if (isOwned || tile.core.intersects(c1, c2)) {
+					//nearest site distance is convex along the edge and the distance
+					//to the expanded tile boundary is concave, so checking end points is enough
+					double r = Math.max(c1.distance(site), c2.distance(site));
+					double d = Math.min(margin, Math.min(boundaryDistance(c1, expanded), boundaryDistance(c2, expanded)));
+					if (r > d) return false;
+				}
+				if (isOwned) owned.add(SkeletonGenerator.createSegment(c1, c2));
+			}
+		}
+		
+		//points in the tile but not on any edge are furthest from
+		//their site at the tile corners
+		Coordinate[] corners = new Coordinate[] {
+				new Coordinate(tile.core.getMinX(), tile.core.getMinY()),
+				new Coordinate(tile.core.getMinX(), tile.core.getMaxY()),
+				new Coordinate(tile.core.getMaxX(), tile.core.getMinY()),
+				new Coordinate(tile.core.getMaxX(), tile.core.getMaxY())};
+		for (Coordinate corner : corners) {
+			double r = Double.MAX_VALUE;
+			for (Coordinate c : local) r = Math.min(r, corner.distance(c));
+			if (r > margin) return false;
+		}
+		return true;
+	}
+	
+	/*
+	 * Distance from the point to the boundary of the expanded tile, ignoring
+	 * sides of the tile beyond which there are no sites
+	 */
+	private double boundaryDistance(Coordinate c, Envelope expanded) {
+		double d = Double.MAX_VALUE;
+		if (expanded.getMinX() > siteEnv.getMinX()) d = Math.min(d, c.x - expanded.getMinX());
+		if (expanded.getMaxX() < siteEnv.getMaxX()) d = Math.min(d, expanded.getMaxX() - c.x);
+		if (expanded.getMinY() > siteEnv.getMinY()) d = Math.min(d, c.y - expanded.getMinY());
+		if (expanded.getMaxY() < siteEnv.getMaxY()) d = Math.min(d, expanded.getMaxY() - c.y);
+		return d;
+	}
+	
+	/**
+	 * A grid cell.  The cell owns the edges with midpoints inside it, excluding
+	 * the maximum x and y boundaries unless it is in the last column or row. 
+	 */
+	private static class Tile{
+		Envelope core;
+		boolean lastCol;
+		boolean lastRow;
+		
+		Tile(Envelope core, boolean lastCol, boolean lastRow){
+			this.core = core;
+			this.lastCol = lastCol;
+			this.lastRow = lastRow;
+		}
+		
+		boolean owns(double x, double y) {
+			if (x < core.getMinX() || y < core.getMinY()) return false;
+			if (x > core.getMaxX() || (x == core.getMaxX() && !lastCol)) return false;
+			if (y > core.getMaxY() || (y == core.getMaxY() && !lastRow)) return false;
+			return true;
+		}
+	}
+}
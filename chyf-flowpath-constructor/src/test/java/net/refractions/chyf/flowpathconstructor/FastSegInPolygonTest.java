@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Government of Canada
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.refractions.chyf.flowpathconstructor;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.algorithm.LineIntersector;
+import org.locationtech.jts.algorithm.RobustLineIntersector;
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Location;
+import org.locationtech.jts.geom.Polygon;
+
+import net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi.FastSegInPolygon;
+
+/**
+ * Compares the grid based point and segment tests against the 
+ * JTS point locator and a brute force segment test.
+ * 
+ * @author Emily
+ *
+ */
+public class FastSegInPolygonTest {
+
+	private GeometryFactory gf = new GeometryFactory();
+	
+	/*
+	 * Star shaped ring around the origin with random radius between min and max.
+	 * If snap is true the vertices are rounded to integers.
+	 */
+	private LinearRing star(Random r, int n, double min, double max, boolean snap) {
+		Coordinate[] cs = new Coordinate[n + 1];
+		for (int i = 0; i < n; i ++) {
+			double t = 2 * Math.PI * i / n;
+			double d = min + r.nextDouble() * (max - min);
+			double x = d * Math.cos(t);
+			double y = d * Math.sin(t);
+			if (snap) {
+				x = Math.round(x);
+				y = Math.round(y);
+			}
+			cs[i] = new Coordinate(x, y);
+		}
+		cs[n] = cs[0];
+		return gf.createLinearRing(cs);
+	}
+	
+	private void compare(Polygon p, Random r, boolean snap) {
+		FastSegInPolygon test = new FastSegInPolygon(p);
+		IndexedPointInAreaLocator locator = new IndexedPointInAreaLocator(p);
+		Coordinate[] ring = p.getExteriorRing().getCoordinates();
+		double size = p.getEnvelopeInternal().getWidth();
+		
+		for (int i = 0; i < 20_000; i ++) {
+			Coordinate c;
+			if (snap) {
+				c = new Coordinate(Math.round((r.nextDouble() - 0.5) * size * 1.2), Math.round((r.nextDouble() - 0.5) * size * 1.2));
+			}else if (i % 4 == 0) {
+				//on the boundary
+				int j = r.nextInt(ring.length - 1);
+				double t = i % 8 == 0 ? 0 : r.nextDouble();
+				c = new Coordinate(ring[j].x + t * (ring[j+1].x - ring[j].x), ring[j].y + t * (ring[j+1].y - ring[j].y));
+			}else {
+				c = new Coordinate((r.nextDouble() - 0.5) * size * 1.2, (r.nextDouble() - 0.5) * size * 1.2);
+			}
+			int loc = locator.locate(c);
+			Assert.assertEquals("point " + c, loc == Location.INTERIOR || loc == Location.BOUNDARY, test.isIn(c));
+			
+			double d = size / 50;
+			Coordinate c2 = new Coordinate(c.x + (r.nextDouble() - 0.5) * d, c.y + (r.nextDouble() - 0.5) * d);
+			if (snap) c2 = new Coordinate(Math.round(c2.x), Math.round(c2.y));
+			Assert.assertEquals("segment " + c + " " + c2, bruteSegment(p, c, c2), test.testSegment(c, c2));
+		}
+	}
+	
+	private boolean bruteSegment(Polygon p, Coordinate c1, Coordinate c2) {
+		LineIntersector li = new RobustLineIntersector();
+		for (int r = -1; r < p.getNumInteriorRing(); r ++) {
+			Coordinate[] cs = (r < 0 ? p.getExteriorRing() : p.getInteriorRingN(r)).getCoordinates();
+			for (int i = 0; i < cs.length - 1; i ++) {
+				li.computeIntersection(cs[i], cs[i+1], c1, c2);
+				if (li.hasIntersection()) return false;
+			}
+		}
+		return true;
+	}
+	
+	@Test
+	public void testRandomPolygons() {
+		Random r = new Random(5);
+		for (int i = 0; i < 20; i ++) {
+			boolean snap = i % 2 == 0;
+			LinearRing shell = star(r, 50 + r.nextInt(500), snap ? 30 : 300, snap ? 60 : 600, snap);
+			LinearRing[] holes = new LinearRing[i % 3 == 0 ? 1 : 0];
+			if (holes.length > 0) holes[0] = star(r, 30, snap ? 5 : 50, snap ? 12 : 120, snap);
+			compare(gf.createPolygon(shell, holes), r, snap);
+		}
+	}
+	
+	@Test
+	public void testLargePolygon() {
+		Random r = new Random(7);
+		compare(gf.createPolygon(star(r, 200_000, 10_000, 20_000, false)), r, false);
+	}
+}
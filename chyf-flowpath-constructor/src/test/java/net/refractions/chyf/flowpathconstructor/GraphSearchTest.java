@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Government of Canada
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.refractions.chyf.flowpathconstructor;
+
+import java.util.BitSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.refractions.chyf.flowpathconstructor.directionalize.CycleChecker;
+import net.refractions.chyf.flowpathconstructor.directionalize.graph.BridgeFinder;
+
+/**
+ * Tests the bridge finder and cycle checker on a long synthetic chain
+ * to ensure they do not depend on the thread stack size.
+ * 
+ * @author Emily
+ *
+ */
+public class GraphSearchTest {
+
+	private static final int EDGES = 10_000_000;
+	
+	/**
+	 * A chain of edges 0->1->2->...->n stored as 
+	 * offsets, adjacency, from and to arrays.  
+	 */
+	private static class Chain {
+		int nodeCount;
+		int[] offsets;
+		int[] adjacency;
+		int[] from;
+		int[] to;
+		
+		Chain(int edges) {
+			nodeCount = edges + 1;
+			from = new int[edges];
+			to = new int[edges];
+			for (int i = 0; i < edges; i ++) {
+				from[i] = i;
+				to[i] = i + 1;
+			}
+			build();
+		}
+		
+		/**
+		 * Redirects the end of the last edge to the first node,
+		 * turning the chain into a ring.
+		 */
+		void close() {
+			to[to.length - 1] = 0;
+			build();
+		}
+		
+		private void build() {
+			offsets = new int[nodeCount + 1];
+			for (int e = 0; e < from.length; e ++) {
+				offsets[from[e] + 1]++;
+				offsets[to[e] + 1]++;
+			}
+			for (int i = 0; i < nodeCount; i ++) offsets[i + 1] += offsets[i];
+			
+			adjacency = new int[2 * from.length];
+			int[] index = new int[nodeCount];
+			System.arraycopy(offsets, 0, index, 0, nodeCount);
+			for (int e = 0; e < from.length; e ++) {
+				adjacency[index[from[e]]++] = e;
+				adjacency[index[to[e]]++] = e;
+			}
+		}
+	}
+	
+	@Test
+	public void testBridgesLongChain() {
+		Chain chain = new Chain(EDGES);
+		
+		//every edge in a chain is a bridge
+		BitSet bridges = BridgeFinder.findBridges(chain.nodeCount, chain.offsets, chain.adjacency, chain.from, chain.to, 0);
+		Assert.assertEquals(EDGES, bridges.cardinality());
+
+		bridges = BridgeFinder.findBridges(chain.nodeCount, chain.offsets, chain.adjacency, chain.from, chain.to, EDGES / 2);
+		Assert.assertEquals(EDGES, bridges.cardinality());
+		
+		//no edge in a ring is a bridge
+		chain.close();
+		bridges = BridgeFinder.findBridges(chain.nodeCount, chain.offsets, chain.adjacency, chain.from, chain.to, 0);
+		Assert.assertEquals(0, bridges.cardinality());
+	}
+	
+	@Test
+	public void testCyclesLongChain() {
+		Chain chain = new Chain(EDGES);
+		int[] starts = new int[] {EDGES, 0};
+		
+		Assert.assertEquals(-1, CycleChecker.findCycle(chain.nodeCount, chain.offsets, chain.adjacency, chain.from, chain.to, starts));
+		
+		chain.close();
+		Assert.assertNotEquals(-1, CycleChecker.findCycle(chain.nodeCount, chain.offsets, chain.adjacency, chain.from, chain.to, starts));
+	}
+}
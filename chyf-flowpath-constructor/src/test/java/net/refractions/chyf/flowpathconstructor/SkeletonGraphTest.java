@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 Government of Canada
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.refractions.chyf.flowpathconstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineSegment;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.io.WKTReader;
+
+import net.refractions.chyf.datasource.FlowDirection;
+import net.refractions.chyf.flowpathconstructor.datasource.FlowpathGeoPackageDataSource.NodeType;
+import net.refractions.chyf.flowpathconstructor.skeletonizer.points.ConstructionPoint;
+import net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi.SkeletonGraph;
+
+/**
+ * Tests for the skeleton graph cleanup (degree 2 merge, trim and 
+ * short edge collapse).
+ * 
+ * @author Emily
+ *
+ */
+public class SkeletonGraphTest {
+
+	private GeometryFactory gf = new GeometryFactory();
+	
+	private void add(List<LineSegment> segments, double... xy) {
+		for (int i = 0; i + 3 < xy.length; i += 2) {
+			segments.add(new LineSegment(new Coordinate(xy[i], xy[i+1]), new Coordinate(xy[i+2], xy[i+3])));
+		}
+	}
+	
+	/*
+	 * The expected results were generated with the cleanup implementation
+	 * that removed items from the node and edge lists one at a time.  The 
+	 * direction of the ring depended on hash set order in that implementation 
+	 * so lines are compared normalized.
+	 */
+	@Test
+	public void testCleanup() throws Exception {
+		List<LineSegment> segments = new ArrayList<>();
+		//star of short edges around (50 50); collapsed repeatedly into one node
+		add(segments, 50,50, 49,50);
+		add(segments, 50,50, 51,50);
+		add(segments, 50,50, 50,51);
+		add(segments, 50,50, 50,49);
+		//two branches from each star node to the in/out points
+		add(segments, 49,50, 0,40);
+		add(segments, 49,50, 20,60, 0,60);
+		add(segments, 51,50, 100,40);
+		add(segments, 51,50, 100,60);
+		add(segments, 50,51, 40,100);
+		add(segments, 50,51, 60,100);
+		add(segments, 50,49, 40,0);
+		add(segments, 50,49, 60,20);
+		//cycle of degree 2 nodes attached at (60 20)
+		add(segments, 60,20, 70,10, 80,20, 70,30, 60,20);
+		add(segments, 60,20, 100,20);
+		//dangling branch removed by trim
+		add(segments, 60,20, 65,40, 70,45);
+		
+		List<ConstructionPoint> inout = new ArrayList<>();
+		double[] io = {0,40, 0,60, 100,40, 100,60, 40,100, 60,100, 40,0, 100,20};
+		for (int i = 0; i < io.length; i += 2) {
+			inout.add(new ConstructionPoint(new Coordinate(io[i], io[i+1]), NodeType.FLOWPATH, FlowDirection.UNKNOWN, null));
+		}
+		
+		SkeletonGraph graph = SkeletonGraph.buildGraph(segments, inout);
+		graph.mergedegree2();
+		graph.trim(inout);
+		graph.collapseShortEdges(2.5);
+		Set<LineString> skeletons = graph.getSkeletons(null, gf);
+		
+		String[] expected = new String[] {
+				"LINESTRING (50 49, 0 40)",
+				"LINESTRING (50 49, 100 40)",
+				"LINESTRING (50 49, 100 60)",
+				"LINESTRING (50 49, 20 60, 20 60, 0 60)",
+				"LINESTRING (50 49, 40 0)",
+				"LINESTRING (50 49, 40 100)",
+				"LINESTRING (50 49, 60 100)",
+				"LINESTRING (50 49, 60 20)",
+				"LINESTRING (60 20, 100 20)",
+				"LINESTRING (60 20, 70 10, 70 10, 80 20, 80 20, 70 30, 70 30, 60 20)"};
+		
+		Assert.assertEquals(expected.length, skeletons.size());
+		WKTReader reader = new WKTReader(gf);
+		List<LineString> remaining = new ArrayList<>(skeletons);
+		remaining.forEach(ls -> ls.normalize());
+		for (String wkt : expected) {
+			LineString ls = (LineString) reader.read(wkt);
+			ls.normalize();
+			Assert.assertTrue("missing skeleton " + wkt, remaining.removeIf(s -> s.equalsExact(ls)));
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 Government of Canada
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package net.refractions.chyf.flowpathconstructor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineSegment;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.triangulate.VoronoiDiagramBuilder;
+
+import net.refractions.chyf.flowpathconstructor.skeletonizer.voronoi.TiledVoronoiBuilder;
+
+/**
+ * Compares the edges computed by the tiled voronoi builder against
+ * the edges of a single voronoi diagram.
+ * 
+ * @author Emily
+ *
+ */
+public class TiledVoronoiBuilderTest {
+
+	private static final double TOLERANCE = 1e-6;
+	
+	private GeometryFactory gf = new GeometryFactory();
+	
+	private Set<LineSegment> singlePass(List<Coordinate> sites, Envelope clip){
+		VoronoiDiagramBuilder builder = new VoronoiDiagramBuilder();
+		builder.setSites(sites);
+		builder.setClipEnvelope(clip);
+		Geometry voronoi = builder.getDiagram(gf);
+		
+		Set<LineSegment> edges = new HashSet<>();
+		for (int i = 0; i < voronoi.getNumGeometries(); i ++) {
+			Coordinate[] cs = voronoi.getGeometryN(i).getCoordinates();
+			for (int j = 1; j < cs.length; j ++) {
+				LineSegment s = new LineSegment(cs[j-1], cs[j]);
+				s.normalize();
+				edges.add(s);
+			}
+		}
+		return edges;
+	}
+	
+	/*
+	 * every edge in expected must have an edge in actual with end points
+	 * within the tolerance; edges shorter than the tolerance are ignored
+	 */
+	private void assertContains(Collection<LineSegment> expected, Collection<LineSegment> actual) {
+		STRtree index = new STRtree();
+		for (LineSegment s : actual) index.insert(new Envelope(s.p0, s.p1), s);
+		index.build();
+		
+		for (LineSegment s : expected) {
+			if (s.getLength() <= TOLERANCE) continue;
+			Envelope env = new Envelope(s.p0, s.p1);
+			env.expandBy(TOLERANCE);
+			boolean found = false;
+			for (Object o : index.query(env)) {
+				LineSegment other = (LineSegment)o;
+				if ((s.p0.distance(other.p0) <= TOLERANCE && s.p1.distance(other.p1) <= TOLERANCE)
+						|| (s.p0.distance(other.p1) <= TOLERANCE && s.p1.distance(other.p0) <= TOLERANCE)) {
+					found = true;
+					break;
+				}
+			}
+			Assert.assertTrue("Edge " + s + " not found", found);
+		}
+	}
+	
+	private void assertSameEdges(Collection<LineSegment> expected, Collection<LineSegment> actual) {
+		assertContains(expected, actual);
+		assertContains(actual, expected);
+	}
+	
+	/**
+	 * Sites filling a long narrow strip; each tile is determined by the
+	 * sites close to it so the diagram is computed in tiles.
+	 */
+	@Test
+	public void testNarrowTiles() {
+		Random r = new Random(11);
+		List<Coordinate> sites = new ArrayList<>();
+		for (int i = 0; i < 20_000; i ++) {
+			sites.add(new Coordinate(r.nextDouble() * 20_000, r.nextDouble() * 100));
+		}
+		Envelope clip = new Envelope(0, 20_000, 0, 100);
+		
+		TiledVoronoiBuilder builder = new TiledVoronoiBuilder(sites, clip, 1000, 1e-9);
+		Collection<LineSegment> tiled = builder.getEdges(gf);
+		Assert.assertTrue("Diagram not computed in tiles", builder.isTiled());
+		
+		assertSameEdges(singlePass(sites, clip), tiled);
+	}
+	
+	/**
+	 * Sites only on the shore of a large round lake; the interior tiles 
+	 * would need most of the sites so the diagram is computed in 
+	 * a single pass.
+	 */
+	@Test
+	public void testCompactFallback() {
+		Random r = new Random(13);
+		List<Coordinate> sites = new ArrayList<>();
+		for (int i = 0; i < 20_000; i ++) {
+			double t = 2 * Math.PI * i / 20_000;
+			double d = 1000 + r.nextDouble();
+			sites.add(new Coordinate(d * Math.cos(t), d * Math.sin(t)));
+		}
+		Envelope clip = new Envelope(-1001, 1001, -1001, 1001);
+		
+		TiledVoronoiBuilder builder = new TiledVoronoiBuilder(sites, clip, 1000, 1e-9);
+		Collection<LineSegment> tiled = builder.getEdges(gf);
+		Assert.assertFalse("Diagram computed in tiles", builder.isTiled());
+		
+		assertSameEdges(singlePass(sites, clip), tiled);
+	}
+}
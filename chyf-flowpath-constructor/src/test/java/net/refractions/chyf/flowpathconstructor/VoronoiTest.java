@@ -21,6 +21,7 @@ import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.prep.PreparedPolygon;
@@ -567,4 +568,56 @@ public class VoronoiTest {
 		Assert.assertTrue("Skeleton returned errors", items.getErrors().isEmpty());
 		
 	}
+	
+	/**
+	 * Long straight shorelines are densified adaptively, but the
+	 * boundary within 10 densify factors of an in/out point must keep 
+	 * the base spacing. 
+	 */
+	@Test
+	public void testAdaptiveSpacingNearInOut() throws Exception{
+		//1000x100 rectangle with a vertex every 50 units
+		List<Coordinate> ring = new ArrayList<>();
+		for (int x = 0; x < 1000; x += 50) ring.add(new Coordinate(x, 0));
+		for (int x = 1000; x > 0; x -= 50) ring.add(new Coordinate(x, 100));
+		ring.add(new Coordinate(0, 0));
+		Polygon polygon = (new GeometryFactory()).createPolygon(ring.toArray(new Coordinate[ring.size()]));
+		
+		List<ConstructionPoint> points = new ArrayList<>();
+		points.add(new ConstructionPoint(new Coordinate(300, 0), NodeType.FLOWPATH, FlowDirection.INPUT, null));
+		points.add(new ConstructionPoint(new Coordinate(700, 100), NodeType.FLOWPATH, FlowDirection.OUTPUT, null));
+		
+		double densify = 1.0;
+		ChyfProperties prop = new ChyfProperties();
+		prop.setProperty(Property.SKEL_DENSIFY_FACTOR, densify);
+		prop.setProperty(Property.SKEL_SIMPLIFY_FACTOR, 1.0);
+		prop.setProperty(Property.SKEL_MINSIZE, 1.0);
+		prop.setProperty(Property.SKEL_ACUTE_ANGLE, 30.0);
+		prop.setProperty(Property.SKEL_DENSIFY_MAX_FACTOR, 8.0);
+		SkeletonGenerator gen = new SkeletonGenerator(prop);
+		List<Coordinate> sites = gen.getVoronoiSites(polygon, points);
+		
+		for (ConstructionPoint pnt : points) {
+			Coordinate c = pnt.getCoordinate();
+			//sites on the same shoreline within 10 densify factors, in order
+			double[] xs = sites.stream().filter(e->e.y == c.y && Math.abs(e.x - c.x) <= 10 * densify)
+					.mapToDouble(e->e.x).sorted().toArray();
+			Assert.assertTrue(xs.length > 10);
+			for (int i = 1; i < xs.length; i ++) {
+				//the in/out point itself is not a site; the sites either 
+				//side of it are one densify factor away
+				double limit = (xs[i-1] < c.x && xs[i] > c.x) ? 2 * densify : densify;
+				Assert.assertTrue("Spacing near in/out point " + c + " is " + (xs[i] - xs[i-1]), xs[i] - xs[i-1] <= limit + 1e-9);
+			}
+		}
+		
+		//away from the in/out points the spacing is coarser
+		double[] xs = sites.stream().filter(e->e.y == 0 && e.x >= 450 && e.x <= 550)
+				.mapToDouble(e->e.x).sorted().toArray();
+		Assert.assertTrue(xs.length < 100 / densify);
+		
+		SkeletonResult items = gen.generateSkeleton(polygon, points);
+		items.getErrors().forEach(e->System.out.println(e));
+		Assert.assertTrue("Skeleton returned errors", items.getErrors().isEmpty());
+	}
 }